@@ -1,23 +1,151 @@
 package com.chatapp;
 
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.metrics.SlowOperationLog;
+import com.chatapp.replication.ReadReplica;
+import com.chatapp.replication.ReplicationFollower;
+import com.chatapp.replication.ReplicationPrimary;
 import com.chatapp.service.GroupService;
 import com.chatapp.service.MessageService;
 import com.chatapp.service.UserService;
 import com.chatapp.ui.ConsoleUI;
+import com.chatapp.ui.ReplicaConsole;
+import com.chatapp.ui.ScriptedUI;
 import com.chatapp.ui.UserInterface;
 import com.chatapp.util.DataPersistence;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.ShardedDataPersistence;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
-    public static void main(String[] args) {
-        DataPersistence dataPersistence = new DataPersistence();
+    private static final Set<String> OPTIONS = Set.of("--script", "--replicate", "--follow", "--data", "--shards");
+    private static final String SLOW_OPERATION_LOG = "slow-operations.log";
+    private static final long DEFAULT_SLOW_OPERATION_MILLIS = 500;
+    private static final String DEFAULT_REPLICA_DIRECTORY = "replica";
+    private static final String REPLICATION_SECRET_VARIABLE = "CHATAPP_REPLICATION_SECRET";
+
+    /**
+     * Options, each followed by its value:
+     * <ul>
+     * <li>{@code --script <file>} (or {@code -} for standard input) drives the
+     * screens from the script instead of the keyboard; see {@link ScriptedUI}.
+     * <li>{@code --replicate <port>} ships every write to followers connecting
+     * on that local port.
+     * <li>{@code --follow <port>} runs a read-only follower of the primary on
+     * that port instead of the chat app.
+     * <li>{@code --data <dir>} keeps the data files there; by default the
+     * current directory, or {@value #DEFAULT_REPLICA_DIRECTORY} for a follower.
+     * <li>{@code --shards <n>} splits the data over n shard directories; see
+     * {@link ShardedDataPersistence}. Cannot be combined with {@code --replicate}.
+     * </ul>
+     *
+     * The primary and its followers must share a secret, given in the
+     * {@value #REPLICATION_SECRET_VARIABLE} environment variable.
+     *
+     * Service calls slower than {@code -Dchatapp.slowOperationMillis}
+     * (500 ms by default) are logged to {@value #SLOW_OPERATION_LOG} in the
+     * data directory.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!OPTIONS.contains(args[i]) || i + 1 == args.length) {
+                System.err.println("Usage: Main [--script <file|->] [--replicate <port>] [--follow <port>] "
+                        + "[--data <dir>] [--shards <n>]");
+                return;
+            }
+            options.put(args[i], args[i + 1]);
+        }
+        if (options.containsKey("--shards") && options.containsKey("--replicate")) {
+            System.err.println("Sharded data cannot be replicated; use either --shards or --replicate");
+            return;
+        }
+
+        byte[] replicationSecret = null;
+        if (options.containsKey("--replicate") || options.containsKey("--follow")) {
+            String secret = System.getenv(REPLICATION_SECRET_VARIABLE);
+            if (secret == null || secret.isEmpty()) {
+                System.err.println("Set " + REPLICATION_SECRET_VARIABLE + " to the same secret on the primary and its followers");
+                return;
+            }
+            replicationSecret = secret.getBytes(StandardCharsets.UTF_8);
+        }
+
+        if (options.containsKey("--follow")) {
+            runFollower(Integer.parseInt(options.get("--follow")), 
+                    options.getOrDefault("--data", DEFAULT_REPLICA_DIRECTORY), replicationSecret);
+            return;
+        }
+
+        String dataDirectory = options.getOrDefault("--data", ".");
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.registerMBeans();
+        SlowOperationLog slowOperationLog = new SlowOperationLog(new File(dataDirectory, SLOW_OPERATION_LOG),
+                Long.getLong("chatapp.slowOperationMillis", DEFAULT_SLOW_OPERATION_MILLIS),
+                TimeUnit.MILLISECONDS, metrics);
+        metrics.setSlowOperationLog(slowOperationLog);
+        DataStore dataPersistence;
+        ReplicationPrimary replication = null;
+        if (options.containsKey("--shards")) {
+            dataPersistence = new ShardedDataPersistence(dataDirectory, Integer.parseInt(options.get("--shards")));
+        } else if (options.containsKey("--replicate")) {
+            DataPersistence replicated = new DataPersistence(dataDirectory);
+            dataPersistence = replicated;
+            replication = new ReplicationPrimary(replicated, Integer.parseInt(options.get("--replicate")), 
+                    replicationSecret);
+            // Not on standard output, which may be carrying a script's results
+            System.err.println("Replicating to followers on port " + replication.getPort());
+        } else {
+            dataPersistence = new DataPersistence(dataDirectory);
+        }
 
         UserService userService = new UserService(dataPersistence);
-        MessageService messageService = new MessageService(dataPersistence);
         GroupService groupService = new GroupService(dataPersistence, userService);
+        MessageService messageService = new MessageService(dataPersistence, groupService);
 
-        UserInterface ui = new ConsoleUI(userService, messageService, groupService);
-
-        System.out.println("Welcome to Chat App!");
+        UserInterface ui;
+        String scriptFile = options.get("--script");
+        if (scriptFile != null) {
+            Reader script = scriptFile.equals("-") ? new InputStreamReader(System.in) : new FileReader(scriptFile);
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+            ui = new ScriptedUI(dataPersistence, userService, messageService, groupService, script, out);
+        } else {
+            ui = new ConsoleUI(dataPersistence, userService, messageService, groupService);
+            System.out.println("Welcome to Chat App!");
+        }
         ui.start();
+
+        // Let queued messages reach the disk before exiting
+        messageService.shutdown();
+        slowOperationLog.shutdown();
+        if (replication != null) {
+            replication.close();
+        }
+        if (dataPersistence instanceof ShardedDataPersistence) {
+            ((ShardedDataPersistence) dataPersistence).shutdown();
+        }
+    }
+
+    private static void runFollower(int port, String dataDirectory, byte[] secret) {
+        MetricsRegistry.getDefault().registerMBeans();
+        DataPersistence files = new DataPersistence(dataDirectory);
+        ReadReplica replica = new ReadReplica(files);
+        try (ReplicationFollower follower = new ReplicationFollower(files, replica, port, secret)) {
+            new ReplicaConsole(replica, follower).start();
+        }
     }
 }
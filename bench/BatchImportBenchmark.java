@@ -0,0 +1,69 @@
+package com.chatapp.bench;
+
+import com.chatapp.model.MessageDraft;
+import com.chatapp.model.SendResult;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+import com.chatapp.util.DataPersistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports a synthetic archive of direct messages through
+ * {@code MessageService.sendBatch} and reports the message and byte rate,
+ * for comparison with the disk's sequential write speed.
+ *
+ * Usage: {@code java com.chatapp.bench.BatchImportBenchmark [messages] [batchSize]}
+ */
+public class BatchImportBenchmark {
+    private static final int USERS = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+
+        File directory = Files.createTempDirectory("chatapp-import").toFile();
+        try {
+            DataPersistence dataPersistence = new DataPersistence(directory.getPath());
+            UserService userService = new UserService(dataPersistence);
+            GroupService groupService = new GroupService(dataPersistence, userService);
+            MessageService messageService = new MessageService(dataPersistence, groupService);
+
+            long sent = 0;
+            long start = System.nanoTime();
+            for (int offset = 0; offset < total; offset += batchSize) {
+                List<MessageDraft> drafts = new ArrayList<>(batchSize);
+                for (int i = offset; i < Math.min(total, offset + batchSize); i++) {
+                    drafts.add(MessageDraft.direct("user" + (i % USERS), "user" + ((i * 7 + 1) % USERS), 
+                            "Archived message number " + i));
+                }
+                for (SendResult result : messageService.sendBatch(drafts)) {
+                    if (result.isSent()) {
+                        sent++;
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            messageService.shutdown();
+
+            long bytes = new File(directory, "messages.dat").length();
+            System.out.printf("Imported %,d of %,d messages in %.2f s (batches of %,d)%n", 
+                    sent, total, seconds, batchSize);
+            System.out.printf("%,.0f messages/s, %.1f MB/s written (%.1f MB file)%n", 
+                    sent / seconds, bytes / seconds / 1e6, bytes / 1e6);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
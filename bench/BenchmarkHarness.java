@@ -0,0 +1,178 @@
+package com.chatapp.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small benchmark runner in the style of JMH's average-time mode: warm-up
+ * iterations, then measured iterations that each run the operation back to
+ * back for a fixed time. Results can be written as JSON in the layout JMH
+ * uses, so runs can be compared with the same tools.
+ *
+ * JMH itself (the {@code jmh} module) isolates runs in forked JVMs and guards
+ * against dead-code elimination properly; use this only where the Maven
+ * build is not available.
+ */
+public class BenchmarkHarness {
+
+    public interface Operation {
+        // The result is consumed so the work can't be optimised away
+        Object run() throws Exception;
+    }
+
+    public static final class Result {
+        private final String name;
+        private final double[] microsPerOp;
+
+        private Result(String name, double[] microsPerOp) {
+            this.name = name;
+            this.microsPerOp = microsPerOp;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getScore() {
+            double sum = 0;
+            for (double value : microsPerOp) {
+                sum += value;
+            }
+            return sum / microsPerOp.length;
+        }
+
+        // Half-width of a rough 99.9% confidence interval
+        public double getScoreError() {
+            if (microsPerOp.length < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double value : microsPerOp) {
+                squares += (value - mean) * (value - mean);
+            }
+            return 3.29 * Math.sqrt(squares / (microsPerOp.length - 1)) / Math.sqrt(microsPerOp.length);
+        }
+    }
+
+    private static volatile Object sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+
+    public BenchmarkHarness(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+    }
+
+    public Result run(String name, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iterate(operation);
+        }
+
+        double[] microsPerOp = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            microsPerOp[i] = iterate(operation);
+        }
+
+        Result result = new Result(name, microsPerOp);
+        results.add(result);
+        System.out.printf("%-28s %14.3f +- %10.3f us/op%n", name, result.getScore(), result.getScoreError());
+        return result;
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * Writes all results so far in JMH's JSON result format, with the data
+     * set parameters attached to every benchmark.
+     */
+    public void writeJson(Path path, Map<String, String> params) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                out.println("  {");
+                out.printf("    \"benchmark\": %s,%n", quote(result.name));
+                out.println("    \"mode\": \"avgt\",");
+                out.println("    \"threads\": 1,");
+                out.println("    \"forks\": 0,");
+                out.printf("    \"jvm\": %s,%n", quote(System.getProperty("java.home")));
+                out.printf("    \"vmVersion\": %s,%n", quote(System.getProperty("java.vm.version")));
+                out.printf("    \"warmupIterations\": %d,%n", warmupIterations);
+                out.printf("    \"warmupTime\": \"%d ms\",%n", iterationNanos / 1_000_000);
+                out.printf("    \"measurementIterations\": %d,%n", measurementIterations);
+                out.printf("    \"measurementTime\": \"%d ms\",%n", iterationNanos / 1_000_000);
+                out.println("    \"params\": " + object(params) + ",");
+                out.println("    \"primaryMetric\": {");
+                out.printf("      \"score\": %s,%n", number(result.getScore()));
+                out.printf("      \"scoreError\": %s,%n", number(result.getScoreError()));
+                out.println("      \"scoreUnit\": \"us/op\",");
+                out.print("      \"rawData\": [[");
+                for (int i = 0; i < result.microsPerOp.length; i++) {
+                    out.print((i > 0 ? ", " : "") + number(result.microsPerOp[i]));
+                }
+                out.println("]]");
+                out.println("    }");
+                out.println(r < results.size() - 1 ? "  }," : "  }");
+            }
+            out.println("]");
+        }
+    }
+
+    private double iterate(Operation operation) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return elapsed / 1000.0 / operations;
+    }
+
+    private static String object(Map<String, String> values) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : new LinkedHashMap<>(values).entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(quote(entry.getKey())).append(": ").append(quote(entry.getValue()));
+        }
+        return json.append('}').toString();
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "\"NaN\"";
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,150 @@
+package com.chatapp.bench;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.JoinRequest;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.util.DataStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes a synthetic but repeatable data set straight through
+ * a {@link DataStore}, for benchmarks and load tests.
+ *
+ * Users are named {@code user0..userN-1} and groups {@code group0..groupM-1};
+ * user {@code i} administers group {@code i % users}. Messages are spread
+ * over direct chats and groups with the same seed every time, so runs
+ * against the same spec see the same data.
+ */
+public class DatasetGenerator {
+    private static final String[] WORDS = {
+        "hello", "meeting", "lunch", "project", "release", "coffee", "weekend", "deadline", 
+        "review", "music", "travel", "question", "update", "thanks", "later", "tomorrow"
+    };
+
+    private final int users;
+    private final int groups;
+    private final int groupSize;
+    private final int messages;
+    private final int pendingRequestsPerGroup;
+    private final long seed;
+
+    public DatasetGenerator(int users, int groups, int groupSize, int messages, 
+            int pendingRequestsPerGroup, long seed) {
+        this.users = users;
+        this.groups = groups;
+        this.groupSize = Math.min(groupSize, users);
+        this.messages = messages;
+        this.pendingRequestsPerGroup = pendingRequestsPerGroup;
+        this.seed = seed;
+    }
+
+    public static String username(int index) {
+        return "user" + index;
+    }
+
+    public static String groupId(int index) {
+        return "group" + index;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public int getGroups() {
+        return groups;
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    public int getMessages() {
+        return messages;
+    }
+
+    public void generate(DataStore dataPersistence) {
+        Random random = new Random(seed);
+
+        Map<String, User> userMap = new HashMap<>();
+        for (int i = 0; i < users; i++) {
+            userMap.put(username(i), new User(username(i), "password", i));
+        }
+
+        // Members are a run of consecutive users starting at the admin
+        Map<String, Group> groupMap = new HashMap<>();
+        for (int g = 0; g < groups; g++) {
+            int admin = g % users;
+            Group group = new Group(groupId(g), "Group " + WORDS[g % WORDS.length] + " " + g, 
+                    username(admin), admin);
+            for (int k = 0; k < groupSize; k++) {
+                int member = (admin + k) % users;
+                group.addMember(member);
+                userMap.get(username(member)).addGroup(group.getGroupId());
+            }
+            for (int r = 0; r < pendingRequestsPerGroup && groupSize + r < users; r++) {
+                String requestor = username((admin + groupSize + r) % users);
+                group.addJoinRequest(new JoinRequest(group.getGroupId() + "-request-" + r, 
+                        group.getGroupId(), requestor));
+            }
+            groupMap.put(group.getGroupId(), group);
+        }
+
+        List<Message> messageList = new ArrayList<>(messages);
+        Map<String, Long> sequences = new HashMap<>();
+        for (int i = 0; i < messages; i++) {
+            int sender = random.nextInt(users);
+            // About half go to a group the sender is in: the group of an
+            // admin at most groupSize - 1 places before them
+            int admin = groupSize > 0 ? Math.floorMod(sender - random.nextInt(groupSize), users) : groups;
+            Message message;
+            if (admin < groups && random.nextBoolean()) {
+                message = groupMessage(i, sender, groupId(admin), random, sequences);
+            } else {
+                int receiver = (sender + 1 + random.nextInt(Math.max(1, users - 1))) % users;
+                message = directMessage(i, sender, receiver, random, sequences);
+            }
+            messageList.add(message);
+        }
+
+        dataPersistence.saveUsers(userMap);
+        dataPersistence.saveGroups(groupMap);
+        dataPersistence.saveMessages(messageList);
+    }
+
+    private static Message directMessage(int index, int sender, int receiver, Random random, 
+            Map<String, Long> sequences) {
+        String conversationId = Message.directConversationId(username(sender), username(receiver));
+        return new Message("msg-" + index, username(sender), username(receiver), text(random), false, 
+                sequences.merge(conversationId, 1L, Long::sum));
+    }
+
+    private static Message groupMessage(int index, int sender, String groupId, Random random, 
+            Map<String, Long> sequences) {
+        return new Message("msg-" + index, username(sender), groupId, text(random), true, 
+                sequences.merge(groupId, 1L, Long::sum));
+    }
+
+    private static String text(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 3 + random.nextInt(10);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("users=%d groups=%d groupSize=%d messages=%d pendingRequests=%d seed=%d", 
+                users, groups, groupSize, messages, pendingRequestsPerGroup, seed);
+    }
+}
@@ -0,0 +1,125 @@
+package com.chatapp.bench;
+
+import com.chatapp.exception.RateLimitExceededException;
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+import com.chatapp.util.DataPersistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares group delivery modes across group sizes: the cost of sending a
+ * group message and of a member's "what's new" query for the messages.
+ *
+ * Runs against a throwaway data directory, so the real data files are never
+ * touched. Usage: {@code java com.chatapp.bench.InboxDeliveryBenchmark [history]}
+ */
+public class InboxDeliveryBenchmark {
+    private static final int[] GROUP_SIZES = {10, 100, 1000, 5000};
+    private static final int OTHER_GROUPS = 20;
+    private static final int SENDS = 20;
+    private static final int QUERIES = 50;
+
+    public static void main(String[] args) throws IOException, RateLimitExceededException {
+        int history = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.printf("%-8s %-18s %14s %16s%n", "Members", "Mode", "Send (ms)", "What's new (ms)");
+        for (int groupSize : GROUP_SIZES) {
+            for (MessageService.DeliveryMode mode : MessageService.DeliveryMode.values()) {
+                File directory = Files.createTempDirectory("chatapp-bench").toFile();
+                try {
+                    run(directory, groupSize, history, mode);
+                } finally {
+                    deleteDirectory(directory);
+                }
+            }
+        }
+    }
+
+    private static void run(File directory, int groupSize, int history, MessageService.DeliveryMode mode) 
+            throws RateLimitExceededException {
+        DataPersistence dataPersistence = new DataPersistence(directory.getPath());
+        String groupId = seed(dataPersistence, groupSize, history);
+
+        UserService userService = new UserService(dataPersistence);
+        GroupService groupService = new GroupService(dataPersistence, userService);
+        MessageService messageService = new MessageService(dataPersistence, groupService);
+        messageService.setDeliveryMode(mode);
+        messageService.setSenderRateLimit(0, 0); // Measuring delivery, not throttling
+
+        long start = System.nanoTime();
+        for (int i = 0; i < SENDS; i++) {
+            messageService.sendGroupMessage("user0", groupId, "Benchmark message " + i);
+        }
+        double sendMillis = (System.nanoTime() - start) / 1e6 / SENDS;
+
+        User reader = userService.getUserByUsername("user" + (groupSize - 1));
+        int unread = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            unread = messageService.getNewGroupMessages(reader).size();
+        }
+        double queryMillis = (System.nanoTime() - start) / 1e6 / QUERIES;
+
+        System.out.printf("%-8d %-18s %14.3f %16.3f   (%d unread)%n", 
+                groupSize, mode, sendMillis, queryMillis, unread);
+    }
+
+    // Writes users, one group with every user in it, a few groups the reader
+    // is not in, and an already-read message history spread over all of them
+    private static String seed(DataPersistence dataPersistence, int groupSize, int history) {
+        Map<String, User> users = new HashMap<>();
+        for (int i = 0; i < groupSize; i++) {
+            users.put("user" + i, new User("user" + i, "password", i));
+        }
+
+        Map<String, Group> groups = new HashMap<>();
+        Group group = new Group("bench-group", "Benchmark", "user0", 0);
+        for (int i = 1; i < groupSize; i++) {
+            group.addMember(i);
+        }
+        groups.put(group.getGroupId(), group);
+        for (int i = 0; i < OTHER_GROUPS; i++) {
+            Group other = new Group("other-" + i, "Other " + i, "user0", 0);
+            groups.put(other.getGroupId(), other);
+        }
+        List<Message> messages = new ArrayList<>();
+        Map<String, Long> sequences = new HashMap<>();
+        for (int i = 0; i < history; i++) {
+            String receiverId = i % 4 == 0 ? group.getGroupId() : "other-" + (i % OTHER_GROUPS);
+            long sequence = sequences.merge(receiverId, 1L, Long::sum);
+            messages.add(new Message("history-" + i, "user0", receiverId, "History " + i, true, sequence));
+        }
+
+        for (User user : users.values()) {
+            user.addGroup(group.getGroupId());
+            // History already read
+            user.markRead(group.getGroupId(), sequences.getOrDefault(group.getGroupId(), 0L));
+        }
+
+        dataPersistence.saveUsers(users);
+        dataPersistence.saveGroups(groups);
+        dataPersistence.saveMessages(messages);
+        return group.getGroupId();
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,323 @@
+package com.chatapp.bench;
+
+import com.chatapp.exception.GroupNotFoundException;
+import com.chatapp.exception.RateLimitExceededException;
+import com.chatapp.metrics.Counter;
+import com.chatapp.metrics.LatencyHistogram;
+import com.chatapp.model.User;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+import com.chatapp.util.DataPersistence;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the service layer with simulated concurrent users, each on its own
+ * thread, following a {@link LoadScenario}. Conversations are picked with
+ * Zipfian popularity. Throughput and latency percentiles per operation are
+ * printed every report interval and once more for the whole run.
+ *
+ * When users are paced, latency is measured from when an operation was due,
+ * not when it started, so a stalled service shows up as queueing delay
+ * instead of silently lowering the offered load.
+ *
+ * Usage: {@code java com.chatapp.bench.LoadGenerator [scenario] [key=value ...] [csv=file]}
+ * where the scenario is a preset name or a properties file.
+ */
+public class LoadGenerator {
+    private static final String[] SEARCH_TERMS = {"user1", "er2", "ser", "group", "lunch", "1", "42"};
+
+    private final LoadScenario scenario;
+    private final DatasetGenerator dataset;
+    private final UserService userService;
+    private final GroupService groupService;
+    private final MessageService messageService;
+    private final ZipfDistribution userPopularity;
+    private final ZipfDistribution groupPopularity;
+    private final AtomicReference<Stats> interval = new AtomicReference<>(new Stats());
+    private final Stats total = new Stats();
+    private final PrintWriter csv;
+
+    private LoadGenerator(LoadScenario scenario, DataPersistence dataPersistence, PrintWriter csv) {
+        this.scenario = scenario;
+        this.dataset = scenario.getDataset();
+        this.csv = csv;
+        this.userService = new UserService(dataPersistence);
+        this.groupService = new GroupService(dataPersistence, userService);
+        this.messageService = new MessageService(dataPersistence, groupService);
+        if (!scenario.isRateLimited()) {
+            messageService.setSenderRateLimit(0, 0);
+            messageService.setGroupRateLimit(0, 0);
+        }
+        this.userPopularity = new ZipfDistribution(dataset.getUsers(), scenario.getZipfExponent());
+        this.groupPopularity = new ZipfDistribution(Math.max(1, dataset.getGroups()), scenario.getZipfExponent());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int first = args.length > 0 && !args[0].contains("=") ? 1 : 0;
+        LoadScenario scenario = LoadScenario.load(first == 1 ? args[0] : "steady");
+        String csvFile = null;
+        for (int i = first; i < args.length; i++) {
+            String[] pair = args[i].split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + args[i]);
+            }
+            if (pair[0].equals("csv")) {
+                csvFile = pair[1];
+            } else {
+                scenario.set(pair[0], pair[1]);
+            }
+        }
+        System.out.println("Scenario " + scenario);
+
+        File directory = Files.createTempDirectory("chatapp-load").toFile();
+        try (PrintWriter csv = csvFile != null ? new PrintWriter(csvFile) : null) {
+            DataPersistence dataPersistence = new DataPersistence(directory.getPath());
+            scenario.getDataset().generate(dataPersistence);
+            if (csv != null) {
+                csv.println("seconds,operation,count,perSecond,p50Micros,p99Micros,p999Micros,maxMicros,throttled,errors");
+            }
+            new LoadGenerator(scenario, dataPersistence, csv).run();
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private void run() throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(scenario.getDurationSeconds());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < scenario.getVirtualUsers(); i++) {
+            Thread thread = new Thread(new VirtualUser(i, start, end), "virtual-user-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long reportNanos = TimeUnit.SECONDS.toNanos(scenario.getReportSeconds());
+        long nextReport = start + reportNanos;
+        long lastReport = start;
+        while (nextReport < end) {
+            LockSupport.parkNanos(nextReport - System.nanoTime());
+            if (System.nanoTime() < nextReport) {
+                continue;
+            }
+            long now = System.nanoTime();
+            report(interval.getAndSet(new Stats()), now - start, now - lastReport);
+            lastReport = now;
+            nextReport += reportNanos;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        messageService.shutdown();
+
+        long now = System.nanoTime();
+        report(interval.getAndSet(new Stats()), now - start, now - lastReport);
+        System.out.println("Whole run:");
+        report(total, -1, now - start);
+    }
+
+    private void report(Stats stats, long elapsedNanos, long periodNanos) {
+        double seconds = periodNanos / 1e9;
+        String when = elapsedNanos < 0 ? "total" : String.format("%.0fs", elapsedNanos / 1e9);
+        long ops = 0;
+        for (LatencyHistogram histogram : stats.latencies.values()) {
+            ops += histogram.getCount();
+        }
+        System.out.printf("[%6s] %9.1f ops/s%n", when, ops / seconds);
+        System.out.printf("  %-8s %9s %10s %10s %10s %10s %9s %7s%n", 
+                "op", "ops/s", "p50 us", "p99 us", "p999 us", "max us", "throttled", "errors");
+        for (LoadScenario.Operation operation : stats.latencies.keySet()) {
+            LatencyHistogram histogram = stats.latencies.get(operation);
+            long throttled = stats.throttled.get(operation).getValue();
+            long errors = stats.errors.get(operation).getValue();
+            System.out.printf("  %-8s %9.1f %10.1f %10.1f %10.1f %10.1f %9d %7d%n", 
+                    operation.name().toLowerCase(), histogram.getCount() / seconds, histogram.getP50Micros(), 
+                    histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros(), throttled, errors);
+            if (csv != null && elapsedNanos >= 0) {
+                csv.printf("%.1f,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%d,%d%n", elapsedNanos / 1e9, 
+                        operation.name().toLowerCase(), histogram.getCount(), histogram.getCount() / seconds, 
+                        histogram.getP50Micros(), histogram.getP99Micros(), histogram.getP999Micros(), 
+                        histogram.getMaxMicros(), throttled, errors);
+            }
+        }
+        if (csv != null) {
+            csv.flush();
+        }
+    }
+
+    // Per operation; swapped out whole at each report
+    private static class Stats {
+        final Map<LoadScenario.Operation, LatencyHistogram> latencies = new EnumMap<>(LoadScenario.Operation.class);
+        final Map<LoadScenario.Operation, Counter> throttled = new EnumMap<>(LoadScenario.Operation.class);
+        final Map<LoadScenario.Operation, Counter> errors = new EnumMap<>(LoadScenario.Operation.class);
+
+        Stats() {
+            for (LoadScenario.Operation operation : LoadScenario.Operation.values()) {
+                latencies.put(operation, new LatencyHistogram());
+                throttled.put(operation, new Counter());
+                errors.put(operation, new Counter());
+            }
+        }
+    }
+
+    private class VirtualUser implements Runnable {
+        private final Random random;
+        private final long start;
+        private final long end;
+        private final LoadScenario.Operation[] choices;
+        private final int[] cumulativeWeights;
+
+        VirtualUser(int index, long start, long end) {
+            this.random = new Random(scenario.getSeed() * 31 + index);
+            this.start = start;
+            this.end = end;
+
+            Map<LoadScenario.Operation, Integer> mix = scenario.getMix();
+            this.choices = mix.keySet().toArray(new LoadScenario.Operation[0]);
+            this.cumulativeWeights = new int[choices.length];
+            int sum = 0;
+            for (int i = 0; i < choices.length; i++) {
+                sum += mix.get(choices[i]);
+                cumulativeWeights[i] = sum;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (choices.length == 0) {
+                return;
+            }
+
+            long due = System.nanoTime();
+            while (true) {
+                double rate = scenario.getRatePerUser((due - start) / 1e9);
+                if (rate > 0) {
+                    // Poisson arrivals at the current rate
+                    due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+                    if (due >= end) {
+                        return;
+                    }
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                    if (due >= end) {
+                        return;
+                    }
+                }
+
+                LoadScenario.Operation operation = pick();
+                Stats current = interval.get();
+                try {
+                    perform(operation);
+                } catch (RateLimitExceededException e) {
+                    current.throttled.get(operation).increment();
+                    total.throttled.get(operation).increment();
+                } catch (Exception e) {
+                    current.errors.get(operation).increment();
+                    total.errors.get(operation).increment();
+                }
+                long latency = System.nanoTime() - due;
+                current.latencies.get(operation).record(latency);
+                total.latencies.get(operation).record(latency);
+            }
+        }
+
+        private LoadScenario.Operation pick() {
+            int roll = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < choices.length; i++) {
+                if (roll < cumulativeWeights[i]) {
+                    return choices[i];
+                }
+            }
+            return choices[choices.length - 1];
+        }
+
+        private void perform(LoadScenario.Operation operation) 
+                throws RateLimitExceededException, GroupNotFoundException {
+            int users = dataset.getUsers();
+            String self = DatasetGenerator.username(random.nextInt(users));
+            switch (operation) {
+                case DM:
+                    messageService.sendDirectMessage(self, popularUser(), "load test");
+                    break;
+                case GROUP: {
+                    int group = popularGroup();
+                    // Members are the run of users starting at the admin
+                    String member = DatasetGenerator.username((group + random.nextInt(dataset.getGroupSize())) % users);
+                    messageService.sendGroupMessage(member, DatasetGenerator.groupId(group), "load test");
+                    break;
+                }
+                case JOIN: {
+                    int group = popularGroup();
+                    String groupId = DatasetGenerator.groupId(group);
+                    String outsider = DatasetGenerator.username(
+                            (group + dataset.getGroupSize() + random.nextInt(Math.max(1, users - dataset.getGroupSize()))) % users);
+                    // The admin turns it down, so groups keep their size
+                    if (groupService.requestToJoinGroup(groupId, outsider)) {
+                        groupService.rejectJoinRequest(groupId, outsider, DatasetGenerator.username(group % users));
+                    }
+                    break;
+                }
+                case SEARCH:
+                    if (random.nextBoolean()) {
+                        userService.searchUsers(SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)], 20);
+                    } else {
+                        groupService.searchGroups(SEARCH_TERMS[random.nextInt(SEARCH_TERMS.length)]);
+                    }
+                    break;
+                case HISTORY:
+                    if (random.nextBoolean()) {
+                        messageService.getDirectMessagesBetweenUsers(self, popularUser());
+                    } else {
+                        messageService.getGroupMessages(DatasetGenerator.groupId(popularGroup()));
+                    }
+                    break;
+                case UNREAD: {
+                    User user = userService.getUserByUsername(self);
+                    messageService.getUnreadDirectCounts(user);
+                    messageService.getUnreadGroupCounts(user);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown operation " + operation);
+            }
+        }
+
+        private String popularUser() {
+            return DatasetGenerator.username(userPopularity.sample(random));
+        }
+
+        private int popularGroup() {
+            if (dataset.getGroups() == 0) {
+                throw new IllegalStateException("No groups in the data set");
+            }
+            return groupPopularity.sample(random);
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
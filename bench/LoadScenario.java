@@ -0,0 +1,170 @@
+package com.chatapp.bench;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * What a load run does: how many virtual users, how fast each acts, the mix
+ * of operations, how skewed conversation popularity is, and when bursts
+ * come. Built from a named preset or a properties file, then overridden
+ * key by key, e.g. {@code virtualUsers=100 mix.dm=70 burst.factor=10}.
+ *
+ * Keys: {@code virtualUsers}, {@code duration} (s), {@code ratePerUser}
+ * (operations per second per user, 0 for as fast as possible),
+ * {@code mix.<operation>} (relative weights), {@code zipf} (exponent),
+ * {@code burst.every}, {@code burst.length} (s), {@code burst.factor},
+ * {@code report} (s), {@code rateLimits} (on/off), and the data set
+ * {@code users}, {@code groups}, {@code groupSize}, {@code messages},
+ * {@code seed}.
+ */
+public class LoadScenario {
+    public enum Operation {
+        DM, GROUP, JOIN, SEARCH, HISTORY, UNREAD
+    }
+
+    private final Properties properties;
+
+    private LoadScenario(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * A preset name (steady, bursty, groups, readers) or the path of a
+     * properties file, which is read over the steady preset.
+     */
+    public static LoadScenario load(String nameOrFile) throws IOException {
+        Properties properties = preset("steady");
+        Properties named = preset(nameOrFile);
+        if (named != null) {
+            properties.putAll(named);
+        } else {
+            try (InputStream in = new FileInputStream(nameOrFile)) {
+                properties.load(in);
+            }
+        }
+        return new LoadScenario(properties);
+    }
+
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    public int getVirtualUsers() {
+        return intValue("virtualUsers");
+    }
+
+    public int getDurationSeconds() {
+        return intValue("duration");
+    }
+
+    public int getReportSeconds() {
+        return Math.max(1, intValue("report"));
+    }
+
+    public double getZipfExponent() {
+        return doubleValue("zipf");
+    }
+
+    public boolean isRateLimited() {
+        return "on".equalsIgnoreCase(properties.getProperty("rateLimits"));
+    }
+
+    public Map<Operation, Integer> getMix() {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            int weight = intValue("mix." + operation.name().toLowerCase());
+            if (weight > 0) {
+                mix.put(operation, weight);
+            }
+        }
+        return mix;
+    }
+
+    /**
+     * Operations per second for each virtual user at the given moment of the
+     * run; 0 means no pacing.
+     */
+    public double getRatePerUser(double elapsedSeconds) {
+        double rate = doubleValue("ratePerUser");
+        int every = intValue("burst.every");
+        if (every > 0 && elapsedSeconds % every < doubleValue("burst.length")) {
+            rate *= doubleValue("burst.factor");
+        }
+        return rate;
+    }
+
+    public long getSeed() {
+        return Long.parseLong(properties.getProperty("seed", "0").trim());
+    }
+
+    public DatasetGenerator getDataset() {
+        return new DatasetGenerator(intValue("users"), intValue("groups"), intValue("groupSize"), 
+                intValue("messages"), 0, getSeed());
+    }
+
+    @Override
+    public String toString() {
+        return new TreeMap<>(properties).toString();
+    }
+
+    private int intValue(String key) {
+        return Integer.parseInt(properties.getProperty(key, "0").trim());
+    }
+
+    private double doubleValue(String key) {
+        return Double.parseDouble(properties.getProperty(key, "0").trim());
+    }
+
+    private static Properties preset(String name) {
+        Properties p = new Properties();
+        switch (name) {
+            case "steady":
+                p.setProperty("virtualUsers", "20");
+                p.setProperty("duration", "30");
+                p.setProperty("ratePerUser", "2");
+                p.setProperty("mix.dm", "40");
+                p.setProperty("mix.group", "25");
+                p.setProperty("mix.join", "5");
+                p.setProperty("mix.search", "10");
+                p.setProperty("mix.history", "10");
+                p.setProperty("mix.unread", "10");
+                p.setProperty("zipf", "1.1");
+                p.setProperty("burst.every", "0");
+                p.setProperty("burst.length", "0");
+                p.setProperty("burst.factor", "1");
+                p.setProperty("report", "5");
+                p.setProperty("rateLimits", "off");
+                p.setProperty("users", "1000");
+                p.setProperty("groups", "100");
+                p.setProperty("groupSize", "30");
+                p.setProperty("messages", "50000");
+                p.setProperty("seed", "42");
+                return p;
+            case "bursty":
+                p.setProperty("burst.every", "10");
+                p.setProperty("burst.length", "2");
+                p.setProperty("burst.factor", "10");
+                return p;
+            case "groups":
+                p.setProperty("mix.dm", "10");
+                p.setProperty("mix.group", "60");
+                p.setProperty("mix.join", "10");
+                p.setProperty("groupSize", "200");
+                return p;
+            case "readers":
+                p.setProperty("mix.dm", "10");
+                p.setProperty("mix.group", "5");
+                p.setProperty("mix.join", "0");
+                p.setProperty("mix.history", "45");
+                p.setProperty("mix.unread", "30");
+                return p;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.chatapp.bench;
+
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+import com.chatapp.util.DataPersistence;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks of the service and persistence layers against a generated data
+ * set: startup load, history fetch, unread counts, search, join requests and
+ * sends. Each run works on a fresh copy in a temporary directory.
+ *
+ * The same benchmarks run under JMH from the {@code jmh} module, which is
+ * the one to trust for comparisons; this runner is the fallback for when
+ * only a JDK is at hand, and writes its results in JMH's JSON layout.
+ *
+ * Usage: {@code java com.chatapp.bench.ServiceBenchmarks [--users N]
+ * [--groups N] [--group-size N] [--messages N] [--pending N] [--seed N]
+ * [--warmup N] [--iterations N] [--time ms] [--only prefix] [--json file]}
+ */
+public class ServiceBenchmarks {
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+    static {
+        DEFAULTS.put("users", "2000");
+        DEFAULTS.put("groups", "200");
+        DEFAULTS.put("group-size", "50");
+        DEFAULTS.put("messages", "100000");
+        DEFAULTS.put("pending", "5");
+        DEFAULTS.put("seed", "42");
+        DEFAULTS.put("warmup", "3");
+        DEFAULTS.put("iterations", "5");
+        DEFAULTS.put("time", "500");
+        DEFAULTS.put("only", "");
+        DEFAULTS.put("json", "");
+    }
+
+    private final Map<String, String> options;
+    private final BenchmarkHarness harness;
+    private final DatasetGenerator dataset;
+    private long counter;
+
+    private ServiceBenchmarks(Map<String, String> options) {
+        this.options = options;
+        this.harness = new BenchmarkHarness(intOption("warmup"), intOption("iterations"), intOption("time"));
+        this.dataset = new DatasetGenerator(intOption("users"), intOption("groups"), intOption("group-size"), 
+                intOption("messages"), intOption("pending"), Long.parseLong(options.get("seed")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String key = args[i].replaceFirst("^--", "");
+            if (!DEFAULTS.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            options.put(key, args[i + 1]);
+        }
+        new ServiceBenchmarks(options).runAll();
+    }
+
+    private void runAll() throws Exception {
+        File directory = Files.createTempDirectory("chatapp-bench").toFile();
+        try {
+            DataPersistence dataPersistence = new DataPersistence(directory.getPath());
+            long start = System.nanoTime();
+            dataset.generate(dataPersistence);
+            System.out.printf("Generated %s in %.1f s%n", dataset, (System.nanoTime() - start) / 1e9);
+
+            runPersistenceBenchmarks(dataPersistence);
+
+            UserService userService = new UserService(dataPersistence);
+            GroupService groupService = new GroupService(dataPersistence, userService);
+            MessageService messageService = new MessageService(dataPersistence, groupService);
+            messageService.setSenderRateLimit(0, 0);
+            messageService.setGroupRateLimit(0, 0);
+            try {
+                runReadBenchmarks(userService, groupService, messageService);
+                // Writes last, so the read benchmarks all see the generated data
+                runWriteBenchmarks(groupService, messageService);
+            } finally {
+                messageService.shutdown();
+            }
+
+            String json = options.get("json");
+            if (!json.isEmpty()) {
+                Map<String, String> params = new LinkedHashMap<>(options);
+                params.remove("json");
+                params.remove("only");
+                harness.writeJson(Paths.get(json), params);
+                System.out.println("Results written to " + json);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private void runPersistenceBenchmarks(DataPersistence dataPersistence) throws Exception {
+        run("persistence.loadMessages", dataPersistence::loadMessages);
+        run("persistence.loadUsers", dataPersistence::loadUsers);
+        run("persistence.loadGroups", dataPersistence::loadGroups);
+        run("startup.load", () -> {
+            UserService userService = new UserService(dataPersistence);
+            GroupService groupService = new GroupService(dataPersistence, userService);
+            MessageService messageService = new MessageService(dataPersistence, groupService);
+            messageService.shutdown();
+            return messageService;
+        });
+    }
+
+    private void runReadBenchmarks(UserService userService, GroupService groupService, 
+            MessageService messageService) throws Exception {
+        int users = dataset.getUsers();
+        int groups = Math.max(1, dataset.getGroups());
+        Map<Integer, User> userCache = new HashMap<>();
+
+        run("history.direct", () -> messageService.getDirectMessagesBetweenUsers(
+                DatasetGenerator.username(next(users)), DatasetGenerator.username(next(users))));
+        run("history.group", () -> messageService.getGroupMessages(DatasetGenerator.groupId(next(groups))));
+        run("history.groupRange", () -> {
+            String groupId = DatasetGenerator.groupId(next(groups));
+            List<Message> all = messageService.getGroupMessages(groupId);
+            if (all.size() < 4) {
+                return all;
+            }
+            LocalDateTime from = all.get(all.size() / 4).getTimestamp();
+            LocalDateTime to = all.get(all.size() / 2).getTimestamp();
+            return messageService.getGroupMessages(groupId, from, to);
+        });
+        run("unread.groups", () -> messageService.getUnreadGroupCounts(
+                userCache.computeIfAbsent(next(users), i -> userService.getUserByUsername(DatasetGenerator.username(i)))));
+        run("unread.direct", () -> messageService.getUnreadDirectCounts(
+                userCache.computeIfAbsent(next(users), i -> userService.getUserByUsername(DatasetGenerator.username(i)))));
+        run("unread.newGroupMessages", () -> messageService.getNewGroupMessages(
+                userCache.computeIfAbsent(next(users), i -> userService.getUserByUsername(DatasetGenerator.username(i)))));
+        run("search.users", () -> userService.searchUsers("er" + next(100), 20));
+        run("search.groups", () -> groupService.searchGroups("lunch"));
+        run("groups.ofUser", () -> groupService.getUserGroups(DatasetGenerator.username(next(users))));
+        run("join.adminInbox", () -> groupService.getAdminInbox(DatasetGenerator.username(next(Math.min(users, groups)))));
+    }
+
+    private void runWriteBenchmarks(GroupService groupService, MessageService messageService) throws Exception {
+        int users = dataset.getUsers();
+        int groups = dataset.getGroups();
+
+        run("send.direct", () -> messageService.sendDirectMessage(
+                DatasetGenerator.username(next(users)), DatasetGenerator.username(next(users)), "benchmark"));
+        if (groups > 0) {
+            run("send.group", () -> {
+                int group = next(Math.min(users, groups));
+                // The admin is always a member
+                return messageService.sendGroupMessage(DatasetGenerator.username(group % users), 
+                        DatasetGenerator.groupId(group), "benchmark");
+            });
+        }
+        if (groups > 0 && dataset.getGroupSize() < users) {
+            run("join.requestAndReject", () -> {
+                int group = next(Math.min(users, groups));
+                String groupId = DatasetGenerator.groupId(group);
+                String admin = DatasetGenerator.username(group % users);
+                // Just past the last member, so never already in the group
+                String outsider = DatasetGenerator.username((group + dataset.getGroupSize()) % users);
+                groupService.requestToJoinGroup(groupId, outsider);
+                return groupService.rejectJoinRequest(groupId, outsider, admin);
+            });
+        }
+    }
+
+    private void run(String name, BenchmarkHarness.Operation operation) throws Exception {
+        if (name.startsWith(options.get("only"))) {
+            harness.run(name, operation);
+        }
+    }
+
+    private int next(int bound) {
+        counter += 7919;
+        return (int) (counter % bound);
+    }
+
+    private int intOption(String key) {
+        return Integer.parseInt(options.get(key));
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
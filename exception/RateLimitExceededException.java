@@ -0,0 +1,16 @@
+package com.chatapp.exception;
+
+public class RateLimitExceededException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+    
+    public RateLimitExceededException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
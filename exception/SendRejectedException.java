@@ -0,0 +1,9 @@
+package com.chatapp.exception;
+
+public class SendRejectedException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    public SendRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,18 @@
+package com.chatapp.jmh;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Walks through users and groups in a fixed, well spread order, so
+ * successive operations don't hit the same records.
+ */
+@State(Scope.Thread)
+public class Cursor {
+    private long counter;
+
+    int next(int bound) {
+        counter += 7919;
+        return (int) (counter % bound);
+    }
+}
@@ -0,0 +1,87 @@
+package com.chatapp.jmh;
+
+import com.chatapp.bench.DatasetGenerator;
+import com.chatapp.model.User;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+import com.chatapp.util.DataPersistence;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A generated data set in a temporary directory with the services running
+ * on it, the same one {@link com.chatapp.bench.ServiceBenchmarks} uses.
+ * Every benchmark gets a fresh copy, so writes never leak into reads.
+ */
+@State(Scope.Benchmark)
+public class DatasetState {
+    @Param("2000")
+    public int users;
+
+    @Param("200")
+    public int groups;
+
+    @Param("50")
+    public int groupSize;
+
+    @Param("100000")
+    public int messages;
+
+    @Param("5")
+    public int pending;
+
+    @Param("42")
+    public long seed;
+
+    DatasetGenerator dataset;
+    DataPersistence dataPersistence;
+    UserService userService;
+    GroupService groupService;
+    MessageService messageService;
+    private final Map<Integer, User> userCache = new ConcurrentHashMap<>();
+    private File directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataset = new DatasetGenerator(users, groups, groupSize, messages, pending, seed);
+        directory = Files.createTempDirectory("chatapp-jmh").toFile();
+        dataPersistence = new DataPersistence(directory.getPath());
+        dataset.generate(dataPersistence);
+
+        userService = new UserService(dataPersistence);
+        groupService = new GroupService(dataPersistence, userService);
+        messageService = new MessageService(dataPersistence, groupService);
+        messageService.setSenderRateLimit(0, 0);
+        messageService.setGroupRateLimit(0, 0);
+    }
+
+    // Looked up once, so the unread benchmarks measure just the counting
+    User user(int index) {
+        return userCache.computeIfAbsent(index, 
+                i -> userService.getUserByUsername(DatasetGenerator.username(i)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        messageService.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,55 @@
+package com.chatapp.jmh;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the data files and starting the services on them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class PersistenceBenchmarks {
+
+    @Benchmark
+    public List<Message> loadMessages(DatasetState state) {
+        return state.dataPersistence.loadMessages();
+    }
+
+    @Benchmark
+    public Map<String, User> loadUsers(DatasetState state) {
+        return state.dataPersistence.loadUsers();
+    }
+
+    @Benchmark
+    public Map<String, Group> loadGroups(DatasetState state) {
+        return state.dataPersistence.loadGroups();
+    }
+
+    @Benchmark
+    public MessageService startupLoad(DatasetState state) {
+        UserService userService = new UserService(state.dataPersistence);
+        GroupService groupService = new GroupService(state.dataPersistence, userService);
+        MessageService messageService = new MessageService(state.dataPersistence, groupService);
+        messageService.shutdown();
+        return messageService;
+    }
+}
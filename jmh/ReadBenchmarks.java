@@ -0,0 +1,100 @@
+package com.chatapp.jmh;
+
+import com.chatapp.bench.DatasetGenerator;
+import com.chatapp.model.Group;
+import com.chatapp.model.JoinRequest;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History, unread counts, search and join request queries on the generated
+ * data set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class ReadBenchmarks {
+
+    @Benchmark
+    public List<Message> historyDirect(DatasetState state, Cursor cursor) {
+        return state.messageService.getDirectMessagesBetweenUsers(
+                DatasetGenerator.username(cursor.next(state.users)), 
+                DatasetGenerator.username(cursor.next(state.users)));
+    }
+
+    @Benchmark
+    public List<Message> historyGroup(DatasetState state, Cursor cursor) {
+        return state.messageService.getGroupMessages(DatasetGenerator.groupId(cursor.next(groups(state))));
+    }
+
+    @Benchmark
+    public List<Message> historyGroupRange(DatasetState state, Cursor cursor) {
+        String groupId = DatasetGenerator.groupId(cursor.next(groups(state)));
+        List<Message> all = state.messageService.getGroupMessages(groupId);
+        if (all.size() < 4) {
+            return all;
+        }
+        LocalDateTime from = all.get(all.size() / 4).getTimestamp();
+        LocalDateTime to = all.get(all.size() / 2).getTimestamp();
+        return state.messageService.getGroupMessages(groupId, from, to);
+    }
+
+    @Benchmark
+    public Map<String, Integer> unreadGroups(DatasetState state, Cursor cursor) {
+        return state.messageService.getUnreadGroupCounts(user(state, cursor));
+    }
+
+    @Benchmark
+    public Map<String, Integer> unreadDirect(DatasetState state, Cursor cursor) {
+        return state.messageService.getUnreadDirectCounts(user(state, cursor));
+    }
+
+    @Benchmark
+    public List<Message> unreadNewGroupMessages(DatasetState state, Cursor cursor) {
+        return state.messageService.getNewGroupMessages(user(state, cursor));
+    }
+
+    @Benchmark
+    public List<String> searchUsers(DatasetState state, Cursor cursor) {
+        return state.userService.searchUsers("er" + cursor.next(100), 20);
+    }
+
+    @Benchmark
+    public List<Group> searchGroups(DatasetState state) {
+        return state.groupService.searchGroups("lunch");
+    }
+
+    @Benchmark
+    public List<Group> groupsOfUser(DatasetState state, Cursor cursor) {
+        return state.groupService.getUserGroups(DatasetGenerator.username(cursor.next(state.users)));
+    }
+
+    @Benchmark
+    public List<JoinRequest> adminInbox(DatasetState state, Cursor cursor) {
+        return state.groupService.getAdminInbox(
+                DatasetGenerator.username(cursor.next(Math.min(state.users, groups(state)))));
+    }
+
+    private static int groups(DatasetState state) {
+        return Math.max(1, state.groups);
+    }
+
+    private static User user(DatasetState state, Cursor cursor) {
+        return state.user(cursor.next(state.users));
+    }
+}
@@ -0,0 +1,55 @@
+package com.chatapp.jmh;
+
+import com.chatapp.bench.DatasetGenerator;
+import com.chatapp.exception.GroupNotFoundException;
+import com.chatapp.exception.RateLimitExceededException;
+import com.chatapp.model.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends and join requests. Each benchmark starts from its own copy of the
+ * data set; they need at least one group, and the join benchmark groups
+ * smaller than the user count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class WriteBenchmarks {
+
+    @Benchmark
+    public Message sendDirect(DatasetState state, Cursor cursor) throws RateLimitExceededException {
+        return state.messageService.sendDirectMessage(
+                DatasetGenerator.username(cursor.next(state.users)), 
+                DatasetGenerator.username(cursor.next(state.users)), "benchmark");
+    }
+
+    @Benchmark
+    public Message sendGroup(DatasetState state, Cursor cursor) throws RateLimitExceededException {
+        int group = cursor.next(Math.min(state.users, state.groups));
+        // The admin is always a member
+        return state.messageService.sendGroupMessage(DatasetGenerator.username(group % state.users), 
+                DatasetGenerator.groupId(group), "benchmark");
+    }
+
+    @Benchmark
+    public boolean joinRequestAndReject(DatasetState state, Cursor cursor) throws GroupNotFoundException {
+        int group = cursor.next(Math.min(state.users, state.groups));
+        String groupId = DatasetGenerator.groupId(group);
+        String admin = DatasetGenerator.username(group % state.users);
+        // Just past the last member, so never already in the group
+        String outsider = DatasetGenerator.username((group + state.groupSize) % state.users);
+        state.groupService.requestToJoinGroup(groupId, outsider);
+        return state.groupService.rejectJoinRequest(groupId, outsider, admin);
+    }
+}
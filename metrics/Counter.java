@@ -0,0 +1,29 @@
+package com.chatapp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counter: threads add to separate cells under contention, so
+ * counting from many threads doesn't serialize on one atomic.
+ */
+public class Counter implements CounterMXBean {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    @Override
+    public long getValue() {
+        return value.sum();
+    }
+
+    @Override
+    public void reset() {
+        value.reset();
+    }
+}
@@ -0,0 +1,10 @@
+package com.chatapp.metrics;
+
+/**
+ * JMX view of a counter.
+ */
+public interface CounterMXBean {
+    long getValue();
+
+    void reset();
+}
@@ -0,0 +1,20 @@
+package com.chatapp.metrics;
+
+/**
+ * JMX view of one operation's latencies, in microseconds.
+ */
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getMaxMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    void reset();
+}
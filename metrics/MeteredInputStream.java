@@ -0,0 +1,71 @@
+package com.chatapp.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it and the time spent waiting on reads. On
+ * close it adds the bytes to the {@code <operation>.bytes} counter and
+ * records the rest of the time since it was opened, i.e. decoding, in the
+ * {@code <operation>.decode} histogram, and credits the bytes to the
+ * thread's {@link OperationContext}.
+ *
+ * Sits directly over the file, under any buffering, so only real reads are
+ * timed.
+ */
+public class MeteredInputStream extends FilterInputStream {
+    private final MetricsRegistry metrics;
+    private final String operation;
+    private final long openedAt;
+    private long bytes;
+    private long readNanos;
+    private boolean closed;
+
+    public MeteredInputStream(InputStream in, MetricsRegistry metrics, String operation) {
+        super(in);
+        this.metrics = metrics;
+        this.operation = operation;
+        this.openedAt = System.nanoTime();
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        readNanos += System.nanoTime() - start;
+        if (b >= 0) {
+            bytes++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int n = super.read(buffer, offset, length);
+        readNanos += System.nanoTime() - start;
+        if (n > 0) {
+            bytes += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytes += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            metrics.counter(operation + ".bytes").add(bytes);
+            OperationContext.recordBytes(bytes, false);
+            metrics.histogram(operation + ".decode").record(System.nanoTime() - openedAt - readNanos);
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,61 @@
+package com.chatapp.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counterpart of {@link MeteredInputStream} for writes: on close it adds the
+ * bytes written to {@code <operation>.bytes} and records the time not spent
+ * in writes, i.e. encoding, in {@code <operation>.encode}. The bytes are
+ * also credited to the thread's {@link OperationContext}.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+    private final MetricsRegistry metrics;
+    private final String operation;
+    private final long openedAt;
+    private long bytes;
+    private long writeNanos;
+    private boolean closed;
+
+    public MeteredOutputStream(OutputStream out, MetricsRegistry metrics, String operation) {
+        super(out);
+        this.metrics = metrics;
+        this.operation = operation;
+        this.openedAt = System.nanoTime();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        writeNanos += System.nanoTime() - start;
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        out.write(buffer, offset, length);
+        writeNanos += System.nanoTime() - start;
+        bytes += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        long start = System.nanoTime();
+        try {
+            super.close(); // Flushes and closes the file
+        } finally {
+            writeNanos += System.nanoTime() - start;
+            metrics.counter(operation + ".bytes").add(bytes);
+            OperationContext.recordBytes(bytes, true);
+            metrics.histogram(operation + ".encode").record(System.nanoTime() - openedAt - writeNanos);
+        }
+    }
+}
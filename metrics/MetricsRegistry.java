@@ -0,0 +1,171 @@
+package com.chatapp.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named latency histograms and counters, created on first use. Services
+ * time their public operations with a timer closed in a finally block:
+ * {@code Timer timer = metrics.time("UserService.login"); try { ... } finally { timer.close(); }}.
+ * A try-with-resources would do the same, but javac's lint flags a
+ * resource the block never uses.
+ *
+ * There is one process-wide registry, like the JVM's own platform MBeans;
+ * once {@link #registerMBeans} has been called every metric, existing or
+ * new, is also visible over JMX under {@code com.chatapp}. Each timed
+ * operation is also a Flight Recorder {@link OperationEvent}, and the
+ * outermost one on a thread is checked against the
+ * {@link SlowOperationLog}, if one is set.
+ */
+public class MetricsRegistry {
+    private static final String JMX_DOMAIN = "com.chatapp";
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private volatile MBeanServer mBeanServer; // Null until registerMBeans
+    private volatile SlowOperationLog slowOperationLog;
+
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * The outermost operation being timed on this thread, or null outside
+     * any; lets lower layers say which user-facing call they work for.
+     */
+    public static String currentOperation() {
+        OperationContext context = OperationContext.current();
+        return context == null ? null : context.getOperation();
+    }
+
+    /**
+     * Starts timing an operation; the time is recorded when the timer is
+     * closed, whether the operation returned or threw.
+     */
+    public Timer time(String operation) {
+        return new Timer(this, operation, histogram(operation));
+    }
+
+    /**
+     * Root operations at least as slow as the log's threshold are written to
+     * it from now on; null turns the log off.
+     */
+    public void setSlowOperationLog(SlowOperationLog slowOperationLog) {
+        this.slowOperationLog = slowOperationLog;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        return histograms.computeIfAbsent(name, key -> register("Latency", key, new LatencyHistogram()));
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter != null) {
+            return counter;
+        }
+        return counters.computeIfAbsent(name, key -> register("Counter", key, new Counter()));
+    }
+
+    /**
+     * Histograms by name, sorted.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Counters by name, sorted.
+     */
+    public Map<String, Counter> getCounters() {
+        return new TreeMap<>(counters);
+    }
+
+    public void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+        counters.values().forEach(Counter::reset);
+    }
+
+    /**
+     * Exposes every metric through the platform MBean server, including
+     * those created later.
+     */
+    public synchronized void registerMBeans() {
+        if (mBeanServer != null) {
+            return;
+        }
+
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        histograms.forEach((name, histogram) -> register("Latency", name, histogram));
+        counters.forEach((name, counter) -> register("Counter", name, counter));
+    }
+
+    private <T> T register(String type, String name, T metric) {
+        MBeanServer server = mBeanServer;
+        if (server == null) {
+            return metric;
+        }
+
+        try {
+            server.registerMBean(metric, new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name));
+        } catch (InstanceAlreadyExistsException e) {
+            // Registered by registerMBeans and on creation at the same time
+        } catch (JMException e) {
+            System.err.println("Error registering metric " + name + ": " + e.getMessage());
+        }
+        return metric;
+    }
+
+    /**
+     * Records the time from its creation to {@link #close}, and the span as
+     * an {@link OperationEvent} if a recording wants it.
+     */
+    public static final class Timer implements AutoCloseable {
+        private final MetricsRegistry registry;
+        private final String operation;
+        private final LatencyHistogram histogram;
+        private final OperationContext context; // Null unless this is the root
+        private final OperationEvent event;
+        private final long start;
+
+        private Timer(MetricsRegistry registry, String operation, LatencyHistogram histogram) {
+            this.registry = registry;
+            this.operation = operation;
+            this.histogram = histogram;
+            this.start = System.nanoTime();
+            this.context = OperationContext.current() == null ? OperationContext.begin(operation, start) : null;
+            this.event = new OperationEvent();
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            long elapsed = System.nanoTime() - start;
+            histogram.record(elapsed);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.rootOperation = currentOperation();
+                event.commit();
+            }
+            if (context != null) {
+                OperationContext.end();
+                SlowOperationLog log = registry.slowOperationLog;
+                if (log != null) {
+                    log.offer(context, elapsed);
+                }
+            }
+        }
+    }
+}
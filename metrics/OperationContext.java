@@ -0,0 +1,196 @@
+package com.chatapp.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What the outermost timed operation on a thread has done so far: each load
+ * and save of a data file with its time and bytes, and the entities it
+ * wrote. Created by the root {@link MetricsRegistry.Timer} and handed to the
+ * {@link SlowOperationLog} if the operation turns out to be slow.
+ *
+ * Lower layers report through the static methods, which do nothing when the
+ * thread is not inside a timed operation. Only the owning thread writes to a
+ * context, so nothing here is synchronized.
+ */
+public class OperationContext {
+    // A delete over a big group can touch thousands; the first few say enough
+    private static final int MAX_ENTITIES = 32;
+    private static final int MAX_STEPS = 64;
+    private static final ThreadLocal<OperationContext> CURRENT = new ThreadLocal<>();
+
+    private final String operation;
+    private final long startedAt;
+    private final List<Step> steps = new ArrayList<>();
+    private Set<String> entities; // Null until something is touched
+    private int entityCount;
+    private int loads;
+    private int saves;
+    private long bytesRead;
+    private long bytesWritten;
+    private long pendingBytes; // Moved by the stream of the step in progress
+
+    /**
+     * One load, save or append of a data file.
+     */
+    public static final class Step {
+        private final String dataset;
+        private final String action;
+        private final int records;
+        private final long bytes;
+        private final long nanos;
+
+        private Step(String dataset, String action, int records, long bytes, long nanos) {
+            this.dataset = dataset;
+            this.action = action;
+            this.records = records;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public String getDataset() {
+            return dataset;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public int getRecords() {
+            return records;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private OperationContext(String operation, long startedAt) {
+        this.operation = operation;
+        this.startedAt = startedAt;
+    }
+
+    /**
+     * The context of the operation running on this thread, or null outside
+     * any.
+     */
+    public static OperationContext current() {
+        return CURRENT.get();
+    }
+
+    // Called by the root Timer only
+    static OperationContext begin(String operation, long startedAt) {
+        OperationContext context = new OperationContext(operation, startedAt);
+        CURRENT.set(context);
+        return context;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Adds bytes read or written by a metered stream to the step in progress.
+     */
+    public static void recordBytes(long bytes, boolean written) {
+        OperationContext context = CURRENT.get();
+        if (context == null) {
+            return;
+        }
+
+        context.pendingBytes += bytes;
+        if (written) {
+            context.bytesWritten += bytes;
+        } else {
+            context.bytesRead += bytes;
+        }
+    }
+
+    /**
+     * Ends a load or save of a data file that started at {@code startNanos}.
+     */
+    public static void recordStep(String dataset, String action, int records, long startNanos) {
+        OperationContext context = CURRENT.get();
+        if (context == null) {
+            return;
+        }
+
+        if (action.equals("load")) {
+            context.loads++;
+        } else {
+            context.saves++;
+        }
+        if (context.steps.size() < MAX_STEPS) {
+            context.steps.add(new Step(dataset, action, records, context.pendingBytes,
+                    System.nanoTime() - startNanos));
+        }
+        context.pendingBytes = 0;
+    }
+
+    /**
+     * Notes that the operation wrote the entity, e.g. {@code "user:alice"}.
+     */
+    public static void touch(String entity) {
+        OperationContext context = CURRENT.get();
+        if (context == null) {
+            return;
+        }
+
+        if (context.entities == null) {
+            context.entities = new LinkedHashSet<>();
+        }
+        if (context.entities.size() < MAX_ENTITIES) {
+            if (context.entities.add(entity)) {
+                context.entityCount++;
+            }
+        } else if (!context.entities.contains(entity)) {
+            context.entityCount++; // Counted, not kept; may count a dropped one twice
+        }
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * The first entities touched, in order; see {@link #getEntityCount}.
+     */
+    public Set<String> getEntities() {
+        return entities == null ? Collections.emptySet() : Collections.unmodifiableSet(entities);
+    }
+
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    public int getLoads() {
+        return loads;
+    }
+
+    public int getSaves() {
+        return saves;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,25 @@
+package com.chatapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one timed service operation, emitted by
+ * {@link MetricsRegistry.Timer}. Allocation samples and I/O events on the
+ * same thread inside its time span belong to it; {@code rootOperation} is the
+ * outermost operation on the thread, i.e. the one the user asked for.
+ */
+@Name("com.chatapp.Operation")
+@Label("Service Operation")
+@Category({"Chat App", "Services"})
+@Description("A call to a public service method")
+public class OperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Root Operation")
+    String rootOperation;
+}
@@ -0,0 +1,77 @@
+package com.chatapp.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.File;
+
+/**
+ * Flight Recorder event for one load or save of a data file, tagged with the
+ * service operation that caused it (see {@link MetricsRegistry#currentOperation}).
+ *
+ * When the event is not enabled in a recording, {@link #start} and
+ * {@code finish} do nothing measurable; the file size is only looked up for
+ * events that will be committed. Either way the load or save is added to
+ * the thread's {@link OperationContext} as a step.
+ */
+@Name("com.chatapp.Persistence")
+@Label("Persistence")
+@Category({"Chat App", "Persistence"})
+@Description("A load or save of a data file")
+public class PersistenceEvent extends Event {
+    @Label("Dataset")
+    @Description("users, groups or messages")
+    String dataset;
+
+    @Label("Action")
+    @Description("load, save or append")
+    String action;
+
+    @Label("Records")
+    int records;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Operation")
+    @Description("The outermost service operation on the thread, if any")
+    String operation;
+
+    // Not recorded; the step's time must not depend on whether JFR is on
+    private transient long startNanos;
+
+    public static PersistenceEvent start(String dataset, String action) {
+        PersistenceEvent event = new PersistenceEvent();
+        event.dataset = dataset;
+        event.action = action;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a load or a full save; the bytes are the file's size afterwards.
+     */
+    public void finish(int records, File file) {
+        finish(records, file, 0);
+    }
+
+    /**
+     * Ends a write that started at {@code lengthBefore} in the file.
+     */
+    public void finish(int records, File file, long lengthBefore) {
+        OperationContext.recordStep(dataset, action, records, startNanos);
+        end();
+        if (shouldCommit()) {
+            this.records = records;
+            this.bytes = Math.max(0, file.length() - lengthBefore);
+            this.operation = MetricsRegistry.currentOperation();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.chatapp.metrics;
+
+import com.chatapp.util.MpscRing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one JSON line for every timed operation that takes longer than the
+ * threshold, with its total time, the loads and saves of data files it
+ * caused (each with its time and bytes) and the entities it wrote:
+ *
+ * <pre>
+ * {"time":"...","operation":"GroupService.deleteGroup","thread":"main","totalMillis":2140.3,
+ *  "loads":3,"saves":3,"bytesRead":...,"bytesWritten":...,"steps":[{"dataset":"groups",
+ *  "action":"load","records":120,"bytes":...,"millis":4.1},...],"entities":["group:..."],"entityCount":1}
+ * </pre>
+ *
+ * Only the root operation on a thread is checked; the calls it makes show
+ * up in its steps. The caller just queues the finished
+ * {@link OperationContext}: formatting and writing happen on a separate
+ * thread, and when the queue is full the record is dropped and counted
+ * rather than making the caller wait.
+ */
+public class SlowOperationLog {
+    private static final int CAPACITY = 1024;
+    private static final int MAX_BATCH = 128;
+
+    private final File file;
+    private final long thresholdNanos;
+    private final MpscRing<Record> queue = new MpscRing<>(CAPACITY);
+    private final Counter logged;
+    private final Counter dropped;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private static final class Record {
+        private final OperationContext context;
+        private final long totalNanos;
+        private final String thread;
+        private final long finishedAt;
+
+        private Record(OperationContext context, long totalNanos, String thread, long finishedAt) {
+            this.context = context;
+            this.totalNanos = totalNanos;
+            this.thread = thread;
+            this.finishedAt = finishedAt;
+        }
+    }
+
+    /**
+     * Appends to the given file; the counters {@code SlowOperationLog.logged}
+     * and {@code SlowOperationLog.dropped} go to the registry.
+     */
+    public SlowOperationLog(File file, long threshold, TimeUnit unit, MetricsRegistry metrics) {
+        this.file = file;
+        this.thresholdNanos = unit.toNanos(threshold);
+        this.logged = metrics.counter("SlowOperationLog.logged");
+        this.dropped = metrics.counter("SlowOperationLog.dropped");
+        this.writerThread = new Thread(this::runWriter, "slow-operation-log");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public long getThresholdNanos() {
+        return thresholdNanos;
+    }
+
+    /**
+     * Queues the operation if it was slow; cheap enough for every call.
+     */
+    void offer(OperationContext context, long totalNanos) {
+        if (totalNanos < thresholdNanos || !running) {
+            return;
+        }
+
+        Record record = new Record(context, totalNanos, Thread.currentThread().getName(), System.currentTimeMillis());
+        if (queue.offer(record)) {
+            LockSupport.unpark(writerThread);
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes out what is queued and stops the writer thread.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder line = new StringBuilder(512);
+        while (true) {
+            // Read the flag first so nothing queued before shutdown is missed
+            boolean stopping = !running;
+            queue.drainTo(batch, MAX_BATCH);
+
+            if (batch.isEmpty()) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+
+            // Opened per batch so the file can be rotated or removed while running
+            try (Writer out = new BufferedWriter(new FileWriter(file, true))) {
+                for (Record record : batch) {
+                    line.setLength(0);
+                    format(record, line);
+                    out.append(line).append('\n');
+                }
+                logged.add(batch.size());
+            } catch (IOException e) {
+                dropped.add(batch.size());
+                System.err.println("Error writing slow operation log: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    private static void format(Record record, StringBuilder line) {
+        OperationContext context = record.context;
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(record.finishedAt)).append('"');
+        line.append(",\"operation\":");
+        appendString(line, context.getOperation());
+        line.append(",\"thread\":");
+        appendString(line, record.thread);
+        line.append(",\"totalMillis\":");
+        appendMillis(line, record.totalNanos);
+        line.append(",\"loads\":").append(context.getLoads());
+        line.append(",\"saves\":").append(context.getSaves());
+        line.append(",\"bytesRead\":").append(context.getBytesRead());
+        line.append(",\"bytesWritten\":").append(context.getBytesWritten());
+
+        line.append(",\"steps\":[");
+        Iterator<OperationContext.Step> steps = context.getSteps().iterator();
+        while (steps.hasNext()) {
+            OperationContext.Step step = steps.next();
+            line.append("{\"dataset\":\"").append(step.getDataset())
+                    .append("\",\"action\":\"").append(step.getAction())
+                    .append("\",\"records\":").append(step.getRecords())
+                    .append(",\"bytes\":").append(step.getBytes())
+                    .append(",\"millis\":");
+            appendMillis(line, step.getNanos());
+            line.append('}');
+            if (steps.hasNext()) {
+                line.append(',');
+            }
+        }
+
+        line.append("],\"entities\":[");
+        Iterator<String> entities = context.getEntities().iterator();
+        while (entities.hasNext()) {
+            appendString(line, entities.next());
+            if (entities.hasNext()) {
+                line.append(',');
+            }
+        }
+        line.append("],\"entityCount\":").append(context.getEntityCount()).append('}');
+    }
+
+    private static void appendMillis(StringBuilder line, long nanos) {
+        long hundredths = nanos / 10_000;
+        line.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
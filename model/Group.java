@@ -1,29 +1,41 @@
 package com.chatapp.model;
 
+import com.chatapp.util.HeapEstimates;
+import com.chatapp.util.IntBitmap;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.ToIntFunction;
 
 public class Group implements Serializable {
+    // Kept as is so data saved by earlier versions still loads; see readObject
     private static final long serialVersionUID = 1L;
     
     private String groupId;
     private String groupName;
     private String adminUsername;
-    private Set<String> members; // Set of usernames
-    private List<JoinRequest> pendingRequests;
+    private int adminId;
+    private IntBitmap members; // User IDs, see User.getUserId()
+    private Map<String, JoinRequest> pendingRequests; // Keyed by requestor, oldest first
     private LocalDateTime creationTime;
+    private long version; // Bumped on every committed update
+    private transient Set<String> legacyMembers; // Usernames, until migrateMembers
     
-    public Group(String groupId, String groupName, String adminUsername) {
+    public Group(String groupId, String groupName, String adminUsername, int adminId) {
         this.groupId = groupId;
         this.groupName = groupName;
         this.adminUsername = adminUsername;
-        this.members = new HashSet<>();
-        this.members.add(adminUsername); // Admin is automatically a member
-        this.pendingRequests = new ArrayList<>();
+        this.adminId = adminId;
+        this.members = new IntBitmap();
+        this.members.add(adminId); // Admin is automatically a member
+        this.pendingRequests = new LinkedHashMap<>();
         this.creationTime = LocalDateTime.now();
     }
 
@@ -43,56 +55,91 @@ public class Group implements Serializable {
         return adminUsername;
     }
     
-    public Set<String> getMembers() {
+    public int getAdminId() {
+        return adminId;
+    }
+    
+    public IntBitmap getMemberIds() {
         return members;
     }
     
-    public boolean isMember(String username) {
-        return members.contains(username);
+    public int getMemberCount() {
+        return members.cardinality();
+    }
+    
+    public boolean isMember(int userId) {
+        return members.contains(userId);
     }
     
     public boolean isAdmin(String username) {
         return adminUsername.equals(username);
     }
     
-    public void addMember(String username) {
-        members.add(username);
+    public void addMember(int userId) {
+        members.add(userId);
     }
     
-    public void removeMember(String username) {
-        if (!isAdmin(username)) {
-            members.remove(username);
+    public void removeMember(int userId) {
+        if (userId != adminId) {
+            members.remove(userId);
         }
     }
     
     public List<JoinRequest> getPendingRequests() {
-        return pendingRequests;
+        return new ArrayList<>(pendingRequests.values());
+    }
+    
+    public JoinRequest getPendingRequest(String username) {
+        return pendingRequests.get(username);
     }
     
+    // Callers check membership, which needs the requestor's user ID
     public void addJoinRequest(JoinRequest request) {
-        if (!isMember(request.getRequestorUsername()) && 
-                !hasPendingRequest(request.getRequestorUsername())) {
-            pendingRequests.add(request);
-        }
+        pendingRequests.putIfAbsent(request.getRequestorUsername(), request);
     }
     
     public boolean hasPendingRequest(String username) {
-        for (JoinRequest request : pendingRequests) {
-            if (request.getRequestorUsername().equals(username)) {
-                return true;
-            }
-        }
-        return false;
+        return pendingRequests.containsKey(username);
     }
     
     public void removeJoinRequest(String username) {
-        pendingRequests.removeIf(request -> request.getRequestorUsername().equals(username));
+        pendingRequests.remove(username);
+    }
+    
+    /**
+     * Turns the member usernames of a group saved before user IDs existed
+     * into IDs. Members whose user is gone are dropped.
+     *
+     * @return false if the group needed no change
+     */
+    public boolean migrateMembers(ToIntFunction<String> userIds) {
+        if (legacyMembers == null) {
+            return false;
+        }
+
+        adminId = userIds.applyAsInt(adminUsername);
+        for (String username : legacyMembers) {
+            int userId = userIds.applyAsInt(username);
+            if (userId >= 0) {
+                members.add(userId);
+            }
+        }
+        legacyMembers = null;
+        return true;
     }
     
     public LocalDateTime getCreationTime() {
         return creationTime;
     }
     
+    public long getVersion() {
+        return version;
+    }
+    
+    public void incrementVersion() {
+        version++;
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
@@ -109,6 +156,49 @@ public class Group implements Serializable {
     @Override
     public String toString() {
         return String.format("Group: %s (ID: %s, Admin: %s, Members: %d)", 
-                groupName, groupId, adminUsername, members.size());
+                groupName, groupId, adminUsername, members.cardinality());
+    }
+
+    // Fields by name, so older layouts load too: members as a set of
+    // usernames, no adminId and join requests as a list
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        groupId = (String) fields.get("groupId", null);
+        groupName = (String) fields.get("groupName", null);
+        adminUsername = (String) fields.get("adminUsername", null);
+        adminId = fields.get("adminId", -1);
+        Object storedMembers = fields.get("members", null);
+        if (storedMembers instanceof IntBitmap) {
+            members = (IntBitmap) storedMembers;
+        } else {
+            members = new IntBitmap();
+            legacyMembers = (Set<String>) storedMembers;
+        }
+        Object storedRequests = fields.get("pendingRequests", null);
+        if (storedRequests instanceof Map) {
+            pendingRequests = (Map<String, JoinRequest>) storedRequests;
+        } else {
+            pendingRequests = new LinkedHashMap<>();
+            if (storedRequests != null) {
+                for (JoinRequest request : (List<JoinRequest>) storedRequests) {
+                    pendingRequests.putIfAbsent(request.getRequestorUsername(), request);
+                }
+            }
+        }
+        creationTime = (LocalDateTime) fields.get("creationTime", null);
+        version = fields.get("version", 0L);
+    }
+
+    // Rough in-memory footprint, for reporting
+    public long estimatedBytes() {
+        long bytes = HeapEstimates.object(6, 12) + HeapEstimates.of(groupId) + HeapEstimates.of(groupName) 
+                + HeapEstimates.of(adminUsername) + members.estimatedBytes() + HeapEstimates.LOCAL_DATE_TIME 
+                + HeapEstimates.HASH_SET;
+        for (Map.Entry<String, JoinRequest> entry : pendingRequests.entrySet()) {
+            bytes += HeapEstimates.LINKED_HASH_ENTRY + HeapEstimates.of(entry.getKey()) 
+                    + entry.getValue().estimatedBytes();
+        }
+        return bytes;
     }
 }
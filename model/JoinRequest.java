@@ -1,5 +1,7 @@
 package com.chatapp.model;
 
+import com.chatapp.util.HeapEstimates;
+
 import java.io.Serializable;
 import java.time.LocalDateTime;
 
@@ -52,4 +54,10 @@ public class JoinRequest implements Serializable {
         return String.format("Join Request from %s for group %s at %s", 
                 requestorUsername, groupId, requestTime);
     }
+
+    // Rough in-memory footprint, for reporting
+    public long estimatedBytes() {
+        return HeapEstimates.object(4, 0) + HeapEstimates.of(requestId) + HeapEstimates.of(groupId) 
+                + HeapEstimates.of(requestorUsername) + HeapEstimates.LOCAL_DATE_TIME;
+    }
 }
@@ -1,11 +1,14 @@
 package com.chatapp.model;
 
+import com.chatapp.util.HeapEstimates;
+
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class Message implements Serializable, Comparable<Message> {
     private static final long serialVersionUID = 1L;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     
     private String messageId;
     private String senderId;
@@ -13,14 +16,38 @@ public class Message implements Serializable, Comparable<Message> {
     private String content;
     private LocalDateTime timestamp;
     private boolean isGroupMessage;
+    private long sequence; // Position in its conversation, counting from 1
+    private String idempotencyKey; // Supplied by the sending client, may be null
     
-    public Message(String messageId, String senderId, String receiverId, String content, boolean isGroupMessage) {
+    public Message(String messageId, String senderId, String receiverId, String content, 
+            boolean isGroupMessage, long sequence) {
+        this(messageId, senderId, receiverId, content, isGroupMessage, sequence, null);
+    }
+
+    public Message(String messageId, String senderId, String receiverId, String content, 
+            boolean isGroupMessage, long sequence, String idempotencyKey) {
+        this(messageId, senderId, receiverId, content, LocalDateTime.now(), isGroupMessage, sequence, idempotencyKey);
+    }
+
+    private Message(String messageId, String senderId, String receiverId, String content, 
+            LocalDateTime timestamp, boolean isGroupMessage, long sequence, String idempotencyKey) {
         this.messageId = messageId;
         this.senderId = senderId;
         this.receiverId = receiverId;
         this.content = content;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
         this.isGroupMessage = isGroupMessage;
+        this.sequence = sequence;
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    /**
+     * Conversation key shared by both directions of a direct chat.
+     */
+    public static String directConversationId(String username, String otherUsername) {
+        return username.compareTo(otherUsername) < 0 
+                ? username + ":" + otherUsername 
+                : otherUsername + ":" + username;
     }
 
     public String getMessageId() {
@@ -47,9 +74,30 @@ public class Message implements Serializable, Comparable<Message> {
         return isGroupMessage;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public String getConversationId() {
+        return isGroupMessage ? receiverId : directConversationId(senderId, receiverId);
+    }
+
+    // Copy for numbering messages stored before sequences existed
+    public Message withSequence(long sequence) {
+        return withSequence(sequence, timestamp);
+    }
+
+    // Copy as stored: numbered, and stamped with the time it was stored
+    public Message withSequence(long sequence, LocalDateTime timestamp) {
+        return new Message(messageId, senderId, receiverId, content, timestamp, isGroupMessage, sequence, idempotencyKey);
+    }
+
     public String getFormattedTimestamp() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return timestamp.format(formatter);
+        return timestamp.format(TIMESTAMP_FORMAT);
     }
     
     @Override
@@ -77,4 +125,11 @@ public class Message implements Serializable, Comparable<Message> {
     public int hashCode() {
         return messageId.hashCode();
     }
+
+    // Rough in-memory footprint, for reporting
+    public long estimatedBytes() {
+        return HeapEstimates.object(6, 9) + HeapEstimates.of(messageId) + HeapEstimates.of(senderId) 
+                + HeapEstimates.of(receiverId) + HeapEstimates.of(content) + HeapEstimates.of(idempotencyKey) 
+                + HeapEstimates.LOCAL_DATE_TIME;
+    }
 }
@@ -0,0 +1,57 @@
+package com.chatapp.model;
+
+/**
+ * A message not sent yet, as handed to {@code MessageService.sendBatch}.
+ */
+public class MessageDraft {
+    private final String senderId;
+    private final String receiverId; // A user or a group
+    private final String content;
+    private final boolean isGroupMessage;
+    private final String idempotencyKey;
+
+    private MessageDraft(String senderId, String receiverId, String content, boolean isGroupMessage, 
+            String idempotencyKey) {
+        this.senderId = senderId;
+        this.receiverId = receiverId;
+        this.content = content;
+        this.isGroupMessage = isGroupMessage;
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public static MessageDraft direct(String senderId, String receiverId, String content) {
+        return new MessageDraft(senderId, receiverId, content, false, null);
+    }
+
+    public static MessageDraft group(String senderId, String groupId, String content) {
+        return new MessageDraft(senderId, groupId, content, true, null);
+    }
+
+    /**
+     * Same draft with a client key; resending it within the dedup window
+     * returns the message stored the first time.
+     */
+    public MessageDraft withIdempotencyKey(String idempotencyKey) {
+        return new MessageDraft(senderId, receiverId, content, isGroupMessage, idempotencyKey);
+    }
+
+    public String getSenderId() {
+        return senderId;
+    }
+
+    public String getReceiverId() {
+        return receiverId;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public boolean isGroupMessage() {
+        return isGroupMessage;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+}
@@ -0,0 +1,59 @@
+package com.chatapp.model;
+
+/**
+ * Outcome of one draft in a batch send.
+ */
+public class SendResult {
+
+    public enum Status {
+        SENT,      // Stored; the message is available
+        DUPLICATE, // Idempotency key seen before; the message is the original
+        INVALID    // Not stored; the error says why
+    }
+
+    private final Status status;
+    private final Message message;
+    private final String error;
+
+    private SendResult(Status status, Message message, String error) {
+        this.status = status;
+        this.message = message;
+        this.error = error;
+    }
+
+    public static SendResult sent(Message message) {
+        return new SendResult(Status.SENT, message, null);
+    }
+
+    public static SendResult duplicate(Message original) {
+        return new SendResult(Status.DUPLICATE, original, null);
+    }
+
+    public static SendResult invalid(String error) {
+        return new SendResult(Status.INVALID, null, error);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // A duplicate counts as sent: the message exists, just not twice
+    public boolean isSent() {
+        return status != Status.INVALID;
+    }
+
+    // Null if invalid
+    public Message getMessage() {
+        return message;
+    }
+
+    // Null if sent
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return isSent() ? status + " " + message.getMessageId() : "INVALID: " + error;
+    }
+}
@@ -1,31 +1,47 @@
 package com.chatapp.model;
 
+import com.chatapp.util.HeapEstimates;
+import com.chatapp.util.ReadMarkers;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.io.Serializable;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class User implements Serializable {
+    // Kept as is so data saved by earlier versions still loads; see readObject
     private static final long serialVersionUID = 2L; // Updated version number
 
+    /**
+     * User ID of a user saved before IDs existed, until one is assigned.
+     */
+    public static final int NO_USER_ID = -1;
+
     private String username;
     private String password;
-    private List<String> groupIds; // Groups the user belongs to
+    private int userId; // Dense ID used in group membership bitmaps
+    private Set<String> groupIds; // Groups the user belongs to
     private Set<String> contacts; // Users this user has chatted with
-    private Map<String, LocalDateTime> lastReadTimes; // Last read time for each contact
-    private Map<String, LocalDateTime> lastReadGroupTimes; // Last read time for each group
+    private ReadMarkers readMarkers; // Last sequence read in each conversation
+    private long version; // Bumped on every committed update
+    private transient Map<String, LocalDateTime> legacyReadTimes; // By conversation, until migrated
 
-    public User(String username, String password) {
+    public User(String username, String password, int userId) {
         this.username = username;
         this.password = password;
-        this.groupIds = new ArrayList<>();
+        this.userId = userId;
+        this.groupIds = new LinkedHashSet<>();
         this.contacts = new HashSet<>();
-        this.lastReadTimes = new HashMap<>();
-        this.lastReadGroupTimes = new HashMap<>();
+        this.readMarkers = new ReadMarkers();
     }
 
     // Getters and setters
@@ -45,18 +61,31 @@ public class User implements Serializable {
         this.password = password;
     }
 
-    public List<String> getGroupIds() {
-        return groupIds;
+    public int getUserId() {
+        return userId;
     }
 
-    public void addGroup(String groupId) {
-        if (!groupIds.contains(groupId)) {
-            groupIds.add(groupId);
+    /**
+     * Gives a user loaded from older data its ID.
+     */
+    public void assignUserId(int userId) {
+        if (this.userId != NO_USER_ID) {
+            throw new IllegalStateException(username + " already has user ID " + this.userId);
         }
+        this.userId = userId;
+    }
+
+    public Set<String> getGroupIds() {
+        return Collections.unmodifiableSet(groupIds);
+    }
+
+    public void addGroup(String groupId) {
+        groupIds.add(groupId);
     }
 
     public void removeGroup(String groupId) {
         groupIds.remove(groupId);
+        readMarkers.remove(groupId);
     }
 
     public Set<String> getContacts() {
@@ -67,20 +96,44 @@ public class User implements Serializable {
         contacts.add(username);
     }
 
-    public LocalDateTime getLastReadTime(String contactUsername) {
-        return lastReadTimes.get(contactUsername);
+    /**
+     * Sequence number of the last message read in a conversation (a group ID
+     * or {@link Message#directConversationId}), 0 if never read.
+     */
+    public long getLastReadSequence(String conversationId) {
+        return readMarkers.get(conversationId);
     }
 
-    public void updateLastReadTime(String contactUsername) {
-        lastReadTimes.put(contactUsername, LocalDateTime.now());
+    public void markRead(String conversationId, long sequence) {
+        readMarkers.advance(conversationId, sequence);
     }
 
-    public LocalDateTime getLastReadGroupTime(String groupId) {
-        return lastReadGroupTimes.get(groupId);
+    /**
+     * Forgets the marker of a conversation whose messages were deleted, as
+     * its numbering starts over.
+     */
+    public void clearReadMarker(String conversationId) {
+        readMarkers.remove(conversationId);
     }
 
-    public void updateLastReadGroupTime(String groupId) {
-        lastReadGroupTimes.put(groupId, LocalDateTime.now());
+    /**
+     * Last read time per conversation ID of a user saved before read
+     * markers existed; empty once they are turned into markers.
+     */
+    public Map<String, LocalDateTime> getLegacyReadTimes() {
+        return legacyReadTimes != null ? Collections.unmodifiableMap(legacyReadTimes) : Collections.emptyMap();
+    }
+
+    public void clearLegacyReadTimes() {
+        legacyReadTimes = null;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void incrementVersion() {
+        version++;
     }
 
     public boolean isPasswordCorrect(String attemptedPassword) {
@@ -104,4 +157,45 @@ public class User implements Serializable {
     public String toString() {
         return "User: " + username;
     }
-}
\ No newline at end of file
+
+    // Fields by name, so older layouts load too: no userId, groupIds stored
+    // as a list and read times instead of read markers
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        username = (String) fields.get("username", null);
+        password = (String) fields.get("password", null);
+        userId = fields.defaulted("userId") ? NO_USER_ID : fields.get("userId", NO_USER_ID);
+        groupIds = new LinkedHashSet<>((Collection<String>) fields.get("groupIds", List.of()));
+        contacts = (Set<String>) fields.get("contacts", null);
+        if (contacts == null) {
+            contacts = new HashSet<>();
+        }
+        readMarkers = (ReadMarkers) fields.get("readMarkers", null);
+        if (readMarkers == null) {
+            readMarkers = new ReadMarkers();
+        }
+        version = fields.get("version", 0L);
+
+        ObjectStreamClass stored = fields.getObjectStreamClass();
+        if (stored.getField("lastReadTimes") != null) {
+            legacyReadTimes = new HashMap<>();
+            Map<String, LocalDateTime> byContact = (Map<String, LocalDateTime>) fields.get("lastReadTimes", null);
+            if (byContact != null) {
+                byContact.forEach((contact, time) -> 
+                        legacyReadTimes.put(Message.directConversationId(username, contact), time));
+            }
+            Map<String, LocalDateTime> byGroup = (Map<String, LocalDateTime>) fields.get("lastReadGroupTimes", null);
+            if (byGroup != null) {
+                legacyReadTimes.putAll(byGroup);
+            }
+        }
+    }
+
+    // Rough in-memory footprint, for reporting
+    public long estimatedBytes() {
+        return HeapEstimates.object(5, 12) + HeapEstimates.of(username) + HeapEstimates.of(password) 
+                + HeapEstimates.hashSetOf(groupIds, true) + HeapEstimates.hashSetOf(contacts, false) 
+                + readMarkers.estimatedBytes();
+    }
+}
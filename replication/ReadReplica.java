@@ -0,0 +1,218 @@
+package com.chatapp.replication;
+
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.util.ConversationIndex;
+import com.chatapp.util.DataPersistence;
+import com.chatapp.util.GroupNameIndex;
+import com.chatapp.util.TrigramIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.SequenceInputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of the data kept by a {@link ReplicationFollower}: chat
+ * history and user and group search, answered from the same kinds of
+ * in-memory indexes the services use on the primary.
+ *
+ * Only the follower's thread applies changes. A saved users or groups file
+ * (a whole-file write on the primary too) is decoded into fresh indexes that
+ * replace the old ones in one step, so a query sees either the old data or
+ * the new; appended messages go straight into the conversation index.
+ * Like on the primary, only the latest messages of each conversation are
+ * held in memory; older history is read from the follower's copy of the
+ * message file, only the chunks holding that conversation.
+ */
+public class ReadReplica {
+    private static final int CONVERSATION_WINDOW = 1000; // Same as the primary's
+    // What an append to a non-empty file lacks to be read on its own
+    private static final byte[] STREAM_HEADER = {
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION};
+
+    private final DataPersistence files;
+    private volatile ConversationIndex conversationIndex;
+    private volatile TrigramIndex usernameIndex = new TrigramIndex();
+    private volatile GroupNameIndex groupNameIndex = new GroupNameIndex();
+    private volatile Map<String, Group> groups = new HashMap<>();
+    private volatile int userCount;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    /**
+     * @param files the follower's copy of the primary's data files
+     */
+    public ReadReplica(DataPersistence files) {
+        this.files = files;
+        this.conversationIndex = newConversationIndex();
+    }
+
+    public List<Message> getDirectMessagesBetweenUsers(String user1, String user2) {
+        MetricsRegistry.Timer timer = metrics.time("ReadReplica.getDirectMessagesBetweenUsers");
+        try {
+            return conversationIndex.getAll(Message.directConversationId(user1, user2));
+        } finally {
+            timer.close();
+        }
+    }
+
+    public List<Message> getGroupMessages(String groupId) {
+        MetricsRegistry.Timer timer = metrics.time("ReadReplica.getGroupMessages");
+        try {
+            return conversationIndex.getAll(groupId);
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Same as {@link com.chatapp.service.MessageService#getMessagesBetween}.
+     */
+    public List<Message> getMessagesBetween(String conversationId, LocalDateTime from, LocalDateTime to) {
+        MetricsRegistry.Timer timer = metrics.time("ReadReplica.getMessagesBetween");
+        try {
+            return conversationIndex.getBetween(conversationId, from, to);
+        } finally {
+            timer.close();
+        }
+    }
+
+    public List<String> searchUsers(String searchTerm, int limit) {
+        MetricsRegistry.Timer timer = metrics.time("ReadReplica.searchUsers");
+        try {
+            return usernameIndex.search(searchTerm, limit);
+        } finally {
+            timer.close();
+        }
+    }
+
+    public List<Group> searchGroups(String searchTerm, GroupNameIndex.SortOrder order, int page, int pageSize) {
+        MetricsRegistry.Timer timer = metrics.time("ReadReplica.searchGroups");
+        try {
+            Map<String, Group> current = groups;
+            List<Group> result = new ArrayList<>();
+            for (String groupId : groupNameIndex.search(searchTerm, order, page, pageSize)) {
+                Group group = current.get(groupId);
+                if (group != null) {
+                    result.add(group);
+                }
+            }
+            return result;
+        } finally {
+            timer.close();
+        }
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public int getConversationCount() {
+        return conversationIndex.getConversationCount();
+    }
+
+    /**
+     * Replaces a dataset with the whole contents of its file.
+     */
+    @SuppressWarnings("unchecked")
+    void load(String dataset, byte[] file) throws IOException {
+        switch (dataset) {
+            case "users": {
+                Map<String, User> users = file.length == 0 ? new HashMap<>() : (Map<String, User>) decode(file);
+                TrigramIndex index = new TrigramIndex();
+                for (String username : users.keySet()) {
+                    index.add(username, username);
+                }
+                usernameIndex = index;
+                userCount = users.size();
+                break;
+            }
+            case "groups": {
+                Map<String, Group> loaded = file.length == 0 ? new HashMap<>() : (Map<String, Group>) decode(file);
+                groupNameIndex = indexGroups(loaded, conversationIndex);
+                groups = loaded;
+                break;
+            }
+            case "messages": {
+                ConversationIndex index = newConversationIndex();
+                for (Message message : decodeMessages(new ByteArrayInputStream(file))) {
+                    index.add(message);
+                }
+                conversationIndex = index;
+                // Group activity comes from the messages
+                groupNameIndex = indexGroups(groups, index);
+                break;
+            }
+            default:
+                throw new IOException("Unknown dataset: " + dataset);
+        }
+    }
+
+    /**
+     * Adds a chunk of messages appended to the messages file at the offset.
+     */
+    void appendMessages(long offset, byte[] bytes) throws IOException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (offset > 0) {
+            in = new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), in);
+        }
+
+        ConversationIndex index = conversationIndex;
+        GroupNameIndex names = groupNameIndex;
+        for (Message message : decodeMessages(in)) {
+            index.add(message);
+            if (message.isGroupMessage()) {
+                names.recordActivity(message.getReceiverId(), message.getTimestamp());
+            }
+        }
+    }
+
+    // History older than the index holds comes from the replicated files,
+    // reading only the conversation's chunks
+    private ConversationIndex newConversationIndex() {
+        return new ConversationIndex(CONVERSATION_WINDOW, files::loadConversation);
+    }
+
+    private static GroupNameIndex indexGroups(Map<String, Group> groups, ConversationIndex messages) {
+        GroupNameIndex index = new GroupNameIndex();
+        for (Group group : groups.values()) {
+            index.add(group);
+            LocalDateTime latest = messages.getLatestTimestamp(group.getGroupId());
+            if (latest != null) {
+                index.recordActivity(group.getGroupId(), latest);
+            }
+        }
+        return index;
+    }
+
+    // The bytes come off the network, so only data classes are let through
+    private static Object decode(byte[] file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(file))) {
+            in.setObjectInputFilter(DataPersistence.DATA_CLASSES);
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // A damaged last chunk ends the messages, as it does on the primary
+    private static List<Message> decodeMessages(InputStream bytes) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        DataPersistence.readChunks(bytes, messages);
+        return messages;
+    }
+}
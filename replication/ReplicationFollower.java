@@ -0,0 +1,171 @@
+package com.chatapp.replication;
+
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.util.DataPersistence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a {@link ReplicationPrimary}: replays each write into its own data
+ * directory, so it holds a copy of the primary's files, and applies it to a
+ * {@link ReadReplica} for queries.
+ *
+ * The time from a write being shipped to it being applied here goes to the
+ * {@code Replication.lag} histogram. If the connection drops, or a write
+ * turns out to be missing, it reconnects and starts over from the primary's
+ * current files.
+ */
+public class ReplicationFollower implements AutoCloseable {
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataPersistence dataPersistence;
+    private final ReadReplica replica;
+    private final int port;
+    private final byte[] secret;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean running = true;
+    private volatile boolean connected;
+    private volatile long appliedSequence;
+    private volatile long primarySequence;
+    private volatile long lagMillis;
+
+    /**
+     * Starts following the primary listening on the given local port, which
+     * must have been given the same secret.
+     */
+    public ReplicationFollower(DataPersistence dataPersistence, ReadReplica replica, int port, byte[] secret) {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("The replication secret must not be empty");
+        }
+        this.dataPersistence = dataPersistence;
+        this.replica = replica;
+        this.port = port;
+        this.secret = secret.clone();
+        this.thread = new Thread(this::run, "replication-follower");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Writes the primary has made that are not applied here yet, as of its
+     * last heartbeat.
+     */
+    public long getRecordsBehind() {
+        return Math.max(0, primarySequence - appliedSequence);
+    }
+
+    /**
+     * How long the last applied write took to get here; 0 once a heartbeat
+     * shows nothing is outstanding.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            try (Socket current = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket = current;
+                ReplicationHandshake.asFollower(current, secret);
+                // Sequences start over if the primary was restarted
+                primarySequence = 0;
+                appliedSequence = 0;
+                connected = true;
+                follow(new DataInputStream(new BufferedInputStream(current.getInputStream(), BUFFER_SIZE)));
+            } catch (EOFException e) {
+                System.err.println("Primary closed the replication stream");
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication interrupted: " + e.getMessage());
+                }
+            } finally {
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(DataInputStream in) throws IOException {
+        boolean copied = false; // Whether the initial file copies have come
+        while (running) {
+            ReplicationRecord record = ReplicationRecord.readFrom(in);
+            primarySequence = Math.max(primarySequence, record.sequence);
+            if (record.type == ReplicationRecord.HEARTBEAT) {
+                if (record.sequence <= appliedSequence) {
+                    lagMillis = 0;
+                }
+                continue;
+            }
+
+            if (record.type == ReplicationRecord.SNAPSHOT) {
+                copied = true;
+            } else if (!copied || record.sequence != appliedSequence + 1) {
+                // Applying it would leave the files different from the
+                // primary's; starting over fetches fresh copies
+                throw new IOException("Expected replication record " + (appliedSequence + 1) 
+                        + " but got " + record.sequence);
+            }
+
+            apply(record);
+            appliedSequence = record.sequence;
+            lagMillis = Math.max(0, System.currentTimeMillis() - record.sentAt);
+            metrics.histogram("Replication.lag").record(TimeUnit.MILLISECONDS.toNanos(lagMillis));
+            metrics.counter("Replication.applied").increment();
+        }
+    }
+
+    private void apply(ReplicationRecord record) throws IOException {
+        MetricsRegistry.Timer timer = metrics.time("ReplicationFollower.apply");
+        try {
+            long lengthBefore = dataPersistence.getFileSizes().get(record.dataset);
+            dataPersistence.applyWrite(record.dataset, record.action, record.offset, record.bytes);
+
+            if (record.action.equals("save")) {
+                replica.load(record.dataset, record.bytes);
+            } else if (lengthBefore == record.offset) {
+                replica.appendMessages(record.offset, record.bytes);
+            } else {
+                // Overlaps a write the initial copy already had part of
+                replica.load(record.dataset, dataPersistence.readFile(record.dataset));
+            }
+        } finally {
+            timer.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.chatapp.replication;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Mutual challenge-response run when a follower connects, so only a process
+ * holding the shared secret can receive the data or feed it to a follower.
+ *
+ * Each side sends a fresh random challenge and answers the other's with an
+ * HMAC-SHA256 over both challenges and its role; the secret itself never
+ * crosses the socket and an answer can't be replayed on another connection.
+ */
+final class ReplicationHandshake {
+    private static final int MAGIC = 0x43524550; // "CREP"
+    private static final int CHALLENGE_BYTES = 32;
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ReplicationHandshake() {
+    }
+
+    /**
+     * @throws IOException if the follower doesn't know the secret
+     */
+    static void asPrimary(Socket socket, byte[] secret) throws IOException {
+        run(socket, secret, 'P', 'F', true);
+    }
+
+    /**
+     * @throws IOException if the primary doesn't know the secret
+     */
+    static void asFollower(Socket socket, byte[] secret) throws IOException {
+        run(socket, secret, 'F', 'P', false);
+    }
+
+    // The primary speaks first; a peer that says nothing times out
+    private static void run(Socket socket, byte[] secret, char role, char peerRole, boolean first)
+            throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            RANDOM.nextBytes(challenge);
+            byte[] peerChallenge = new byte[CHALLENGE_BYTES];
+            if (first) {
+                sendChallenge(out, challenge);
+                readChallenge(in, peerChallenge);
+            } else {
+                readChallenge(in, peerChallenge);
+                sendChallenge(out, challenge);
+            }
+
+            // Answer the peer's challenge, then check its answer to ours
+            out.write(answer(secret, role, peerChallenge, challenge));
+            out.flush();
+            byte[] expected = answer(secret, peerRole, challenge, peerChallenge);
+            byte[] peerAnswer = new byte[expected.length];
+            in.readFully(peerAnswer);
+            if (!MessageDigest.isEqual(peerAnswer, expected)) {
+                throw new IOException("Replication handshake failed: the other side has a different secret");
+            }
+        } finally {
+            try {
+                socket.setSoTimeout(timeout);
+            } catch (SocketException e) {
+                // Socket already closed; the caller finds out on its own
+            }
+        }
+    }
+
+    private static void sendChallenge(DataOutputStream out, byte[] challenge) throws IOException {
+        out.writeInt(MAGIC);
+        out.write(challenge);
+        out.flush();
+    }
+
+    private static void readChallenge(DataInputStream in, byte[] challenge) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Replication handshake failed: not a replication peer");
+        }
+        in.readFully(challenge);
+    }
+
+    // HMAC of the answering side's role, the challenge answered and the
+    // answering side's own challenge
+    private static byte[] answer(byte[] secret, char role, byte[] challenge, byte[] ownChallenge)
+            throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update((byte) role);
+            mac.update(challenge);
+            mac.update(ownChallenge);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Replication handshake failed: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.chatapp.replication;
+
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.util.DataPersistence;
+import com.chatapp.util.MpscRing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ships every write to the data files to followers connected over a local
+ * socket.
+ *
+ * The writes are physical: the exact bytes {@link DataPersistence} put in a
+ * file, numbered in the order they completed. A new follower first gets the
+ * current contents of each file and then every write after that. Each
+ * follower has its own bounded queue drained by its own thread, so a slow
+ * follower never holds up the writers; one that falls a full queue behind is
+ * disconnected, and starts over from the files when it reconnects.
+ */
+public class ReplicationPrimary implements DataPersistence.WriteListener, AutoCloseable {
+    private static final String[] DATASETS = {"users", "groups", "messages"};
+    private static final int FOLLOWER_QUEUE_CAPACITY = 4096;
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataPersistence dataPersistence;
+    private final byte[] secret;
+    private final ServerSocket serverSocket;
+    private final List<FollowerSession> sessions = new CopyOnWriteArrayList<>();
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private long sequence; // Guarded by this
+    private volatile boolean running = true;
+
+    /**
+     * Listens on the loopback interface; port 0 picks a free one, see
+     * {@link #getPort}. Only followers holding the same secret are served,
+     * see {@link ReplicationHandshake}.
+     */
+    public ReplicationPrimary(DataPersistence dataPersistence, int port, byte[] secret) throws IOException {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("The replication secret must not be empty");
+        }
+        this.dataPersistence = dataPersistence;
+        this.secret = secret.clone();
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        dataPersistence.setWriteListener(this);
+
+        startDaemon(this::acceptFollowers, "replication-accept");
+        startDaemon(this::sendHeartbeats, "replication-heartbeat");
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getFollowerCount() {
+        return sessions.size();
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public synchronized void written(String dataset, String action, long offset, byte[] bytes) {
+        ReplicationRecord record = ReplicationRecord.write(
+                ++sequence, System.currentTimeMillis(), dataset, action, offset, bytes);
+        metrics.counter("Replication.records").increment();
+        metrics.counter("Replication.bytes").add(bytes.length);
+        for (FollowerSession session : sessions) {
+            session.send(record);
+        }
+    }
+
+    /**
+     * Stops accepting followers and disconnects the current ones; writes are
+     * no longer shipped.
+     */
+    @Override
+    public void close() {
+        running = false;
+        dataPersistence.setWriteListener(null);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        sessions.forEach(FollowerSession::close);
+    }
+
+    private void acceptFollowers() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting follower: " + e.getMessage());
+                }
+                continue;
+            }
+
+            try {
+                ReplicationHandshake.asPrimary(socket, secret);
+                FollowerSession session = new FollowerSession(socket);
+                // Under the lock so no write falls between the copy and the stream
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+                    for (String dataset : DATASETS) {
+                        session.send(ReplicationRecord.snapshot(sequence, now, dataset, dataPersistence.readFile(dataset)));
+                    }
+                    sessions.add(session);
+                }
+                startDaemon(session::run, "replication-sender-" + socket.getPort());
+            } catch (IOException e) {
+                System.err.println("Error starting follower: " + e.getMessage());
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void sendHeartbeats() {
+        while (running) {
+            ReplicationRecord heartbeat;
+            synchronized (this) {
+                heartbeat = ReplicationRecord.heartbeat(sequence, System.currentTimeMillis());
+                for (FollowerSession session : sessions) {
+                    session.send(heartbeat);
+                }
+            }
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private final class FollowerSession {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final MpscRing<ReplicationRecord> queue = new MpscRing<>(FOLLOWER_QUEUE_CAPACITY);
+        private volatile Thread sender;
+        private volatile boolean open = true;
+
+        private FollowerSession(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+
+        void send(ReplicationRecord record) {
+            if (!open) {
+                return;
+            }
+            if (!queue.offer(record)) {
+                System.err.println("Follower " + socket.getRemoteSocketAddress() + " fell behind; disconnecting");
+                metrics.counter("Replication.droppedFollowers").increment();
+                close();
+                return;
+            }
+            Thread thread = sender;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void run() {
+            sender = Thread.currentThread();
+            try {
+                while (open) {
+                    ReplicationRecord record = queue.poll();
+                    if (record == null) {
+                        out.flush();
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    record.writeTo(out);
+                }
+            } catch (IOException e) {
+                if (open) {
+                    System.err.println("Lost follower " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            open = false;
+            sessions.remove(this);
+            closeQuietly(socket);
+            Thread thread = sender;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.chatapp.replication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One frame of the replication stream: a write to a data file, as reported
+ * by {@link com.chatapp.util.DataPersistence.WriteListener}; a copy of a
+ * whole file, sent when a follower connects and carrying the sequence number
+ * it is current as of; or a heartbeat carrying the primary's latest sequence
+ * number so a follower can tell how far behind it is.
+ *
+ * On the wire: type, sequence and send time, then for a write or copy the
+ * dataset, action, offset and the bytes, length first.
+ */
+final class ReplicationRecord {
+    static final byte WRITE = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte SNAPSHOT = 3;
+
+    private static final int MAX_BYTES = 1 << 30;
+
+    final byte type;
+    final long sequence;
+    final long sentAt; // Primary's clock, millis
+    final String dataset;
+    final String action;
+    final long offset;
+    final byte[] bytes;
+
+    private ReplicationRecord(byte type, long sequence, long sentAt, String dataset, String action,
+            long offset, byte[] bytes) {
+        this.type = type;
+        this.sequence = sequence;
+        this.sentAt = sentAt;
+        this.dataset = dataset;
+        this.action = action;
+        this.offset = offset;
+        this.bytes = bytes;
+    }
+
+    static ReplicationRecord write(long sequence, long sentAt, String dataset, String action,
+            long offset, byte[] bytes) {
+        return new ReplicationRecord(WRITE, sequence, sentAt, dataset, action, offset, bytes);
+    }
+
+    static ReplicationRecord snapshot(long sequence, long sentAt, String dataset, byte[] bytes) {
+        return new ReplicationRecord(SNAPSHOT, sequence, sentAt, dataset, "save", 0, bytes);
+    }
+
+    static ReplicationRecord heartbeat(long sequence, long sentAt) {
+        return new ReplicationRecord(HEARTBEAT, sequence, sentAt, null, null, 0, null);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeLong(sentAt);
+        if (type != HEARTBEAT) {
+            out.writeUTF(dataset);
+            out.writeUTF(action);
+            out.writeLong(offset);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static ReplicationRecord readFrom(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        long sentAt = in.readLong();
+        if (type == HEARTBEAT) {
+            return heartbeat(sequence, sentAt);
+        }
+        if (type != WRITE && type != SNAPSHOT) {
+            throw new IOException("Unknown replication record type " + type);
+        }
+
+        String dataset = in.readUTF();
+        String action = in.readUTF();
+        long offset = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_BYTES) {
+            throw new IOException("Bad replication record length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new ReplicationRecord(type, sequence, sentAt, dataset, action, offset, bytes);
+    }
+}
@@ -0,0 +1,180 @@
+package com.chatapp.service;
+
+import com.chatapp.model.Group;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.UnitOfWork;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes the logged-in account together with everything that hangs off it:
+ * the user's direct messages, the groups they administer (with their
+ * messages and every member's reference to them), their membership in
+ * other groups and the join requests they are still waiting on.
+ *
+ * The work is planned up front from a single read of users and groups, then
+ * executed as one unit of work, so each dataset is rewritten exactly once
+ * regardless of how many groups are involved.
+ */
+public class AccountDeletionCascade {
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final DataStore dataPersistence;
+    private final UserService userService;
+    private final GroupService groupService;
+    private final MessageService messageService;
+
+    public interface ProgressListener {
+        void onProgress(String stage, int completed, int total);
+    }
+
+    public static class Plan {
+        private final String username;
+        private final List<Group> groupsToDelete;
+        private final List<Group> groupsToLeave;
+        private final List<Group> requestsToWithdraw;
+
+        private Plan(String username, List<Group> groupsToDelete, List<Group> groupsToLeave, 
+                List<Group> requestsToWithdraw) {
+            this.username = username;
+            this.groupsToDelete = groupsToDelete;
+            this.groupsToLeave = groupsToLeave;
+            this.requestsToWithdraw = requestsToWithdraw;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public List<Group> getGroupsToDelete() {
+            return Collections.unmodifiableList(groupsToDelete);
+        }
+
+        public List<Group> getGroupsToLeave() {
+            return Collections.unmodifiableList(groupsToLeave);
+        }
+
+        // Groups holding a join request from this account
+        public List<Group> getRequestsToWithdraw() {
+            return Collections.unmodifiableList(requestsToWithdraw);
+        }
+
+        // Other users who lose a group because this account administers it
+        public int getAffectedMemberCount() {
+            int count = 0;
+            for (Group group : groupsToDelete) {
+                count += group.getMemberCount() - 1;
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Delete %s: %d group(s) to delete, %d group(s) to leave, "
+                    + "%d join request(s) to withdraw, %d member(s) affected",
+                    username, groupsToDelete.size(), groupsToLeave.size(), requestsToWithdraw.size(), 
+                    getAffectedMemberCount());
+        }
+    }
+
+    public AccountDeletionCascade(DataStore dataPersistence, UserService userService,
+            GroupService groupService, MessageService messageService) {
+        this.dataPersistence = dataPersistence;
+        this.userService = userService;
+        this.groupService = groupService;
+        this.messageService = messageService;
+    }
+
+    /**
+     * Works out what deleting the current account touches. Returns null if
+     * nobody is logged in.
+     */
+    public Plan plan() {
+        if (!userService.isLoggedIn()) {
+            return null;
+        }
+
+        String username = userService.getCurrentUsername();
+        List<Group> groupsToDelete = new ArrayList<>();
+        List<Group> groupsToLeave = new ArrayList<>();
+
+        for (Group group : groupService.getUserGroups(username)) {
+            if (group.isAdmin(username)) {
+                groupsToDelete.add(group);
+            } else if (groupService.isMember(group, username)) {
+                groupsToLeave.add(group);
+            }
+        }
+
+        List<Group> requestsToWithdraw = new ArrayList<>();
+        for (Group group : groupService.getGroupsRequestedBy(username)) {
+            if (group.hasPendingRequest(username)) {
+                requestsToWithdraw.add(group);
+            }
+        }
+
+        return new Plan(username, groupsToDelete, groupsToLeave, requestsToWithdraw);
+    }
+
+    public boolean deleteCurrentAccount(ProgressListener listener) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            Plan plan = plan();
+            if (plan == null) {
+                return false;
+            }
+
+            if (execute(plan, listener)) {
+                return true;
+            }
+            // A group changed after planning; plan again from fresh data
+        }
+        return false;
+    }
+
+    /**
+     * Stages the whole plan into one unit of work and commits it.
+     *
+     * @return false if a planned group was changed by someone else in the
+     *         meantime; nothing is written in that case
+     */
+    public boolean execute(Plan plan, ProgressListener listener) {
+        UnitOfWork unitOfWork = new UnitOfWork(dataPersistence);
+        String username = plan.getUsername();
+        int total = plan.groupsToDelete.size() + plan.groupsToLeave.size() + plan.requestsToWithdraw.size();
+        int completed = 0;
+
+        messageService.deleteUserMessages(username, unitOfWork);
+        messageService.deleteGroupMessages(
+                plan.groupsToDelete.stream().map(Group::getGroupId).collect(Collectors.toList()),
+                unitOfWork);
+
+        for (Group group : plan.groupsToDelete) {
+            groupService.stageGroupDeletion(group, unitOfWork);
+            listener.onProgress("Planning group deletions", ++completed, total);
+        }
+
+        for (Group group : plan.groupsToLeave) {
+            groupService.stageMemberRemoval(group, username, unitOfWork);
+            listener.onProgress("Planning group exits", ++completed, total);
+        }
+
+        for (Group group : plan.requestsToWithdraw) {
+            groupService.stageJoinRequestWithdrawal(group, username, unitOfWork);
+            listener.onProgress("Planning join request withdrawals", ++completed, total);
+        }
+
+        if (!userService.deleteAccount(unitOfWork)) {
+            return false;
+        }
+
+        listener.onProgress("Writing changes", 0, 1);
+        boolean committed = unitOfWork.commit();
+        if (committed) {
+            listener.onProgress("Writing changes", 1, 1);
+        }
+        return committed;
+    }
+}
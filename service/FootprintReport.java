@@ -0,0 +1,158 @@
+package com.chatapp.service;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.HeapEstimates;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Admin report of where memory and disk go: records, bytes on disk and
+ * estimated heap per dataset, the largest conversations and groups, and
+ * index sizes.
+ *
+ * Runs alongside normal traffic: nothing is locked for the whole walk.
+ * Users and groups are read from disk the same way the services read them.
+ * Messages are counted from the message service's running totals, not
+ * reloaded; their heap figure covers only the history held in memory and
+ * is estimated from a sample of it.
+ */
+public class FootprintReport {
+    private static final int MESSAGE_SAMPLE_SIZE = 2000;
+
+    private final DataStore dataPersistence;
+    private final UserService userService;
+    private final GroupService groupService;
+    private final MessageService messageService;
+    private final Random random = new Random();
+
+    public FootprintReport(DataStore dataPersistence, UserService userService,
+            GroupService groupService, MessageService messageService) {
+        this.dataPersistence = dataPersistence;
+        this.userService = userService;
+        this.groupService = groupService;
+        this.messageService = messageService;
+    }
+
+    /**
+     * The report as lines of text, listing the {@code top} largest
+     * conversations and groups.
+     */
+    public List<String> generate(int top) {
+        List<String> lines = new ArrayList<>();
+        Map<String, Long> fileSizes = dataPersistence.getFileSizes();
+
+        Map<String, User> users = dataPersistence.loadUsers();
+        long userBytes = 0;
+        for (User user : users.values()) {
+            userBytes += user.estimatedBytes();
+        }
+
+        Map<String, Group> groups = dataPersistence.loadGroups();
+        long groupBytes = 0;
+        for (Group group : groups.values()) {
+            groupBytes += group.estimatedBytes();
+        }
+
+        Map<String, Long> messageCounts = messageService.getMessageCounts();
+        long messageCount = 0;
+        for (long count : messageCounts.values()) {
+            messageCount += count;
+        }
+
+        // Each conversation's timeline costs something even when short
+        Map<String, Integer> conversationSizes = messageService.getConversationSizes();
+        long heldMessages = 0;
+        long timelineBytes = 0;
+        for (Map.Entry<String, Integer> entry : conversationSizes.entrySet()) {
+            heldMessages += entry.getValue();
+            timelineBytes += HeapEstimates.HASH_ENTRY + HeapEstimates.of(entry.getKey()) 
+                    + HeapEstimates.object(1, 4) + 16;
+        }
+        List<Message> sample = messageService.sampleMessages(MESSAGE_SAMPLE_SIZE, random);
+        double bytesPerMessage = 0;
+        for (Message message : sample) {
+            bytesPerMessage += message.estimatedBytes();
+        }
+        bytesPerMessage = sample.isEmpty() ? 0 : bytesPerMessage / sample.size() + HeapEstimates.REFERENCE;
+
+        lines.add(String.format("%-10s %12s %12s %14s", "Dataset", "Records", "On disk", "Est. heap"));
+        lines.add(String.format("%-10s %12d %12s %14s", "users", users.size(), 
+                formatBytes(fileSizes.get("users")), formatBytes(userBytes)));
+        lines.add(String.format("%-10s %12d %12s %14s", "groups", groups.size(), 
+                formatBytes(fileSizes.get("groups")), formatBytes(groupBytes)));
+        lines.add(String.format("%-10s %12d %12s %14s", "messages", messageCount, 
+                formatBytes(fileSizes.get("messages")), 
+                "~" + formatBytes((long) (bytesPerMessage * heldMessages) + timelineBytes)));
+        if (!sample.isEmpty()) {
+            lines.add(String.format("(message heap for the %d held in memory, from a sample of %d, about %.0f bytes each)", 
+                    heldMessages, sample.size(), bytesPerMessage));
+        }
+
+        lines.add("");
+        lines.add("Largest conversations:");
+        List<Map.Entry<String, Long>> conversations = new ArrayList<>(messageCounts.entrySet());
+        conversations.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> entry : conversations.subList(0, Math.min(top, conversations.size()))) {
+            int held = conversationSizes.getOrDefault(entry.getKey(), 0);
+            lines.add(String.format("  %-40s %10d msgs %12s", 
+                    conversationName(entry.getKey(), groups), entry.getValue(), 
+                    "~" + formatBytes((long) (bytesPerMessage * held))));
+        }
+
+        lines.add("");
+        lines.add("Largest groups:");
+        List<Group> largestGroups = new ArrayList<>(groups.values());
+        largestGroups.sort(Comparator.comparingLong(Group::estimatedBytes).reversed());
+        for (Group group : largestGroups.subList(0, Math.min(top, largestGroups.size()))) {
+            lines.add(String.format("  %-30s %8d members %6d pending %12s", truncate(group.getGroupName(), 30), 
+                    group.getMemberCount(), group.getPendingRequests().size(), formatBytes(group.estimatedBytes())));
+        }
+
+        lines.add("");
+        lines.add("Index sizes (entries):");
+        addIndexSizes(lines, "users", userService.getIndexSizes());
+        addIndexSizes(lines, "groups", groupService.getIndexSizes());
+        addIndexSizes(lines, "messages", messageService.getIndexSizes());
+        return lines;
+    }
+
+    private static void addIndexSizes(List<String> lines, String owner, Map<String, Integer> sizes) {
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+            lines.add(String.format("  %-10s %-24s %10d", owner, entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static String conversationName(String conversationId, Map<String, Group> groups) {
+        Group group = groups.get(conversationId);
+        if (group != null) {
+            return truncate("group " + group.getGroupName(), 40);
+        }
+        // Who talks to whom is nobody's business, admins included
+        return "direct conversation";
+    }
+
+    private static String truncate(String text, int width) {
+        return text.length() <= width ? text : text.substring(0, width - 3) + "...";
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+}
@@ -1,217 +1,594 @@
 package com.chatapp.service;
 
 import com.chatapp.exception.GroupNotFoundException;
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.metrics.OperationContext;
 import com.chatapp.model.Group;
 import com.chatapp.model.JoinRequest;
-import com.chatapp.model.User;
-import com.chatapp.util.DataPersistence;
-
+import com.chatapp.util.AdminInbox;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.GroupNameIndex;
+import com.chatapp.util.LruCache;
+import com.chatapp.util.MembershipIndex;
+import com.chatapp.util.UnitOfWork;
+
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class GroupService {
-    private final DataPersistence dataPersistence;
+    private static final int MAX_UPDATE_ATTEMPTS = 16;
+    public static final int SEARCH_PAGE_SIZE = 50;
+    private static final int GROUP_CACHE_SIZE = 1024;
+
+    private final DataStore dataPersistence;
     private final UserService userService;
+    private final GroupNameIndex groupNameIndex;
+    private final MembershipIndex membershipIndex;
+    private final AdminInbox adminInbox;
+    private final LruCache<String, Group> groupCache;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
     
-    public GroupService(DataPersistence dataPersistence, UserService userService) {
+    public GroupService(DataStore dataPersistence, UserService userService) {
         this.dataPersistence = dataPersistence;
         this.userService = userService;
+        this.groupNameIndex = new GroupNameIndex();
+        this.membershipIndex = new MembershipIndex();
+        this.adminInbox = new AdminInbox();
+        this.groupCache = new LruCache<>(GROUP_CACHE_SIZE);
+
+        Map<String, Group> groups = dataPersistence.loadGroups();
+        boolean migrated = false;
+        for (Group group : groups.values()) {
+            // Groups saved before user IDs existed list members by name
+            migrated |= group.migrateMembers(userService::getUserId);
+            groupNameIndex.add(group);
+            membershipIndex.addGroup(group);
+            for (JoinRequest request : group.getPendingRequests()) {
+                adminInbox.add(group.getAdminUsername(), request);
+            }
+        }
+        if (migrated) {
+            dataPersistence.saveGroups(groups);
+        }
     }
 
     public Group createGroup(String groupName, String adminUsername) {
-        String groupId = UUID.randomUUID().toString();
-        Group group = new Group(groupId, groupName, adminUsername);
-        
-        // Save group
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        groups.put(groupId, group);
-        dataPersistence.saveGroups(groups);
-        
-        // Add group to user's group list
-        User admin = userService.getUserByUsername(adminUsername);
-        if (admin != null) {
-            admin.addGroup(groupId);
-            userService.saveUser(admin);
+        MetricsRegistry.Timer timer = metrics.time("GroupService.createGroup");
+        try {
+            int adminId = userService.getUserId(adminUsername);
+            if (adminId < 0) {
+                return null;
+            }
+
+            String groupId = UUID.randomUUID().toString();
+            Group group = new Group(groupId, groupName, adminUsername, adminId);
+
+            // Save group
+            dataPersistence.saveGroup(group);
+            OperationContext.touch("group:" + groupId);
+            groupNameIndex.add(group);
+            membershipIndex.addGroup(group);
+
+            // Add group to user's group list
+            userService.updateUserWithRetry(adminUsername, admin -> admin.addGroup(groupId));
+
+            return group;
+        } finally {
+            timer.close();
         }
-        
-        return group;
     }
 
     public Group getGroupById(String groupId) throws GroupNotFoundException {
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        Group group = groups.get(groupId);
-        
-        if (group == null) {
-            throw new GroupNotFoundException("Group with ID " + groupId + " not found.");
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getGroupById");
+        try {
+            Group group = groupCache.get(groupId);
+            if (group != null) {
+                return group;
+            }
+
+            group = dataPersistence.loadGroups(List.of(groupId)).get(groupId);
+
+            if (group == null) {
+                throw new GroupNotFoundException("Group with ID " + groupId + " not found.");
+            }
+
+            groupCache.put(groupId, group);
+            return group;
+        } finally {
+            timer.close();
         }
-        
-        return group;
     }
 
+    /**
+     * The user's groups, from the membership index and the group cache;
+     * groups.dat is only read if some of them are not cached.
+     */
     public List<Group> getUserGroups(String username) {
-        User user = userService.getUserByUsername(username);
-        if (user == null) {
-            return new ArrayList<>();
-        }
-        
-        List<String> groupIds = user.getGroupIds();
-        Map<String, Group> allGroups = dataPersistence.loadGroups();
-        
-        return groupIds.stream()
-                .filter(allGroups::containsKey)
-                .map(allGroups::get)
-                .collect(Collectors.toList());
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getUserGroups");
+        try {
+            int userId = userService.getUserId(username);
+            if (userId < 0) {
+                return new ArrayList<>();
+            }
+
+            return resolveGroups(membershipIndex.getGroupIds(userId));
+        } finally {
+            timer.close();
+        }
     }
 
+    /**
+     * IDs of the user's groups straight from the membership index, without
+     * reading any group.
+     */
+    public List<String> getUserGroupIds(String username) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getUserGroupIds");
+        try {
+            int userId = userService.getUserId(username);
+            if (userId < 0) {
+                return new ArrayList<>();
+            }
+
+            return membershipIndex.getGroupIds(userId);
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * The first {@link #SEARCH_PAGE_SIZE} matches, best first; use the paged
+     * variant to get the rest.
+     */
     public List<Group> searchGroups(String searchTerm) {
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        
-        return groups.values().stream()
-                .filter(g -> g.getGroupName().toLowerCase().contains(searchTerm.toLowerCase()))
-                .collect(Collectors.toList());
+        return searchGroups(searchTerm, GroupNameIndex.SortOrder.RELEVANCE, 0, SEARCH_PAGE_SIZE);
     }
 
-    public boolean requestToJoinGroup(String groupId, String username) throws GroupNotFoundException {
-        Group group = getGroupById(groupId);
-        
-        // Check if user is already a member
-        if (group.isMember(username)) {
-            return false;
+    /**
+     * One page of groups whose name contains the search term. Matching and
+     * ordering run on the in-memory index; only the page is resolved.
+     */
+    public List<Group> searchGroups(String searchTerm, GroupNameIndex.SortOrder order, int page, int pageSize) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.searchGroups");
+        try {
+            List<String> groupIds = groupNameIndex.search(searchTerm, order, page, pageSize);
+            if (groupIds.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            return resolveGroups(groupIds);
+        } finally {
+            timer.close();
         }
+    }
 
-        if (group.hasPendingRequest(username)) {
-            return false;
+    public boolean renameGroup(String groupId, String newName, String adminUsername) 
+            throws GroupNotFoundException {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.renameGroup");
+        try {
+            boolean renamed = updateGroupWithRetry(groupId,
+                    group -> group.isAdmin(adminUsername),
+                    group -> group.setGroupName(newName));
+            if (renamed) {
+                groupNameIndex.rename(groupId, newName);
+            }
+            return renamed;
+        } finally {
+            timer.close();
         }
+    }
 
-        String requestId = UUID.randomUUID().toString();
-        JoinRequest request = new JoinRequest(requestId, groupId, username);
-        group.addJoinRequest(request);
+    /**
+     * Marks the group as active now, for ordering search results by activity.
+     */
+    public void recordActivity(String groupId) {
+        recordActivity(groupId, LocalDateTime.now());
+    }
 
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        groups.put(groupId, group);
-        dataPersistence.saveGroups(groups);
-        
-        return true;
+    /**
+     * Marks the group as active at the given time, unless it already was
+     * later; e.g. from its latest stored message at startup.
+     */
+    public void recordActivity(String groupId, LocalDateTime time) {
+        groupNameIndex.recordActivity(groupId, time);
+    }
+
+    public boolean requestToJoinGroup(String groupId, String username) throws GroupNotFoundException {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.requestToJoinGroup");
+        try {
+            String requestId = UUID.randomUUID().toString();
+            JoinRequest request = new JoinRequest(requestId, groupId, username);
+
+            // Members and users with a pending request can't ask again
+            return commitWithRetry(groupId,
+                    group -> !isMember(group, username) && !group.hasPendingRequest(username),
+                    (group, unitOfWork) -> {
+                        unitOfWork.updateGroup(groupId, group.getVersion(), g -> g.addJoinRequest(request));
+                        evictOnCommit(unitOfWork, groupId);
+                        unitOfWork.onCommit(() -> adminInbox.add(group.getAdminUsername(), request));
+                    });
+        } finally {
+            timer.close();
+        }
     }
     
 
     public boolean acceptJoinRequest(String groupId, String requestorUsername, String adminUsername) 
             throws GroupNotFoundException {
-        Group group = getGroupById(groupId);
-
-        if (!group.isAdmin(adminUsername)) {
-            return false;
+        MetricsRegistry.Timer timer = metrics.time("GroupService.acceptJoinRequest");
+        try {
+            // Group and user changes land together: one write of each dataset
+            return commitWithRetry(groupId,
+                    group -> canRespond(group, requestorUsername, adminUsername, true),
+                    (group, unitOfWork) -> stageJoinResponse(group, requestorUsername, true, unitOfWork));
+        } finally {
+            timer.close();
         }
+    }
 
-        if (!group.hasPendingRequest(requestorUsername)) {
-            return false;
+    public boolean rejectJoinRequest(String groupId, String requestorUsername, String adminUsername) 
+            throws GroupNotFoundException {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.rejectJoinRequest");
+        try {
+            return commitWithRetry(groupId,
+                    group -> canRespond(group, requestorUsername, adminUsername, false),
+                    (group, unitOfWork) -> stageJoinResponse(group, requestorUsername, false, unitOfWork));
+        } finally {
+            timer.close();
         }
+    }
 
-        group.removeJoinRequest(requestorUsername);
-        group.addMember(requestorUsername);
-        
-        // Save updated group
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        groups.put(groupId, group);
-        dataPersistence.saveGroups(groups);
-        
-        // Add group to user's group list
-        User user = userService.getUserByUsername(requestorUsername);
-        if (user != null) {
-            user.addGroup(groupId);
-            userService.saveUser(user);
+    /**
+     * Every pending request in all groups run by the admin, oldest first.
+     */
+    public List<JoinRequest> getAdminInbox(String adminUsername) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getAdminInbox");
+        try {
+            return adminInbox.get(adminUsername);
+        } finally {
+            timer.close();
         }
-        
-        return true;
     }
 
-    public boolean rejectJoinRequest(String groupId, String requestorUsername, String adminUsername) 
-            throws GroupNotFoundException {
-        Group group = getGroupById(groupId);
+    /**
+     * Accepts several requests, possibly across groups, in one write of
+     * groups and one of users. Requests that are no longer pending or not
+     * answerable by this admin are skipped.
+     *
+     * @return the number of requests accepted
+     */
+    public int acceptJoinRequests(String adminUsername, List<JoinRequest> requests) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.acceptJoinRequests");
+        try {
+            return respondToJoinRequests(adminUsername, requests, true);
+        } finally {
+            timer.close();
+        }
+    }
 
-        if (!group.isAdmin(adminUsername)) {
-            return false;
+    /**
+     * Rejects several requests in one write of groups.
+     *
+     * @return the number of requests rejected
+     */
+    public int rejectJoinRequests(String adminUsername, List<JoinRequest> requests) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.rejectJoinRequests");
+        try {
+            return respondToJoinRequests(adminUsername, requests, false);
+        } finally {
+            timer.close();
         }
+    }
 
-        if (!group.hasPendingRequest(requestorUsername)) {
-            return false;
+    public boolean removeMemberFromGroup(String groupId, String memberUsername, String adminUsername) 
+            throws GroupNotFoundException {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.removeMemberFromGroup");
+        try {
+            return commitWithRetry(groupId,
+                    group -> group.isAdmin(adminUsername) 
+                            && !group.isAdmin(memberUsername) 
+                            && isMember(group, memberUsername),
+                    (group, unitOfWork) -> stageMemberRemoval(group, memberUsername, unitOfWork));
+        } finally {
+            timer.close();
         }
+    }
 
-        group.removeJoinRequest(requestorUsername);
+    public boolean leaveGroup(String groupId, String username) throws GroupNotFoundException {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.leaveGroup");
+        try {
+            return commitWithRetry(groupId,
+                    group -> canLeave(group, username),
+                    (group, unitOfWork) -> stageMemberRemoval(group, username, unitOfWork));
+        } finally {
+            timer.close();
+        }
+    }
 
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        groups.put(groupId, group);
-        dataPersistence.saveGroups(groups);
-        
-        return true;
+    public boolean deleteGroup(String groupId, String adminUsername) throws GroupNotFoundException {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.deleteGroup");
+        try {
+            return commitWithRetry(groupId,
+                    group -> group.isAdmin(adminUsername),
+                    this::stageGroupDeletion);
+        } finally {
+            timer.close();
+        }
     }
 
-    public boolean removeMemberFromGroup(String groupId, String memberUsername, String adminUsername) 
+    
+
+    public List<JoinRequest> getPendingJoinRequests(String groupId, String adminUsername) 
             throws GroupNotFoundException {
-        Group group = getGroupById(groupId);
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getPendingJoinRequests");
+        try {
+            Group group = getGroupById(groupId);
 
-        if (!group.isAdmin(adminUsername)) {
-            return false;
-        }
+            // Check if user is admin
+            if (!group.isAdmin(adminUsername)) {
+                return new ArrayList<>();
+            }
 
-        if (group.isAdmin(memberUsername)) {
-            return false;
+            return new ArrayList<>(group.getPendingRequests());
+        } finally {
+            timer.close();
         }
+    }
 
-        if (!group.isMember(memberUsername)) {
-            return false;
+    /**
+     * Compare-and-set update: the mutator runs against the stored group only if
+     * nobody has committed a change since the caller read {@code expectedVersion}.
+     */
+    public boolean updateGroup(String groupId, long expectedVersion, Consumer<Group> mutator) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.updateGroup");
+        try {
+            boolean applied = dataPersistence.compareAndSetGroup(groupId, expectedVersion, mutator);
+            // Either way the cached copy is no longer the latest
+            groupCache.remove(groupId);
+            return applied;
+        } finally {
+            timer.close();
         }
+    }
 
-        group.removeMember(memberUsername);
+    /**
+     * Entries in each in-memory index, for footprint reports.
+     */
+    public Map<String, Integer> getIndexSizes() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("group name index", groupNameIndex.size());
+        sizes.put("pending requests", adminInbox.size());
+        sizes.put("cached groups", groupCache.size());
+        return sizes;
+    }
 
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        groups.put(groupId, group);
-        dataPersistence.saveGroups(groups);
+    public boolean isMember(Group group, String username) {
+        int userId = userService.getUserId(username);
+        return userId >= 0 && group.isMember(userId);
+    }
 
-        User user = userService.getUserByUsername(memberUsername);
-        if (user != null) {
-            user.removeGroup(groupId);
-            userService.saveUser(user);
+    /**
+     * Usernames of the group's members, in the order they registered.
+     */
+    public List<String> getMemberUsernames(Group group) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getMemberUsernames");
+        try {
+            List<String> usernames = new ArrayList<>(group.getMemberCount());
+            group.getMemberIds().forEach(userId -> {
+                String username = userService.getUsernameById(userId);
+                if (username != null) {
+                    usernames.add(username);
+                }
+            });
+            return usernames;
+        } finally {
+            timer.close();
         }
-        
-        return true;
     }
 
-    public boolean deleteGroup(String groupId, String adminUsername) throws GroupNotFoundException {
-        Group group = getGroupById(groupId);
+    /**
+     * Groups both users belong to, from an intersection of their membership
+     * bitmaps.
+     */
+    public List<Group> getSharedGroups(String username, String otherUsername) {
+        MetricsRegistry.Timer timer = metrics.time("GroupService.getSharedGroups");
+        try {
+            List<String> groupIds = membershipIndex.getSharedGroupIds(
+                    userService.getUserId(username), userService.getUserId(otherUsername));
+            if (groupIds.isEmpty()) {
+                return new ArrayList<>();
+            }
 
-        if (!group.isAdmin(adminUsername)) {
-            return false;
+            return resolveGroups(groupIds);
+        } finally {
+            timer.close();
         }
+    }
 
-        for (String memberUsername : group.getMembers()) {
-            User member = userService.getUserByUsername(memberUsername);
-            if (member != null) {
-                member.removeGroup(groupId);
-                userService.saveUser(member);
+    // Cached groups first, then a single read for whatever is missing
+    private List<Group> resolveGroups(List<String> groupIds) {
+        Map<String, Group> resolved = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String groupId : groupIds) {
+            Group group = groupCache.get(groupId);
+            if (group != null) {
+                resolved.put(groupId, group);
+            } else {
+                missing.add(groupId);
             }
         }
 
-        Map<String, Group> groups = dataPersistence.loadGroups();
-        groups.remove(groupId);
-        dataPersistence.saveGroups(groups);
-        
-        return true;
+        if (!missing.isEmpty()) {
+            Map<String, Group> groups = dataPersistence.loadGroups(missing);
+            for (String groupId : missing) {
+                Group group = groups.get(groupId);
+                if (group != null) {
+                    resolved.put(groupId, group);
+                    groupCache.put(groupId, group);
+                }
+            }
+        }
+
+        return groupIds.stream()
+                .filter(resolved::containsKey)
+                .map(resolved::get)
+                .collect(Collectors.toList());
     }
-    
 
-    public List<JoinRequest> getPendingJoinRequests(String groupId, String adminUsername) 
+    // Cached copies are replaced by a fresh read once the change is written
+    private void evictOnCommit(UnitOfWork unitOfWork, String groupId) {
+        unitOfWork.onCommit(() -> groupCache.remove(groupId));
+    }
+
+    private int respondToJoinRequests(String adminUsername, List<JoinRequest> requests, boolean accept) {
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            Map<String, Group> groups = dataPersistence.loadGroups(requests.stream()
+                    .map(JoinRequest::getGroupId)
+                    .collect(Collectors.toSet()));
+            UnitOfWork unitOfWork = new UnitOfWork(dataPersistence);
+            int handled = 0;
+
+            for (JoinRequest request : new LinkedHashSet<>(requests)) {
+                Group group = groups.get(request.getGroupId());
+                String requestorUsername = request.getRequestorUsername();
+                if (group != null && canRespond(group, requestorUsername, adminUsername, accept)) {
+                    stageJoinResponse(group, requestorUsername, accept, unitOfWork);
+                    handled++;
+                }
+            }
+
+            if (handled == 0 || unitOfWork.commit()) {
+                return handled;
+            }
+            requests.forEach(request -> groupCache.remove(request.getGroupId()));
+        }
+        return 0;
+    }
+
+    private boolean canRespond(Group group, String requestorUsername, String adminUsername, boolean accept) {
+        return group.isAdmin(adminUsername) 
+                && group.hasPendingRequest(requestorUsername)
+                && (!accept || userService.getUserId(requestorUsername) >= 0);
+    }
+
+    private void stageJoinResponse(Group group, String requestorUsername, boolean accept, UnitOfWork unitOfWork) {
+        String groupId = group.getGroupId();
+        JoinRequest request = group.getPendingRequest(requestorUsername);
+        evictOnCommit(unitOfWork, groupId);
+
+        if (!accept) {
+            unitOfWork.updateGroup(groupId, group.getVersion(), g -> g.removeJoinRequest(requestorUsername));
+            unitOfWork.onCommit(() -> adminInbox.remove(group.getAdminUsername(), request));
+            return;
+        }
+
+        int requestorId = userService.getUserId(requestorUsername);
+        unitOfWork.updateGroup(groupId, group.getVersion(), g -> {
+            g.removeJoinRequest(requestorUsername);
+            g.addMember(requestorId);
+        });
+        userService.updateUser(unitOfWork, requestorUsername, user -> user.addGroup(groupId));
+        unitOfWork.onCommit(() -> {
+            groupNameIndex.adjustMemberCount(groupId, 1);
+            membershipIndex.add(requestorId, groupId);
+            adminInbox.remove(group.getAdminUsername(), request);
+        });
+    }
+
+    // The admin can't leave, only delete the group
+    private boolean canLeave(Group group, String username) {
+        return isMember(group, username) && !group.isAdmin(username);
+    }
+
+    void stageMemberRemoval(Group group, String username, UnitOfWork unitOfWork) {
+        String groupId = group.getGroupId();
+        int userId = userService.getUserId(username);
+        unitOfWork.updateGroup(groupId, group.getVersion(), g -> g.removeMember(userId));
+        evictOnCommit(unitOfWork, groupId);
+        userService.updateUser(unitOfWork, username, user -> user.removeGroup(groupId));
+        unitOfWork.onCommit(() -> {
+            groupNameIndex.adjustMemberCount(groupId, -1);
+            membershipIndex.remove(userId, groupId);
+        });
+    }
+
+    /**
+     * Groups the user has asked to join and not had an answer from.
+     */
+    List<Group> getGroupsRequestedBy(String username) {
+        return resolveGroups(adminInbox.getByRequestor(username).stream()
+                .map(JoinRequest::getGroupId)
+                .distinct()
+                .collect(Collectors.toList()));
+    }
+
+    void stageJoinRequestWithdrawal(Group group, String username, UnitOfWork unitOfWork) {
+        String groupId = group.getGroupId();
+        JoinRequest request = group.getPendingRequest(username);
+        unitOfWork.updateGroup(groupId, group.getVersion(), g -> g.removeJoinRequest(username));
+        evictOnCommit(unitOfWork, groupId);
+        unitOfWork.onCommit(() -> adminInbox.remove(group.getAdminUsername(), request));
+    }
+
+    void stageGroupDeletion(Group group, UnitOfWork unitOfWork) {
+        String groupId = group.getGroupId();
+        for (String memberUsername : getMemberUsernames(group)) {
+            userService.updateUser(unitOfWork, memberUsername, member -> member.removeGroup(groupId));
+        }
+        unitOfWork.removeGroup(groupId, group.getVersion());
+        evictOnCommit(unitOfWork, groupId);
+        unitOfWork.onCommit(() -> {
+            groupNameIndex.remove(groupId);
+            membershipIndex.removeGroup(group);
+            adminInbox.removeGroup(group.getAdminUsername(), groupId);
+        });
+    }
+
+    /**
+     * Retries a commutative update against a fresh copy whenever another writer
+     * got in first. The precondition is re-checked on every attempt, so a change
+     * that is no longer valid (request already handled, member already gone)
+     * returns false instead of being applied twice.
+     */
+    private boolean updateGroupWithRetry(String groupId, Predicate<Group> precondition, Consumer<Group> mutator)
             throws GroupNotFoundException {
-        Group group = getGroupById(groupId);
-        
-        // Check if user is admin
-        if (!group.isAdmin(adminUsername)) {
-            return new ArrayList<>();
-        }
-        
-        return new ArrayList<>(group.getPendingRequests());
+        return commitWithRetry(groupId, precondition,
+                (group, unitOfWork) -> {
+                    unitOfWork.updateGroup(groupId, group.getVersion(), mutator);
+                    evictOnCommit(unitOfWork, groupId);
+                });
+    }
+
+    /**
+     * Like {@link #updateGroupWithRetry} but for changes spanning several
+     * datasets. Each attempt stages into a fresh unit of work that is checked
+     * against the version of the group it was built from.
+     */
+    private boolean commitWithRetry(String groupId, Predicate<Group> precondition,
+            BiConsumer<Group, UnitOfWork> changes) throws GroupNotFoundException {
+        for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+            Group group = getGroupById(groupId);
+            if (!precondition.test(group)) {
+                return false;
+            }
+
+            UnitOfWork unitOfWork = new UnitOfWork(dataPersistence);
+            changes.accept(group, unitOfWork);
+            if (unitOfWork.commit()) {
+                return true;
+            }
+            // Lost a race; make sure the next attempt sees the latest copy
+            groupCache.remove(groupId);
+        }
+        return false;
     }
 }
@@ -1,95 +1,1000 @@
 package com.chatapp.service;
 
+import com.chatapp.exception.GroupNotFoundException;
+import com.chatapp.exception.RateLimitExceededException;
+import com.chatapp.exception.SendRejectedException;
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.model.Group;
 import com.chatapp.model.Message;
-import com.chatapp.util.DataPersistence;
+import com.chatapp.model.MessageDraft;
+import com.chatapp.model.SendResult;
+import com.chatapp.model.User;
+import com.chatapp.util.ConversationIndex;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.DedupCache;
+import com.chatapp.util.InboxRing;
+import com.chatapp.util.RateLimiter;
+import com.chatapp.util.SequenceSet;
+import com.chatapp.util.UnitOfWork;
 
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 public class MessageService {
-    private final DataPersistence dataPersistence;
+    private static final int DEFAULT_FAN_OUT_THRESHOLD = 500;
+    private static final int INBOX_CAPACITY = 256;
+    private static final int CONVERSATION_WINDOW = 1000; // Latest messages kept in memory per conversation
+    private static final int DEFAULT_SEND_QUEUE_CAPACITY = 4096;
+    private static final long DEDUP_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    private static final int DEDUP_CAPACITY = 100_000;
+    private static final double DEFAULT_SENDER_RATE = 5; // Messages per second
+    private static final int DEFAULT_SENDER_BURST = 20;
+    private static final double DEFAULT_GROUP_RATE = 50;
+    private static final int DEFAULT_GROUP_BURST = 200;
+
+    public enum DeliveryMode {
+        FAN_OUT_ON_READ,  // Unread group messages are found by scanning the history
+        FAN_OUT_ON_WRITE  // Each send also drops a pointer into every member's inbox
+    }
+
+    private final DataStore dataPersistence;
+    private final GroupService groupService;
+    private final Map<Integer, InboxRing> inboxes; // Keyed by user ID
+    private final Map<String, Long> undeliveredSequences; // Latest not fanned out, per group
+    private final Map<String, AtomicLong> headSequences; // Latest sequence per conversation
+    // Numbers up to the head with no stored message: failed writes and
+    // messages of deleted users
+    private final Map<String, SequenceSet> missingSequences;
+    // Per conversation and sender, what they sent after their read marker
+    private final Map<String, Map<String, SequenceSet>> ownSequences;
+    private final Map<String, Set<String>> directPartners; // Who each user has direct messages with
+    private final ConversationIndex conversationIndex;
+    private final Lock messageLock; // The store's, see DataStore#getMessageLock
+    private volatile DeliveryMode deliveryMode;
+    private volatile int fanOutThreshold;
+    private final SendPipeline sendPipeline;
+    private final DedupCache<Message> sentByIdempotencyKey;
+    private final RateLimiter senderLimiter;
+    private final RateLimiter groupLimiter;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
     
-    public MessageService(DataPersistence dataPersistence) {
+    public MessageService(DataStore dataPersistence, GroupService groupService) {
+        this(dataPersistence, groupService, DEFAULT_SEND_QUEUE_CAPACITY, SendPipeline.OverflowPolicy.BLOCK);
+    }
+
+    public MessageService(DataStore dataPersistence, GroupService groupService, 
+            int sendQueueCapacity, SendPipeline.OverflowPolicy overflowPolicy) {
         this.dataPersistence = dataPersistence;
+        this.groupService = groupService;
+        this.inboxes = new ConcurrentHashMap<>();
+        this.undeliveredSequences = new ConcurrentHashMap<>();
+        this.headSequences = new ConcurrentHashMap<>();
+        this.missingSequences = new ConcurrentHashMap<>();
+        this.ownSequences = new ConcurrentHashMap<>();
+        this.directPartners = new ConcurrentHashMap<>();
+        this.conversationIndex = new ConversationIndex(CONVERSATION_WINDOW, this::loadConversation);
+        this.messageLock = dataPersistence.getMessageLock();
+        this.deliveryMode = DeliveryMode.FAN_OUT_ON_READ;
+        this.fanOutThreshold = DEFAULT_FAN_OUT_THRESHOLD;
+        this.sentByIdempotencyKey = new DedupCache<>(DEDUP_WINDOW_MILLIS, DEDUP_CAPACITY);
+        this.senderLimiter = new RateLimiter(DEFAULT_SENDER_RATE, DEFAULT_SENDER_BURST);
+        this.groupLimiter = new RateLimiter(DEFAULT_GROUP_RATE, DEFAULT_GROUP_BURST);
+
+        Map<String, SequenceSet> storedSequences = new HashMap<>();
+        for (Message message : numberedMessages()) {
+            conversationIndex.add(message);
+            // Keys still inside the window come back from the message log
+            String dedupKey = dedupKey(message);
+            if (dedupKey != null) {
+                long sentAt = message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                sentByIdempotencyKey.putIfAbsent(dedupKey, message, sentAt);
+            }
+
+            headSequences.computeIfAbsent(message.getConversationId(), id -> new AtomicLong())
+                    .accumulateAndGet(message.getSequence(), Math::max);
+            storedSequences.computeIfAbsent(message.getConversationId(), id -> new SequenceSet())
+                    .add(message.getSequence());
+            ownSequences(message.getConversationId(), message.getSenderId()).add(message.getSequence());
+            if (message.isGroupMessage()) {
+                // Search by recent activity starts from the stored history
+                groupService.recordActivity(message.getReceiverId(), message.getTimestamp());
+            } else {
+                addPartners(message.getSenderId(), message.getReceiverId());
+            }
+        }
+        storedSequences.forEach((conversationId, stored) -> {
+            SequenceSet missing = stored.missingUpTo(getHeadSequence(conversationId));
+            if (missing.size() > 0) {
+                missingSequences.put(conversationId, missing);
+            }
+        });
+        forgetReadOwnSequences();
+
+        this.sendPipeline = new SendPipeline(sendQueueCapacity, overflowPolicy, this::store);
+    }
+
+    /**
+     * Switching to fan-out-on-write fills the inboxes from the group
+     * messages held in memory. Sends wait for the switch, so each lands in
+     * the inboxes exactly once.
+     */
+    public void setDeliveryMode(DeliveryMode deliveryMode) {
+        messageLock.lock();
+        try {
+            inboxes.clear();
+            undeliveredSequences.clear();
+            this.deliveryMode = deliveryMode;
+
+            if (deliveryMode == DeliveryMode.FAN_OUT_ON_WRITE) {
+                // No inbox holds more than this many of a group's latest
+                List<Message> recent = new ArrayList<>();
+                for (String conversationId : headSequences.keySet()) {
+                    List<Message> latest = conversationIndex.getLatest(conversationId, INBOX_CAPACITY);
+                    if (latest.isEmpty() || !latest.get(0).isGroupMessage()) {
+                        continue;
+                    }
+                    recent.addAll(latest);
+                    // Anything older was never delivered; readers have to scan for it
+                    undeliveredSequences.put(conversationId, latest.get(0).getSequence() - 1);
+                }
+                recent.sort(null);
+                recent.forEach(this::deliver);
+            }
+        } finally {
+            messageLock.unlock();
+        }
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    /**
+     * Groups with more members than this are never fanned out on write; their
+     * unread messages are always found by reading the group history.
+     */
+    public void setFanOutThreshold(int fanOutThreshold) {
+        this.fanOutThreshold = fanOutThreshold;
     }
     
 
-    public Message sendDirectMessage(String senderId, String receiverId, String content) {
-        String messageId = UUID.randomUUID().toString();
-        Message message = new Message(messageId, senderId, receiverId, content, false);
-        
-        // Save message
-        List<Message> messages = dataPersistence.loadMessages();
-        messages.add(message);
-        dataPersistence.saveMessages(messages);
-        
-        return message;
+    /**
+     * Limits how fast any one user can send, with room for short bursts. A
+     * rate of 0 turns the limit off.
+     */
+    public void setSenderRateLimit(double messagesPerSecond, int burst) {
+        senderLimiter.setRate(messagesPerSecond, burst);
     }
 
-    public Message sendGroupMessage(String senderId, String groupId, String content) {
-        String messageId = UUID.randomUUID().toString();
-        Message message = new Message(messageId, senderId, groupId, content, true);
-        
-        // Save message
-        List<Message> messages = dataPersistence.loadMessages();
-        messages.add(message);
-        dataPersistence.saveMessages(messages);
-        
-        return message;
+    /**
+     * Limits how fast messages can arrive in any one group, whoever sends
+     * them. A rate of 0 turns the limit off.
+     */
+    public void setGroupRateLimit(double messagesPerSecond, int burst) {
+        groupLimiter.setRate(messagesPerSecond, burst);
+    }
+
+    public long getThrottledSenderCount() {
+        return senderLimiter.getThrottledCount();
+    }
+
+    public long getThrottledGroupCount() {
+        return groupLimiter.getThrottledCount();
+    }
+
+    /**
+     * Sends and waits until the message is stored. Always waits for room in
+     * the send queue, whatever the overflow policy.
+     *
+     * @throws RateLimitExceededException if the sender, or for group messages
+     *         the group, is over its rate limit
+     */
+    public Message sendDirectMessage(String senderId, String receiverId, String content) 
+            throws RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendDirectMessage");
+        try {
+            return sendAndWait(MessageDraft.direct(senderId, receiverId, content));
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Like {@link #sendDirectMessage(String, String, String)}, but a repeat
+     * with the same sender and idempotency key within the dedup window
+     * returns the message stored the first time instead of a new one.
+     */
+    public Message sendDirectMessage(String senderId, String receiverId, String content, String idempotencyKey) 
+            throws RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendDirectMessage");
+        try {
+            return sendAndWait(MessageDraft.direct(senderId, receiverId, content).withIdempotencyKey(idempotencyKey));
+        } finally {
+            timer.close();
+        }
+    }
+
+    public Message sendGroupMessage(String senderId, String groupId, String content) 
+            throws RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendGroupMessage");
+        try {
+            return sendAndWait(MessageDraft.group(senderId, groupId, content));
+        } finally {
+            timer.close();
+        }
+    }
+
+    public Message sendGroupMessage(String senderId, String groupId, String content, String idempotencyKey) 
+            throws RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendGroupMessage");
+        try {
+            return sendAndWait(MessageDraft.group(senderId, groupId, content).withIdempotencyKey(idempotencyKey));
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Queues the message and returns without waiting for the disk. The
+     * future completes with the stored message, sequence number included.
+     *
+     * @throws SendRejectedException if the send queue is full and the
+     *         overflow policy is to reject
+     * @throws RateLimitExceededException if the sender or group is over its
+     *         rate limit
+     */
+    public CompletableFuture<Message> sendDirectMessageAsync(String senderId, String receiverId, String content) 
+            throws SendRejectedException, RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendDirectMessageAsync");
+        try {
+            return enqueue(MessageDraft.direct(senderId, receiverId, content), null);
+        } finally {
+            timer.close();
+        }
+    }
+
+    public CompletableFuture<Message> sendDirectMessageAsync(String senderId, String receiverId, String content, 
+            String idempotencyKey) throws SendRejectedException, RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendDirectMessageAsync");
+        try {
+            return enqueue(MessageDraft.direct(senderId, receiverId, content).withIdempotencyKey(idempotencyKey), null);
+        } finally {
+            timer.close();
+        }
+    }
+
+    public CompletableFuture<Message> sendGroupMessageAsync(String senderId, String groupId, String content) 
+            throws SendRejectedException, RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendGroupMessageAsync");
+        try {
+            return enqueue(MessageDraft.group(senderId, groupId, content), null);
+        } finally {
+            timer.close();
+        }
+    }
+
+    public CompletableFuture<Message> sendGroupMessageAsync(String senderId, String groupId, String content, 
+            String idempotencyKey) throws SendRejectedException, RateLimitExceededException {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendGroupMessageAsync");
+        try {
+            return enqueue(MessageDraft.group(senderId, groupId, content).withIdempotencyKey(idempotencyKey), null);
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Stores many messages at once for bots and importers: one append to the
+     * message file and one pass over the indexes for the whole batch. A bad
+     * draft fails on its own and doesn't stop the rest. Rate limits don't
+     * apply; this is for trusted integrations.
+     *
+     * @return one result per draft, in the same order
+     * @throws UncheckedIOException if the batch could not be written
+     */
+    public List<SendResult> sendBatch(List<MessageDraft> drafts) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.sendBatch");
+        try {
+            List<SendResult> results = new ArrayList<>(drafts.size());
+            List<Message> accepted = new ArrayList<>(drafts.size());
+            List<Integer> positions = new ArrayList<>(drafts.size());
+
+            // One random ID per batch; messages are told apart by a counter
+            String batchId = UUID.randomUUID().toString();
+            for (MessageDraft draft : drafts) {
+                String error = validate(draft);
+                if (error != null) {
+                    results.add(SendResult.invalid(error));
+                    continue;
+                }
+
+                positions.add(results.size());
+                results.add(null); // Filled in once stored
+                accepted.add(toMessage(batchId + "-" + accepted.size(), draft));
+            }
+
+            List<Message> stored = store(accepted);
+            for (int i = 0; i < stored.size(); i++) {
+                Message message = stored.get(i);
+                boolean isNew = message.getMessageId().equals(accepted.get(i).getMessageId());
+                results.set(positions.get(i), isNew ? SendResult.sent(message) : SendResult.duplicate(message));
+            }
+            return results;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Entries in each in-memory index, for footprint reports.
+     */
+    public Map<String, Integer> getIndexSizes() {
+        int inboxEntries = 0;
+        for (InboxRing inbox : inboxes.values()) {
+            inboxEntries += inbox.size();
+        }
+        int missingRuns = 0;
+        for (SequenceSet missing : missingSequences.values()) {
+            missingRuns += missing.getRunCount();
+        }
+        int ownRuns = 0;
+        for (Map<String, SequenceSet> senders : ownSequences.values()) {
+            for (SequenceSet own : senders.values()) {
+                ownRuns += own.getRunCount();
+            }
+        }
+
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("conversations", conversationIndex.getConversationCount());
+        sizes.put("head sequences", headSequences.size());
+        sizes.put("missing sequence runs", missingRuns);
+        sizes.put("own sequence runs", ownRuns);
+        sizes.put("direct partner lists", directPartners.size());
+        sizes.put("inboxes", inboxes.size());
+        sizes.put("inbox entries", inboxEntries);
+        sizes.put("idempotency keys", sentByIdempotencyKey.size());
+        sizes.put("sender rate buckets", senderLimiter.getBucketCount());
+        sizes.put("group rate buckets", groupLimiter.getBucketCount());
+        sizes.put("send queue", sendPipeline.getQueueDepth());
+        return sizes;
+    }
+
+    /**
+     * Messages held in memory per conversation (group ID or
+     * {@link Message#directConversationId}); at most the latest
+     * thousand or so of each.
+     */
+    public Map<String, Integer> getConversationSizes() {
+        return conversationIndex.getConversationSizes();
+    }
+
+    /**
+     * Stored messages per conversation, including those no longer held in
+     * memory: every number up to the head, less those with no message.
+     */
+    public Map<String, Long> getMessageCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        headSequences.forEach((conversationId, head) -> {
+            SequenceSet missing = missingSequences.get(conversationId);
+            counts.put(conversationId, head.get() - (missing != null ? missing.size() : 0));
+        });
+        return counts;
+    }
+
+    /**
+     * About {@code count} stored messages picked at random, for estimates.
+     */
+    public List<Message> sampleMessages(int count, Random random) {
+        return conversationIndex.sample(count, random);
+    }
+
+    public int getSendQueueDepth() {
+        return sendPipeline.getQueueDepth();
+    }
+
+    /**
+     * Writes out everything still queued and stops the writer thread.
+     */
+    public void shutdown() {
+        sendPipeline.shutdown();
     }
 
     public List<Message> getDirectMessagesBetweenUsers(String user1, String user2) {
-        List<Message> allMessages = dataPersistence.loadMessages();
-        
-        // Filter messages that are between these two users
-        List<Message> conversations = allMessages.stream()
-                .filter(msg -> !msg.isGroupMessage())
-                .filter(msg -> 
-                    (msg.getSenderId().equals(user1) && msg.getReceiverId().equals(user2)) ||
-                    (msg.getSenderId().equals(user2) && msg.getReceiverId().equals(user1))
-                )
-                .collect(Collectors.toList());
-
-        Collections.sort(conversations);
-        
-        return conversations;
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getDirectMessagesBetweenUsers");
+        try {
+            return conversationIndex.getAll(Message.directConversationId(user1, user2));
+        } finally {
+            timer.close();
+        }
     }
 
     public List<Message> getGroupMessages(String groupId) {
-        List<Message> allMessages = dataPersistence.loadMessages();
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getGroupMessages");
+        try {
+            return conversationIndex.getAll(groupId);
+        } finally {
+            timer.close();
+        }
+    }
 
-        List<Message> groupMessages = allMessages.stream()
-                .filter(Message::isGroupMessage)
-                .filter(msg -> msg.getReceiverId().equals(groupId))
-                .collect(Collectors.toList());
+    /**
+     * Messages of a conversation (a group ID or
+     * {@link Message#directConversationId}) sent at or after {@code from} and
+     * before {@code to}, oldest first; a null bound is open. The window is
+     * found by binary search, so the cost depends on its size, not on the
+     * length of the conversation, unless it reaches back past the messages
+     * held in memory; then the chunks of the message file holding this
+     * conversation are read, not the rest of the file.
+     */
+    public List<Message> getMessagesBetween(String conversationId, LocalDateTime from, LocalDateTime to) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getMessagesBetween");
+        try {
+            return conversationIndex.getBetween(conversationId, from, to);
+        } finally {
+            timer.close();
+        }
+    }
+
+    public List<Message> getDirectMessagesBetweenUsers(String user1, String user2, LocalDateTime from, LocalDateTime to) {
+        return getMessagesBetween(Message.directConversationId(user1, user2), from, to);
+    }
+
+    public List<Message> getGroupMessages(String groupId, LocalDateTime from, LocalDateTime to) {
+        return getMessagesBetween(groupId, from, to);
+    }
+
+    /**
+     * Messages after the user's read marker in the conversation, oldest
+     * first, including the user's own.
+     */
+    public List<Message> getMessagesSinceLastRead(User user, String conversationId) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getMessagesSinceLastRead");
+        try {
+            return conversationIndex.getAfter(conversationId, user.getLastReadSequence(conversationId));
+        } finally {
+            timer.close();
+        }
+    }
 
-        Collections.sort(groupMessages);
-        
-        return groupMessages;
+    /**
+     * Sequence number of the latest message in a conversation, 0 if empty.
+     */
+    public long getHeadSequence(String conversationId) {
+        AtomicLong head = headSequences.get(conversationId);
+        return head != null ? head.get() : 0;
+    }
+
+    /**
+     * Unread messages per group from other members: the numbers between the
+     * user's read marker and the group's head sequence, less the user's own
+     * messages and numbers with no message. Only counts are looked at, never
+     * the messages.
+     */
+    public Map<String, Integer> getUnreadGroupCounts(User user) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getUnreadGroupCounts");
+        try {
+            Map<String, Integer> counts = new HashMap<>();
+            for (String groupId : groupService.getUserGroupIds(user.getUsername())) {
+                putUnread(counts, groupId, user, groupId);
+            }
+            return counts;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Unread direct messages per sender, counted the same way as
+     * {@link #getUnreadGroupCounts}.
+     */
+    public Map<String, Integer> getUnreadDirectCounts(User user) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getUnreadDirectCounts");
+        try {
+            String username = user.getUsername();
+            Map<String, Integer> counts = new HashMap<>();
+            for (String partner : directPartners.getOrDefault(username, Collections.emptySet())) {
+                putUnread(counts, partner, user, Message.directConversationId(username, partner));
+            }
+            return counts;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Unread group messages from other members, oldest first per group. In
+     * fan-out-on-write mode only the user's inbox is read, except for groups
+     * over the threshold, groups with unread messages sent while they were
+     * over it, and groups whose unread messages partly fell out of the
+     * inbox; those are read from the conversation index.
+     */
+    public List<Message> getNewGroupMessages(User user) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.getNewGroupMessages");
+        try {
+            String username = user.getUsername();
+            List<Message> newMessages = new ArrayList<>();
+            Set<String> unreadGroups = new HashSet<>();
+            Set<String> scanGroups = new HashSet<>();
+
+            InboxRing inbox = inboxes.get(user.getUserId());
+            for (Group group : groupService.getUserGroups(username)) {
+                String groupId = group.getGroupId();
+                long lastRead = user.getLastReadSequence(groupId);
+                if (getHeadSequence(groupId) <= lastRead) {
+                    continue; // Nothing new, whatever the mode
+                }
+                unreadGroups.add(groupId);
+
+                if (deliveryMode == DeliveryMode.FAN_OUT_ON_READ 
+                        || group.getMemberCount() > fanOutThreshold
+                        || undeliveredSequences.getOrDefault(groupId, 0L) > lastRead
+                        || inbox == null
+                        || inbox.hasDroppedAfter(groupId, lastRead)) {
+                    scanGroups.add(groupId);
+                }
+            }
+
+            if (unreadGroups.size() > scanGroups.size()) {
+                for (Message message : inbox.getMessages()) {
+                    String groupId = message.getReceiverId();
+                    if (unreadGroups.contains(groupId) && !scanGroups.contains(groupId)
+                            && isUnread(message, user)) {
+                        newMessages.add(message);
+                    }
+                }
+            }
+
+            for (String groupId : scanGroups) {
+                for (Message message : getMessagesSinceLastRead(user, groupId)) {
+                    if (!message.getSenderId().equals(username)) {
+                        newMessages.add(message);
+                    }
+                }
+            }
+
+            return newMessages;
+        } finally {
+            timer.close();
+        }
     }
 
     public void deleteUserMessages(String username) {
-        List<Message> allMessages = dataPersistence.loadMessages();
+        MetricsRegistry.Timer timer = metrics.time("MessageService.deleteUserMessages");
+        try {
+            UnitOfWork unitOfWork = new UnitOfWork(dataPersistence);
+            deleteUserMessages(username, unitOfWork);
+            unitOfWork.commit();
+        } finally {
+            timer.close();
+        }
+    }
 
-        List<Message> remainingMessages = allMessages.stream()
-                .filter(msg -> !(
-                    msg.getSenderId().equals(username) || 
-                    (!msg.isGroupMessage() && msg.getReceiverId().equals(username))
-                ))
-                .collect(Collectors.toList());
-        
-        dataPersistence.saveMessages(remainingMessages);
+    public void deleteUserMessages(String username, UnitOfWork unitOfWork) {
+        User deleted = dataPersistence.loadUser(username);
+        // Group conversations live on, so they need to know which numbers went
+        Map<String, List<Long>> removedGroupSequences = new HashMap<>();
+        unitOfWork.removeMessages(msg -> {
+            if (msg.getSenderId().equals(username)) {
+                if (msg.isGroupMessage()) {
+                    removedGroupSequences.computeIfAbsent(msg.getReceiverId(), id -> new ArrayList<>())
+                            .add(msg.getSequence());
+                }
+                return true;
+            }
+            return !msg.isGroupMessage() && msg.getReceiverId().equals(username);
+        });
+        // Numbering starts over with the conversation, so must the markers
+        for (String partner : directPartners.getOrDefault(username, Collections.emptySet())) {
+            String conversationId = Message.directConversationId(username, partner);
+            unitOfWork.updateUser(partner, user -> user.clearReadMarker(conversationId));
+        }
+        unitOfWork.onCommit(() -> {
+            messageLock.lock();
+            try {
+                for (String partner : directPartners.getOrDefault(username, Collections.emptySet())) {
+                    String conversationId = Message.directConversationId(username, partner);
+                    headSequences.remove(conversationId);
+                    missingSequences.remove(conversationId);
+                    ownSequences.remove(conversationId);
+                    conversationIndex.removeConversation(conversationId);
+                    directPartners.getOrDefault(partner, Collections.emptySet()).remove(username);
+                }
+                directPartners.remove(username);
+                if (deleted != null) {
+                    inboxes.remove(deleted.getUserId());
+                }
+                removedGroupSequences.forEach((groupId, sequences) -> {
+                    if (headSequences.containsKey(groupId)) { // Unless the group went too
+                        SequenceSet missing = missingSequences.computeIfAbsent(groupId, id -> new SequenceSet());
+                        sequences.forEach(missing::add);
+                    }
+                });
+                ownSequences.values().forEach(senders -> senders.remove(username));
+                conversationIndex.removeIf(msg -> msg.isGroupMessage() && msg.getSenderId().equals(username));
+            } finally {
+                messageLock.unlock();
+            }
+        });
     }
 
     public void deleteGroupMessages(String groupId) {
-        List<Message> allMessages = dataPersistence.loadMessages();
+        MetricsRegistry.Timer timer = metrics.time("MessageService.deleteGroupMessages");
+        try {
+            UnitOfWork unitOfWork = new UnitOfWork(dataPersistence);
+            deleteGroupMessages(groupId, unitOfWork);
+            unitOfWork.commit();
+        } finally {
+            timer.close();
+        }
+    }
+
+    public void deleteGroupMessages(String groupId, UnitOfWork unitOfWork) {
+        unitOfWork.removeMessages(msg -> msg.isGroupMessage() && msg.getReceiverId().equals(groupId));
+        unitOfWork.onCommit(() -> {
+            messageLock.lock();
+            try {
+                headSequences.remove(groupId);
+                missingSequences.remove(groupId);
+                ownSequences.remove(groupId);
+                undeliveredSequences.remove(groupId);
+                conversationIndex.removeConversation(groupId);
+            } finally {
+                messageLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Stages removal of the messages of several groups as a single filter, so
+     * the message store is still walked only once.
+     */
+    public void deleteGroupMessages(Collection<String> groupIds, UnitOfWork unitOfWork) {
+        if (groupIds.isEmpty()) {
+            return;
+        }
+
+        Set<String> deletedGroups = new HashSet<>(groupIds);
+        unitOfWork.removeMessages(msg -> msg.isGroupMessage() && deletedGroups.contains(msg.getReceiverId()));
+        unitOfWork.onCommit(() -> {
+            messageLock.lock();
+            try {
+                headSequences.keySet().removeAll(deletedGroups);
+                missingSequences.keySet().removeAll(deletedGroups);
+                ownSequences.keySet().removeAll(deletedGroups);
+                undeliveredSequences.keySet().removeAll(deletedGroups);
+                deletedGroups.forEach(conversationIndex::removeConversation);
+            } finally {
+                messageLock.unlock();
+            }
+        });
+    }
+
+    // Fan-out-on-write: a pointer to the message in each member's inbox
+    private void deliver(Message message) {
+        Group group;
+        try {
+            group = groupService.getGroupById(message.getReceiverId());
+        } catch (GroupNotFoundException e) {
+            return;
+        }
+
+        if (group.getMemberCount() > fanOutThreshold) {
+            // Read side handles big groups, also once they are small again
+            undeliveredSequences.merge(group.getGroupId(), message.getSequence(), Math::max);
+            return;
+        }
+
+        group.getMemberIds().forEach(userId -> 
+                inboxes.computeIfAbsent(userId, id -> new InboxRing(INBOX_CAPACITY)).add(message));
+    }
+
+    // A null policy means the pipeline's configured one
+    private CompletableFuture<Message> enqueue(MessageDraft draft, SendPipeline.OverflowPolicy policy) 
+            throws SendRejectedException, RateLimitExceededException {
+        String error = validate(draft);
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+
+        // A retry of something already stored needn't touch the queue; the
+        // writer checks again for retries that are still in flight
+        Message message = toMessage(UUID.randomUUID().toString(), draft);
+        String dedupKey = dedupKey(message);
+        if (dedupKey != null) {
+            Message original = sentByIdempotencyKey.get(dedupKey);
+            if (original != null) {
+                return CompletableFuture.completedFuture(original);
+            }
+        }
+
+        checkRateLimits(draft);
+        try {
+            return policy == null ? sendPipeline.submit(message) : sendPipeline.submit(message, policy);
+        } catch (SendRejectedException e) {
+            // Nothing was sent, so it shouldn't count against the limits
+            releaseRateLimits(draft);
+            throw e;
+        }
+    }
+
+    // Takes a permit from every limiter that applies, or from none
+    private void checkRateLimits(MessageDraft draft) throws RateLimitExceededException {
+        long wait = senderLimiter.tryAcquire(draft.getSenderId());
+        if (wait > 0) {
+            throw new RateLimitExceededException("You're sending messages too fast.", 
+                    TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+        }
+
+        if (draft.isGroupMessage()) {
+            wait = groupLimiter.tryAcquire(draft.getReceiverId());
+            if (wait > 0) {
+                senderLimiter.release(draft.getSenderId());
+                throw new RateLimitExceededException("This group is receiving too many messages.", 
+                        TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            }
+        }
+    }
+
+    private void releaseRateLimits(MessageDraft draft) {
+        senderLimiter.release(draft.getSenderId());
+        if (draft.isGroupMessage()) {
+            groupLimiter.release(draft.getReceiverId());
+        }
+    }
+
+    private Message sendAndWait(MessageDraft draft) throws RateLimitExceededException {
+        CompletableFuture<Message> future;
+        try {
+            future = enqueue(draft, SendPipeline.OverflowPolicy.BLOCK);
+        } catch (SendRejectedException e) {
+            // Blocking sends are only refused after shutdown
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
 
-        List<Message> remainingMessages = allMessages.stream()
-                .filter(msg -> !(msg.isGroupMessage() && msg.getReceiverId().equals(groupId)))
-                .collect(Collectors.toList());
-        
-        dataPersistence.saveMessages(remainingMessages);
+    // The sequence number is given by the writer, in the order messages are stored
+    private static Message toMessage(String messageId, MessageDraft draft) {
+        return new Message(messageId, draft.getSenderId(), draft.getReceiverId(), draft.getContent(), 
+                draft.isGroupMessage(), 0, draft.getIdempotencyKey());
+    }
+
+    // Keys are chosen by clients, so they only need to be unique per sender
+    private static String dedupKey(Message message) {
+        String idempotencyKey = message.getIdempotencyKey();
+        return idempotencyKey == null ? null : message.getSenderId() + ":" + idempotencyKey;
+    }
+
+    private static String validateFields(MessageDraft draft) {
+        if (draft == null || draft.getSenderId() == null || draft.getReceiverId() == null) {
+            return "A message needs a sender and a receiver.";
+        }
+        if (draft.getContent() == null || draft.getContent().isEmpty()) {
+            return "A message can't be empty.";
+        }
+        return null;
+    }
+
+    private String validate(MessageDraft draft) {
+        String error = validateFields(draft);
+        if (error != null) {
+            return error;
+        }
+        if (draft.isGroupMessage()) {
+            try {
+                groupService.getGroupById(draft.getReceiverId());
+            } catch (GroupNotFoundException e) {
+                return e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Numbers the messages and appends them in one write, then updates the
+     * in-memory indexes once for the whole batch. Used by the send
+     * pipeline's writer thread and by batch sends.
+     *
+     * @return the stored messages in batch order, where a repeated
+     *         idempotency key gives the message stored the first time
+     * @throws UncheckedIOException if the batch could not be written; the
+     *                              sequence numbers it took are skipped
+     */
+    private List<Message> store(List<Message> batch) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.store");
+        try {
+            List<Message> stored = new ArrayList<>(batch.size());
+            List<Message> added = new ArrayList<>(batch.size());
+
+            // Same lock as units of work that remove messages; numbering
+            // inside it keeps sequence order and storage order the same
+            messageLock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                LocalDateTime storedAt = LocalDateTime.now();
+                for (Message message : batch) {
+                    String dedupKey = dedupKey(message);
+                    Message original = dedupKey != null ? sentByIdempotencyKey.get(dedupKey) : null;
+                    if (original != null) {
+                        stored.add(original);
+                        continue;
+                    }
+
+                    // Never earlier than the conversation's last message, even if
+                    // the clock steps back, so time order matches sequence order
+                    String conversationId = message.getConversationId();
+                    LocalDateTime latest = conversationIndex.getLatestTimestamp(conversationId);
+                    LocalDateTime timestamp = latest != null && latest.isAfter(storedAt) ? latest : storedAt;
+                    Message numbered = message.withSequence(nextSequence(conversationId), timestamp);
+                    conversationIndex.add(numbered);
+                    ownSequences(conversationId, numbered.getSenderId()).add(numbered.getSequence());
+                    if (dedupKey != null) {
+                        sentByIdempotencyKey.putIfAbsent(dedupKey, numbered, now);
+                    }
+                    stored.add(numbered);
+                    added.add(numbered);
+                }
+                try {
+                    dataPersistence.appendMessages(added);
+                } catch (UncheckedIOException e) {
+                    // Forget the batch, so neither readers nor a retried
+                    // send see messages that never reached the disk
+                    Set<String> failedIds = new HashSet<>();
+                    for (Message message : added) {
+                        String dedupKey = dedupKey(message);
+                        if (dedupKey != null) {
+                            sentByIdempotencyKey.remove(dedupKey, message);
+                        }
+                        failedIds.add(message.getMessageId());
+                        String conversationId = message.getConversationId();
+                        ownSequences(conversationId, message.getSenderId()).remove(message.getSequence());
+                        missingSequences.computeIfAbsent(conversationId, id -> new SequenceSet())
+                                .add(message.getSequence());
+                    }
+                    added.stream().map(Message::getConversationId).distinct().forEach(conversationId -> 
+                            conversationIndex.removeIf(conversationId, 
+                                    message -> failedIds.contains(message.getMessageId())));
+                    throw e;
+                }
+
+                // Inside the lock, so a switch of delivery mode sees each
+                // message either in the index or arriving here, not both
+                if (deliveryMode == DeliveryMode.FAN_OUT_ON_WRITE) {
+                    for (Message message : added) {
+                        if (message.isGroupMessage()) {
+                            deliver(message);
+                        }
+                    }
+                }
+            } finally {
+                messageLock.unlock();
+            }
+
+            Set<String> activeGroups = new LinkedHashSet<>();
+            for (Message message : added) {
+                if (message.isGroupMessage()) {
+                    activeGroups.add(message.getReceiverId());
+                } else {
+                    addPartners(message.getSenderId(), message.getReceiverId());
+                }
+            }
+            activeGroups.forEach(groupService::recordActivity);
+            return stored;
+        } finally {
+            timer.close();
+        }
+    }
+
+    // History older than the index holds; reads only this conversation's chunks
+    private List<Message> loadConversation(String conversationId) {
+        MetricsRegistry.Timer timer = metrics.time("MessageService.loadConversation");
+        try {
+            return dataPersistence.loadConversation(conversationId);
+        } finally {
+            timer.close();
+        }
+    }
+
+    private static boolean isUnread(Message message, User user) {
+        return !message.getSenderId().equals(user.getUsername()) 
+                && message.getSequence() > user.getLastReadSequence(message.getConversationId());
+    }
+
+    private void putUnread(Map<String, Integer> counts, String key, User user, String conversationId) {
+        long lastRead = user.getLastReadSequence(conversationId);
+        SequenceSet own = ownSequences.getOrDefault(conversationId, Collections.emptyMap()).get(user.getUsername());
+        if (own != null) {
+            own.removeUpTo(lastRead); // Read, so they never count again
+            // A stale copy of the user may be behind what was forgotten
+            lastRead = Math.max(lastRead, own.getRemovedUpTo());
+        }
+
+        long head = getHeadSequence(conversationId);
+        if (head <= lastRead) {
+            return;
+        }
+        SequenceSet missing = missingSequences.get(conversationId);
+        long unread = head - lastRead 
+                - (missing != null ? missing.countAbove(lastRead) : 0) 
+                - (own != null ? own.countAbove(lastRead) : 0);
+        if (unread > 0) {
+            counts.put(key, (int) Math.min(unread, Integer.MAX_VALUE));
+        }
+    }
+
+    private SequenceSet ownSequences(String conversationId, String username) {
+        return ownSequences.computeIfAbsent(conversationId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(username, u -> new SequenceSet());
+    }
+
+    // Only what senders sent after their marker matters for unread counts
+    private void forgetReadOwnSequences() {
+        Map<String, User> users = dataPersistence.loadUsers();
+        ownSequences.forEach((conversationId, senders) -> senders.forEach((username, sequences) -> {
+            User user = users.get(username);
+            if (user != null) {
+                sequences.removeUpTo(user.getLastReadSequence(conversationId));
+            }
+        }));
+    }
+
+    private long nextSequence(String conversationId) {
+        return headSequences.computeIfAbsent(conversationId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void addPartners(String username, String otherUsername) {
+        directPartners.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(otherUsername);
+        directPartners.computeIfAbsent(otherUsername, u -> ConcurrentHashMap.newKeySet()).add(username);
+    }
+
+    /**
+     * Stored messages. Data saved before messages carried sequence numbers is
+     * numbered once here, in time order per conversation, and written back.
+     */
+    private List<Message> numberedMessages() {
+        List<Message> messages = dataPersistence.loadMessages();
+        if (messages.stream().allMatch(message -> message.getSequence() > 0)) {
+            return messages;
+        }
+
+        Collections.sort(messages);
+        Map<String, Long> lastSequences = new HashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            long sequence = lastSequences.merge(message.getConversationId(), 1L, Long::sum);
+            messages.set(i, message.withSequence(sequence));
+        }
+        dataPersistence.saveMessages(messages);
+        return messages;
     }
 }
@@ -0,0 +1,180 @@
+package com.chatapp.service;
+
+import com.chatapp.exception.SendRejectedException;
+import com.chatapp.model.Message;
+import com.chatapp.util.MpscRing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Hands messages from any number of sending threads to a single writer
+ * thread through a bounded ring.
+ *
+ * The writer drains whatever has queued up and persists it as one batch, so
+ * when the disk is slow batches simply get bigger while senders only pay for
+ * the enqueue. When the ring is full the overflow policy decides between
+ * waiting for room and rejecting the send.
+ */
+public class SendPipeline {
+    private static final int MAX_BATCH = 512;
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    public enum OverflowPolicy {
+        BLOCK,  // The sender waits until the writer frees a slot
+        REJECT  // The sender gets a SendRejectedException straight away
+    }
+
+    private final MpscRing<PendingSend> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final Function<List<Message>, List<Message>> writer;
+    private final Thread writerThread;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    // Senders check and enqueue under the read lock, shutdown flips the
+    // flag under the write lock, so nothing is queued once it has started
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+
+    private static class PendingSend {
+        private final Message message;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        private PendingSend(Message message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * @param writer persists a batch of messages in the order they were
+     *               queued and returns them as stored; runs on the writer
+     *               thread only
+     */
+    public SendPipeline(int capacity, OverflowPolicy overflowPolicy, 
+            Function<List<Message>, List<Message>> writer) {
+        this.queue = new MpscRing<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.writer = writer;
+        this.writerThread = new Thread(this::runWriter, "message-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public CompletableFuture<Message> submit(Message message) throws SendRejectedException {
+        return submit(message, overflowPolicy);
+    }
+
+    /**
+     * Queues the message for the writer. The future completes with the
+     * stored message once it is persisted, or exceptionally if writing it
+     * failed.
+     */
+    public CompletableFuture<Message> submit(Message message, OverflowPolicy policy) 
+            throws SendRejectedException {
+        PendingSend pending = new PendingSend(message);
+        while (true) {
+            if (offer(pending)) {
+                break;
+            }
+            if (policy == OverflowPolicy.REJECT) {
+                rejectedCount.incrementAndGet();
+                throw new SendRejectedException("Too many messages waiting to be sent, try again shortly.");
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(this, BACKOFF_NANOS);
+        }
+
+        LockSupport.unpark(writerThread);
+        return pending.future;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.capacity();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Stops accepting sends and waits for everything already queued to be
+     * written.
+     */
+    public void shutdown() {
+        shutdownLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            shutdownLock.writeLock().unlock();
+        }
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Never holds the lock while waiting for room, so shutdown isn't held up
+    private boolean offer(PendingSend pending) throws SendRejectedException {
+        shutdownLock.readLock().lock();
+        try {
+            if (!running) {
+                throw new SendRejectedException("Message sending has been shut down.");
+            }
+            return queue.offer(pending);
+        } finally {
+            shutdownLock.readLock().unlock();
+        }
+    }
+
+    private void runWriter() {
+        List<PendingSend> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            // Read the flag first so nothing queued before shutdown is missed
+            boolean stopping = !running;
+            queue.drainTo(batch, MAX_BATCH);
+
+            if (batch.isEmpty()) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<PendingSend> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (PendingSend pending : batch) {
+            messages.add(pending.message);
+        }
+
+        List<Message> stored;
+        try {
+            stored = writer.apply(messages);
+        } catch (Throwable e) {
+            // Errors too: this thread is the only writer, so it has to stay
+            // up, and nobody should wait forever on a batch that failed
+            batch.forEach(pending -> pending.future.completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.complete(stored.get(i));
+        }
+    }
+}
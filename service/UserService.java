@@ -2,54 +2,132 @@ package com.chatapp.service;
 
 import com.chatapp.exception.AuthenticationException;
 import com.chatapp.exception.UserNotFoundException;
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.metrics.OperationContext;
+import com.chatapp.model.Message;
 import com.chatapp.model.User;
-import com.chatapp.util.DataPersistence;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.IntIdRegistry;
+import com.chatapp.util.TrigramIndex;
+import com.chatapp.util.UnitOfWork;
 
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class UserService {
-    private final DataPersistence dataPersistence;
+    private static final int MAX_UPDATE_ATTEMPTS = 16;
+    private static final int SEARCH_LIMIT = 50;
+
+    private final DataStore dataPersistence;
+    private final TrigramIndex usernameIndex;
+    private final IntIdRegistry userIds;
+    private final Set<String> administrators;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
     private User currentUser;
     
-    public UserService(DataPersistence dataPersistence) {
+    public UserService(DataStore dataPersistence) {
         this.dataPersistence = dataPersistence;
+        this.usernameIndex = new TrigramIndex();
+        this.userIds = new IntIdRegistry();
+        this.administrators = parseUsernames(System.getProperty("chatapp.admins", ""));
         this.currentUser = null;
+
+        userIds.reserveUpTo(dataPersistence.loadNextUserId());
+        Map<String, User> users = dataPersistence.loadUsers();
+        List<User> unnumbered = new ArrayList<>();
+        for (User user : users.values()) {
+            usernameIndex.add(user.getUsername(), user.getUsername());
+            if (user.getUserId() == User.NO_USER_ID) {
+                unnumbered.add(user);
+            } else {
+                userIds.put(user.getUsername(), user.getUserId());
+            }
+        }
+
+        // Users saved before IDs existed get one once all stored IDs are taken
+        if (!unnumbered.isEmpty()) {
+            unnumbered.sort(Comparator.comparing(User::getUsername));
+            for (User user : unnumbered) {
+                user.assignUserId(userIds.register(user.getUsername()));
+            }
+            saveNextUserId();
+        }
+        boolean readTimesMigrated = migrateReadTimes(users.values());
+        if (!unnumbered.isEmpty() || readTimesMigrated) {
+            dataPersistence.saveUsers(users);
+        }
     }
 
+    /**
+     * @return false if the username is taken
+     * @throws UncheckedIOException if the new user's ID could not be
+     *         recorded; the user is not registered
+     */
     public boolean registerUser(String username, String password) {
+        MetricsRegistry.Timer timer = metrics.time("UserService.registerUser");
+        try {
+            // Locked, so two registrations of one name can't both find it free
+            boolean registered = dataPersistence.runLocked(List.of(username), List.of(), () -> {
+                if (dataPersistence.loadUser(username) != null) {
+                    return false;
+                }
 
-        Map<String, User> users = dataPersistence.loadUsers();
-        if (users.containsKey(username)) {
-            return false;
-        }
+                User newUser = new User(username, password, userIds.register(username));
 
-        User newUser = new User(username, password);
-        users.put(username, newUser);
+                // Recorded first, so a crash can skip an ID but never reuse one
+                try {
+                    saveNextUserId();
+                } catch (UncheckedIOException e) {
+                    userIds.remove(username); // Its ID stays used up
+                    throw e;
+                }
 
-        dataPersistence.saveUsers(users);
-        return true;
+                dataPersistence.saveUser(newUser);
+                return true;
+            });
+            if (!registered) {
+                return false;
+            }
+
+            OperationContext.touch("user:" + username);
+            usernameIndex.add(username, username);
+            return true;
+        } finally {
+            timer.close();
+        }
     }
 
     public boolean login(String username, String password) 
             throws UserNotFoundException, AuthenticationException {
-        Map<String, User> users = dataPersistence.loadUsers();
+        MetricsRegistry.Timer timer = metrics.time("UserService.login");
+        try {
+            User user = dataPersistence.loadUser(username);
 
-        if (!users.containsKey(username)) {
-            throw new UserNotFoundException("User " + username + " does not exist.");
-        }
-        
-        User user = users.get(username);
+            if (user == null) {
+                throw new UserNotFoundException("User " + username + " does not exist.");
+            }
 
-        if (!user.isPasswordCorrect(password)) {
-            throw new AuthenticationException("Incorrect password.");
-        }
+            if (!user.isPasswordCorrect(password)) {
+                throw new AuthenticationException("Incorrect password.");
+            }
 
-        currentUser = user;
-        return true;
+            currentUser = user;
+            return true;
+        } finally {
+            timer.close();
+        }
     }
 
     public void logout() {
@@ -68,64 +146,239 @@ public class UserService {
         return currentUser;
     }
 
+    /**
+     * Whether the logged-in user may use the admin tools: those named in
+     * {@code -Dchatapp.admins}, a comma-separated list of usernames.
+     */
+    public boolean isAdministrator() {
+        return currentUser != null && administrators.contains(currentUser.getUsername());
+    }
+
     public List<String> searchUsers(String searchTerm) {
-        Map<String, User> users = dataPersistence.loadUsers();
-        
-        return users.keySet().stream()
-                .filter(username -> username.toLowerCase().contains(searchTerm.toLowerCase()))
-                .filter(username -> !username.equals(getCurrentUsername())) // Exclude current user
-                .collect(Collectors.toList());
+        return searchUsers(searchTerm, SEARCH_LIMIT);
+    }
+
+    /**
+     * Up to {@code limit} usernames containing the search term, those starting
+     * with it first.
+     */
+    public List<String> searchUsers(String searchTerm, int limit) {
+        MetricsRegistry.Timer timer = metrics.time("UserService.searchUsers");
+        try {
+            String self = getCurrentUsername();
+            return usernameIndex.search(searchTerm, limit, 
+                    username -> !username.equals(self)); // Exclude current user
+        } finally {
+            timer.close();
+        }
     }
 
     public boolean deleteAccount() {
+        MetricsRegistry.Timer timer = metrics.time("UserService.deleteAccount");
+        try {
+            UnitOfWork unitOfWork = new UnitOfWork(dataPersistence);
+            if (!deleteAccount(unitOfWork)) {
+                return false;
+            }
+
+            return unitOfWork.commit();
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Stages removal of the current account; the user is logged out once the
+     * unit of work commits.
+     */
+    public boolean deleteAccount(UnitOfWork unitOfWork) {
         if (!isLoggedIn()) {
             return false;
         }
-        
-        String username = getCurrentUsername();
-
-        Map<String, User> users = dataPersistence.loadUsers();
-        users.remove(username);
-        dataPersistence.saveUsers(users);
 
-        logout();
+        String username = getCurrentUsername();
+        unitOfWork.removeUser(username);
+        unitOfWork.onCommit(() -> {
+            usernameIndex.remove(username);
+            userIds.remove(username);
+        });
+        unitOfWork.onCommit(this::logout);
         
         return true;
     }
 
     public void addContact(String contactUsername) {
-        if (isLoggedIn() && !getCurrentUsername().equals(contactUsername)) {
-            currentUser.addContact(contactUsername);
-
-            Map<String, User> users = dataPersistence.loadUsers();
-            users.put(getCurrentUsername(), currentUser);
-            dataPersistence.saveUsers(users);
+        MetricsRegistry.Timer timer = metrics.time("UserService.addContact");
+        try {
+            if (isLoggedIn() && !getCurrentUsername().equals(contactUsername)) {
+                updateUserWithRetry(getCurrentUsername(), user -> user.addContact(contactUsername));
+            }
+        } finally {
+            timer.close();
         }
     }
 
     public List<String> getContacts() {
-        if (!isLoggedIn()) {
-            return new ArrayList<>();
+        MetricsRegistry.Timer timer = metrics.time("UserService.getContacts");
+        try {
+            if (!isLoggedIn()) {
+                return new ArrayList<>();
+            }
+
+            return new ArrayList<>(currentUser.getContacts());
+        } finally {
+            timer.close();
         }
-        
-        return new ArrayList<>(currentUser.getContacts());
     }
 
     public User getUserByUsername(String username) {
-        Map<String, User> users = dataPersistence.loadUsers();
-        return users.get(username);
+        MetricsRegistry.Timer timer = metrics.time("UserService.getUserByUsername");
+        try {
+            return dataPersistence.loadUser(username);
+        } finally {
+            timer.close();
+        }
     }
 
-    public void saveUser(User user) {
-        Map<String, User> users = dataPersistence.loadUsers();
-        users.put(user.getUsername(), user);
-        dataPersistence.saveUsers(users);
+    /**
+     * @return the dense ID used in group membership bitmaps, or -1 for an
+     *         unknown user
+     */
+    public int getUserId(String username) {
+        return userIds.lookup(username);
+    }
 
-        if (currentUser != null && currentUser.getUsername().equals(user.getUsername())) {
-            currentUser = user;
+    public String getUsernameById(int userId) {
+        return userIds.nameOf(userId);
+    }
+
+    /**
+     * Compare-and-set update: the mutator runs against the stored user only if
+     * nobody has committed a change since the caller read {@code expectedVersion}.
+     */
+    public boolean updateUser(String username, long expectedVersion, Consumer<User> mutator) {
+        MetricsRegistry.Timer timer = metrics.time("UserService.updateUser");
+        try {
+            User[] updated = new User[1];
+            boolean applied = dataPersistence.compareAndSetUser(username, expectedVersion, user -> {
+                mutator.accept(user);
+                updated[0] = user;
+            });
+
+            if (applied && currentUser != null && currentUser.getUsername().equals(username)) {
+                currentUser = updated[0];
+            }
+            return applied;
+        } finally {
+            timer.close();
         }
     }
-    
+
+    /**
+     * Stages a change in the given unit of work. The logged-in copy is
+     * reloaded after commit if it is the user being changed.
+     */
+    public void updateUser(UnitOfWork unitOfWork, String username, Consumer<User> mutator) {
+        unitOfWork.updateUser(username, mutator);
+
+        if (currentUser != null && currentUser.getUsername().equals(username)) {
+            unitOfWork.onCommit(this::refreshCurrentUser);
+        }
+    }
+
+    /**
+     * For commutative changes (group and contact adds/removes, read markers)
+     * a lost race is simply retried against the fresh copy.
+     */
+    public boolean updateUserWithRetry(String username, Consumer<User> mutator) {
+        MetricsRegistry.Timer timer = metrics.time("UserService.updateUserWithRetry");
+        try {
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                User user = getUserByUsername(username);
+                if (user == null) {
+                    return false;
+                }
+
+                if (updateUser(username, user.getVersion(), mutator)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Turns the read times of users saved before read markers existed into
+     * markers: the last message at or before the read time. Messages that
+     * old have no sequence numbers yet; they get them in time order, so the
+     * count of such messages is the sequence of the last one.
+     *
+     * @return false if no user had read times
+     */
+    private boolean migrateReadTimes(Collection<User> users) {
+        List<User> migrating = users.stream()
+                .filter(user -> !user.getLegacyReadTimes().isEmpty())
+                .collect(Collectors.toList());
+        if (migrating.isEmpty()) {
+            return false;
+        }
+
+        Map<String, List<Message>> conversations = new HashMap<>();
+        for (Message message : dataPersistence.loadMessages()) {
+            conversations.computeIfAbsent(message.getConversationId(), id -> new ArrayList<>()).add(message);
+        }
+
+        for (User user : migrating) {
+            user.getLegacyReadTimes().forEach((conversationId, readTime) -> {
+                long marker = 0;
+                for (Message message : conversations.getOrDefault(conversationId, Collections.emptyList())) {
+                    if (!message.getTimestamp().isAfter(readTime)) {
+                        marker = message.getSequence() > 0 ? Math.max(marker, message.getSequence()) : marker + 1;
+                    }
+                }
+                user.markRead(conversationId, marker);
+            });
+            user.clearLegacyReadTimes();
+        }
+        return true;
+    }
+
+    private static Set<String> parseUsernames(String list) {
+        return Arrays.stream(list.split(","))
+                .map(String::trim)
+                .filter(username -> !username.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    // Registrations of names on different shards run at once; the registry's
+    // lock keeps them from saving an older high-water mark over a newer one
+    private void saveNextUserId() {
+        synchronized (userIds) {
+            dataPersistence.saveNextUserId(userIds.getNextId());
+        }
+    }
+
+    private void refreshCurrentUser() {
+        if (currentUser != null) {
+            User reloaded = getUserByUsername(currentUser.getUsername());
+            if (reloaded != null) {
+                currentUser = reloaded;
+            }
+        }
+    }
+
+    /**
+     * Entries in each in-memory index, for footprint reports.
+     */
+    public Map<String, Integer> getIndexSizes() {
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put("user IDs", userIds.size());
+        sizes.put("username index", usernameIndex.size());
+        sizes.put("username trigrams", usernameIndex.postingCount());
+        return sizes;
+    }
 
     public String generateUniqueId() {
         return UUID.randomUUID().toString();
@@ -0,0 +1,212 @@
+package com.chatapp.ui;
+
+import com.chatapp.model.Message;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.LocalDateTime;
+
+/**
+ * Builds each screen in a reusable buffer and sends it to the terminal in
+ * one write when input is next needed, instead of a print per line.
+ *
+ * On an ANSI terminal a new screen is drawn over a cleared display, and
+ * when the terminal's size is known it doesn't even blank the whole
+ * display: the lines it shares with the previous screen from the top are
+ * left alone and only the rest is redrawn. That's only done when the
+ * previous screen can't have scrolled or wrapped, i.e. it fit in the rows
+ * with every line shorter than the width. Other outputs get blank lines to
+ * push the old screen away, as before.
+ */
+public class ChatRenderer {
+    private static final int BLANK_LINES = 50;
+    private static final String CLEAR_ALL = "\033[H\033[2J";
+    private static final String CLEAR_BELOW = "\033[J";
+
+    private final Writer out;
+    private final boolean ansi;
+    private final int columns; // 0 if unknown
+    private final int rows;    // 0 if unknown
+    private final char[] chunk = new char[8192];
+    private StringBuilder screen = new StringBuilder(4096);
+    private StringBuilder previous = new StringBuilder(4096);
+    private int written;     // Chars of the screen already on the terminal
+    private boolean fresh;   // New screen, nothing of it drawn yet
+
+    public ChatRenderer(OutputStream out, boolean ansi) {
+        this(out, ansi, 0, 0);
+    }
+
+    /**
+     * @param columns terminal width, 0 if unknown
+     * @param rows    terminal height, 0 if unknown; redrawing only part of
+     *                the screen needs both
+     */
+    public ChatRenderer(OutputStream out, boolean ansi, int columns, int rows) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out), 1 << 14);
+        this.ansi = ansi;
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * A renderer for the process's own terminal. ANSI control codes are used
+     * if {@code -Dchatapp.ansi} says so, otherwise only when there is a
+     * console and {@code TERM} names a terminal that isn't "dumb", or it is
+     * Windows Terminal. The size comes from {@code COLUMNS} and
+     * {@code LINES}, when the shell exports them.
+     */
+    public static ChatRenderer forTerminal(OutputStream out) {
+        String setting = System.getProperty("chatapp.ansi");
+        boolean ansi = setting != null ? Boolean.parseBoolean(setting) : detectAnsi();
+        return new ChatRenderer(out, ansi, sizeFromEnvironment("COLUMNS"), sizeFromEnvironment("LINES"));
+    }
+
+    /**
+     * Starts a new screen; it replaces the current one when next flushed.
+     */
+    public void newScreen() {
+        flush();
+        StringBuilder last = previous;
+        previous = screen;
+        screen = last;
+        screen.setLength(0);
+        written = 0;
+        fresh = true;
+    }
+
+    public void line(String text) {
+        screen.append(text).append('\n');
+    }
+
+    /**
+     * A chat history line, "[timestamp] sender: content", formatted straight
+     * into the screen buffer.
+     */
+    public void messageLine(Message message, String sender) {
+        screen.append('[');
+        appendTimestamp(screen, message.getTimestamp());
+        screen.append("] ").append(sender).append(": ").append(message.getContent()).append('\n');
+    }
+
+    /**
+     * Shows everything so far followed by the prompt.
+     */
+    public void prompt(String prompt) {
+        screen.append(prompt).append(' ');
+        flush();
+    }
+
+    /**
+     * Notes the line the user typed after the prompt; the terminal has
+     * already echoed it, so it's only kept for comparing screens.
+     */
+    public void inputLine(String input) {
+        screen.append(input).append('\n');
+        written = screen.length();
+    }
+
+    public void flush() {
+        try {
+            if (fresh) {
+                fresh = false;
+                if (ansi) {
+                    written = unchangedPrefix();
+                    out.write(written == 0 ? CLEAR_ALL : "\033[" + (rowsIn(screen, written, columns) + 1) + ";1H" + CLEAR_BELOW);
+                } else {
+                    for (int i = 0; i < BLANK_LINES; i++) {
+                        out.write('\n');
+                    }
+                }
+            }
+
+            while (written < screen.length()) {
+                int end = Math.min(screen.length(), written + chunk.length);
+                screen.getChars(written, end, chunk, 0);
+                out.write(chunk, 0, end - written);
+                written = end;
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Length of the run of whole lines the screen shares with the previous
+    // one, or 0 if the previous one may no longer be where it was drawn
+    private int unchangedPrefix() {
+        // The last line's newline takes a row of its own
+        if (columns == 0 || rows == 0 || rowsIn(previous, previous.length(), columns) >= rows) {
+            return 0;
+        }
+
+        int limit = Math.min(screen.length(), previous.length());
+        int lineStart = 0;
+        for (int i = 0; i < limit && screen.charAt(i) == previous.charAt(i); i++) {
+            if (screen.charAt(i) == '\n') {
+                if (i - lineStart >= columns) {
+                    break;
+                }
+                lineStart = i + 1;
+            }
+        }
+        return lineStart;
+    }
+
+    // Terminal rows the text takes up if lines wrap at the given width
+    private static int rowsIn(CharSequence text, int end, int width) {
+        int rows = 0;
+        int lineStart = 0;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                rows += 1 + Math.max(0, i - lineStart - 1) / width;
+                lineStart = i + 1;
+            }
+        }
+        return end > lineStart ? rows + 1 + (end - lineStart - 1) / width : rows;
+    }
+
+    private static boolean detectAnsi() {
+        if (System.console() == null) {
+            return false;
+        }
+        String term = System.getenv("TERM");
+        return (term != null && !term.isEmpty() && !term.equals("dumb")) || System.getenv("WT_SESSION") != null;
+    }
+
+    // 0 if unset or not a positive number
+    private static int sizeFromEnvironment(String name) {
+        String value = System.getenv(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // yyyy-MM-dd HH:mm:ss, as Message.getFormattedTimestamp, without a String
+    static void appendTimestamp(StringBuilder target, LocalDateTime time) {
+        appendPadded(target, time.getYear(), 4).append('-');
+        appendPadded(target, time.getMonthValue(), 2).append('-');
+        appendPadded(target, time.getDayOfMonth(), 2).append(' ');
+        appendPadded(target, time.getHour(), 2).append(':');
+        appendPadded(target, time.getMinute(), 2).append(':');
+        appendPadded(target, time.getSecond(), 2);
+    }
+
+    private static StringBuilder appendPadded(StringBuilder target, int value, int width) {
+        for (int limit = 10, digits = 1; digits < width; limit *= 10, digits++) {
+            if (value < limit) {
+                target.append('0');
+            }
+        }
+        return target.append(value);
+    }
+}
@@ -2,18 +2,25 @@ package com.chatapp.ui;
 
 import com.chatapp.exception.AuthenticationException;
 import com.chatapp.exception.GroupNotFoundException;
+import com.chatapp.exception.RateLimitExceededException;
 import com.chatapp.exception.UserNotFoundException;
+import com.chatapp.metrics.Counter;
+import com.chatapp.metrics.LatencyHistogram;
+import com.chatapp.metrics.MetricsRegistry;
 import com.chatapp.model.Group;
 import com.chatapp.model.JoinRequest;
 import com.chatapp.model.Message;
 import com.chatapp.model.User;
+import com.chatapp.service.AccountDeletionCascade;
+import com.chatapp.service.FootprintReport;
 import com.chatapp.service.GroupService;
 import com.chatapp.service.MessageService;
 import com.chatapp.service.UserService;
-import com.chatapp.util.DataPersistence;
+import com.chatapp.util.DataStore;
+import com.chatapp.util.GroupNameIndex;
 import com.chatapp.util.InputValidator;
-import java.time.LocalDateTime;
 
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -21,21 +28,41 @@ import java.util.Map;
 import java.util.Scanner;
 
 public class ConsoleUI implements UserInterface {
+    private static final int FOOTPRINT_TOP = 10;
+    private static final int SEARCH_PAGE_SIZE = 20;
+
     private final Scanner scanner;
     private final UserService userService;
     private final MessageService messageService;
     private final GroupService groupService;
     private final InputValidator validator;
-    private final DataPersistence dataPersistence;
+    private final DataStore dataPersistence;
+    private final AccountDeletionCascade accountDeletionCascade;
+    private final FootprintReport footprintReport;
+    private final ChatRenderer renderer;
     private boolean running;
     
-    public ConsoleUI(UserService userService, MessageService messageService, GroupService groupService) {
-        this.scanner = new Scanner(System.in);
+    public ConsoleUI(DataStore dataPersistence, UserService userService, 
+            MessageService messageService, GroupService groupService) {
+        this(dataPersistence, userService, messageService, groupService, new Scanner(System.in));
+    }
+
+    /**
+     * Reads input from the given scanner instead of the keyboard, for UIs
+     * that drive the same screens from elsewhere.
+     */
+    protected ConsoleUI(DataStore dataPersistence, UserService userService, 
+            MessageService messageService, GroupService groupService, Scanner scanner) {
+        this.scanner = scanner;
         this.userService = userService;
         this.messageService = messageService;
         this.groupService = groupService;
         this.validator = new InputValidator();
-        this.dataPersistence = new DataPersistence();
+        this.dataPersistence = dataPersistence;
+        this.accountDeletionCascade = new AccountDeletionCascade(
+                dataPersistence, userService, groupService, messageService);
+        this.footprintReport = new FootprintReport(dataPersistence, userService, groupService, messageService);
+        this.renderer = ChatRenderer.forTerminal(System.out);
         this.running = false;
     }
     
@@ -52,25 +79,40 @@ public class ConsoleUI implements UserInterface {
             }
         }
 
+        renderer.flush();
         scanner.close();
     }
     
     @Override
     public void displayMessage(String message) {
-        System.out.println(message);
+        renderer.line(message);
     }
     
     @Override
     public String getInput(String prompt) {
-        System.out.print(prompt + " ");
-        return scanner.nextLine().trim();
+        renderer.prompt(prompt);
+        String input = scanner.nextLine();
+        renderer.inputLine(input);
+        return input.trim();
+    }
+    
+    /**
+     * One line of chat history: "[timestamp] sender: content".
+     */
+    protected void displayChatMessage(Message message, String sender) {
+        renderer.messageLine(message, sender);
+    }
+
+    /**
+     * The next raw line of input, or null once it runs out.
+     */
+    protected String readLine() {
+        return scanner.hasNextLine() ? scanner.nextLine() : null;
     }
     
     @Override
     public void clearScreen() {
-        for (int i = 0; i < 50; i++) {
-            System.out.println();
-        }
+        renderer.newScreen();
     }
     
     private void showWelcomeScreen() {
@@ -127,10 +169,13 @@ public class ConsoleUI implements UserInterface {
         displayMessage("2. Group Management");
         displayMessage("3. View My Contacts");
         displayMessage("4. Account Settings");
-        displayMessage("5. Logout");
+        if (userService.isAdministrator()) {
+            displayMessage("5. Admin Tools");
+        }
+        displayMessage("6. Logout");
         displayMessage("-----------------------------------");
         
-        String choice = getInput("Choose an option (1-5):");
+        String choice = getInput("Choose an option (1-6):");
         
         switch (choice) {
             case "1":
@@ -146,6 +191,14 @@ public class ConsoleUI implements UserInterface {
                 showAccountSettingsMenu();
                 break;
             case "5":
+                if (!userService.isAdministrator()) {
+                    displayMessage("Invalid option. Please try again.");
+                    getInput("Press Enter to continue...");
+                    break;
+                }
+                showAdminToolsMenu();
+                break;
+            case "6":
                 handleLogout();
                 break;
             default:
@@ -193,10 +246,11 @@ public class ConsoleUI implements UserInterface {
         displayMessage("1. View My Groups");
         displayMessage("2. Create a New Group");
         displayMessage("3. Search for Groups");
-        displayMessage("4. Return to Main Menu");
+        displayMessage("4. Join Request Inbox");
+        displayMessage("5. Return to Main Menu");
         displayMessage("-----------------------------------");
         
-        String choice = getInput("Choose an option (1-4):");
+        String choice = getInput("Choose an option (1-5):");
         
         switch (choice) {
             case "1":
@@ -209,6 +263,9 @@ public class ConsoleUI implements UserInterface {
                 handleSearchGroups();
                 break;
             case "4":
+                handleJoinRequestInbox();
+                break;
+            case "5":
                 // Return to main menu
                 break;
             default:
@@ -242,6 +299,75 @@ public class ConsoleUI implements UserInterface {
                 showAccountSettingsMenu();
         }
     }
+
+    private void showAdminToolsMenu() {
+        clearScreen();
+        displayMessage("===================================");
+        displayMessage("            ADMIN TOOLS            ");
+        displayMessage("===================================");
+        displayMessage("1. Operation Latencies");
+        displayMessage("2. Counters");
+        displayMessage("3. Storage Footprint");
+        displayMessage("4. Return to Main Menu");
+        displayMessage("-----------------------------------");
+
+        String choice = getInput("Choose an option (1-4):");
+
+        switch (choice) {
+            case "1":
+                handleShowLatencies();
+                break;
+            case "2":
+                handleShowCounters();
+                break;
+            case "3":
+                handleShowFootprint();
+                break;
+            case "4":
+                // Return to main menu
+                break;
+            default:
+                displayMessage("Invalid option. Please try again.");
+                getInput("Press Enter to continue...");
+                showAdminToolsMenu();
+        }
+    }
+
+    private void handleShowLatencies() {
+        clearScreen();
+        displayMessage("Latencies since start or last reset, in microseconds:");
+        displayMessage(String.format("%-42s %8s %10s %10s %10s %10s", 
+                "Operation", "Count", "p50", "p99", "p999", "Max"));
+        for (Map.Entry<String, LatencyHistogram> entry : MetricsRegistry.getDefault().getHistograms().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            displayMessage(String.format("%-42s %8d %10.1f %10.1f %10.1f %10.1f", entry.getKey(), 
+                    histogram.getCount(), histogram.getP50Micros(), histogram.getP99Micros(), 
+                    histogram.getP999Micros(), histogram.getMaxMicros()));
+        }
+        getInput("Press Enter to continue...");
+    }
+
+    private void handleShowFootprint() {
+        clearScreen();
+        displayMessage("===================================");
+        displayMessage("         STORAGE FOOTPRINT         ");
+        displayMessage("===================================");
+        for (String line : footprintReport.generate(FOOTPRINT_TOP)) {
+            displayMessage(line);
+        }
+        getInput("Press Enter to continue...");
+    }
+
+    private void handleShowCounters() {
+        clearScreen();
+        for (Map.Entry<String, Counter> entry : MetricsRegistry.getDefault().getCounters().entrySet()) {
+            displayMessage(String.format("%-42s %14d", entry.getKey(), entry.getValue().getValue()));
+        }
+        getInput("Press Enter to continue...");
+    }
     
     private void handleLogin() {
         clearScreen();
@@ -298,11 +424,15 @@ public class ConsoleUI implements UserInterface {
             return;
         }
         
-        boolean success = userService.registerUser(username, password);
-        if (success) {
-            displayMessage("Registration successful! You can now login.");
-        } else {
-            displayMessage("Registration failed. Username may already exist.");
+        try {
+            boolean success = userService.registerUser(username, password);
+            if (success) {
+                displayMessage("Registration successful! You can now login.");
+            } else {
+                displayMessage("Registration failed. Username may already exist.");
+            }
+        } catch (UncheckedIOException e) {
+            displayMessage("Registration failed: it could not be saved. " + e.getMessage());
         }
         
         getInput("Press Enter to continue...");
@@ -432,36 +562,8 @@ public class ConsoleUI implements UserInterface {
         }
 
         User currentUser = userService.getCurrentUser();
-        String currentUsername = currentUser.getUsername();
-        List<Message> allMessages = dataPersistence.loadMessages();
-        Map<String, Integer> unreadMessageCounts = new HashMap<>();
-        Map<String, Integer> unreadGroupMessageCounts = new HashMap<>();
-
-        for (Message message : allMessages) {
-            if (!message.isGroupMessage() && message.getReceiverId().equals(currentUsername)) {
-                String senderId = message.getSenderId();
-                LocalDateTime lastReadTime = currentUser.getLastReadTime(senderId);
-
-                if (lastReadTime == null || message.getTimestamp().isAfter(lastReadTime)) {
-                    unreadMessageCounts.put(senderId, unreadMessageCounts.getOrDefault(senderId, 0) + 1);
-                }
-            }
-            else if (message.isGroupMessage()) {
-                try {
-                    String groupId = message.getReceiverId();
-                    Group group = groupService.getGroupById(groupId);
-
-                    if (group.isMember(currentUsername) && !message.getSenderId().equals(currentUsername)) {
-                        LocalDateTime lastReadGroupTime = currentUser.getLastReadGroupTime(groupId);
-
-                        if (lastReadGroupTime == null || message.getTimestamp().isAfter(lastReadGroupTime)) {
-                            unreadGroupMessageCounts.put(groupId, unreadGroupMessageCounts.getOrDefault(groupId, 0) + 1);
-                        }
-                    }
-                } catch (GroupNotFoundException e) {
-                }
-            }
-        }
+        Map<String, Integer> unreadMessageCounts = messageService.getUnreadDirectCounts(currentUser);
+        Map<String, Integer> unreadGroupMessageCounts = messageService.getUnreadGroupCounts(currentUser);
 
         if (!unreadMessageCounts.isEmpty()) {
             displayMessage("\n*** UNREAD MESSAGES ***");
@@ -501,13 +603,12 @@ public class ConsoleUI implements UserInterface {
             displayMessage("Message History:");
             for (Message message : messages) {
                 String prefix = message.getSenderId().equals(userService.getCurrentUsername()) ? "You" : username;
-                displayMessage("[" + message.getFormattedTimestamp() + "] " + prefix + ": " + message.getContent());
+                displayChatMessage(message, prefix);
             }
         }
 
-        User currentUser = userService.getCurrentUser();
-        currentUser.updateLastReadTime(username);
-        userService.saveUser(currentUser);
+        String conversationId = Message.directConversationId(userService.getCurrentUsername(), username);
+        markConversationRead(conversationId);
 
         displayMessage("-----------------------------------");
         displayMessage("Type your message or enter 'EXIT' to return:");
@@ -516,20 +617,24 @@ public class ConsoleUI implements UserInterface {
             String messageContent = getInput("");
 
             if (messageContent.equalsIgnoreCase("EXIT")) {
-                currentUser = userService.getCurrentUser();
-                currentUser.updateLastReadTime(username);
-                userService.saveUser(currentUser);
+                markConversationRead(conversationId);
                 break;
             }
 
             if (!messageContent.isEmpty()) {
-                Message sentMessage = messageService.sendDirectMessage(
-                        userService.getCurrentUsername(),
-                        username,
-                        messageContent
-                );
+                try {
+                    Message sentMessage = messageService.sendDirectMessage(
+                            userService.getCurrentUsername(),
+                            username,
+                            messageContent
+                    );
 
-                displayMessage("[" + sentMessage.getFormattedTimestamp() + "] You: " + sentMessage.getContent());
+                    displayChatMessage(sentMessage, "You");
+                } catch (RateLimitExceededException e) {
+                    displayRateLimited(e);
+                } catch (UncheckedIOException e) {
+                    displayMessage("Message not sent: it could not be saved. " + e.getMessage());
+                }
             }
         }
     }
@@ -611,27 +716,50 @@ public class ConsoleUI implements UserInterface {
             return;
         }
         
-        List<Group> groups = groupService.searchGroups(searchTerm);
+        int page = 0;
+        List<Group> groups = groupService.searchGroups(searchTerm, GroupNameIndex.SortOrder.RELEVANCE, 
+                page, SEARCH_PAGE_SIZE);
         
         if (groups.isEmpty()) {
             displayMessage("No groups found matching '" + searchTerm + "'.");
         } else {
-            displayMessage("Groups found:");
-            for (int i = 0; i < groups.size(); i++) {
-                Group group = groups.get(i);
-                String membership = group.isMember(userService.getCurrentUsername()) ? " (Member)" : "";
-                displayMessage((i + 1) + ". " + group.getGroupName() + membership);
+            String input;
+            while (true) {
+                displayMessage(page == 0 ? "Groups found:" : "Groups found (page " + (page + 1) + "):");
+                for (int i = 0; i < groups.size(); i++) {
+                    Group group = groups.get(i);
+                    String membership = groupService.isMember(group, userService.getCurrentUsername()) ? " (Member)" : "";
+                    displayMessage((i + 1) + ". " + group.getGroupName() + membership);
+                }
+                
+                // A full page may have more behind it
+                boolean full = groups.size() == SEARCH_PAGE_SIZE;
+                displayMessage("-----------------------------------");
+                displayMessage(full 
+                        ? "Enter the number to select a group, n for more results, or 0 to return:" 
+                        : "Enter the number to select a group, or 0 to return:");
+                
+                input = getInput("");
+                if (!full || !input.equalsIgnoreCase("n")) {
+                    break;
+                }
+                
+                List<Group> next = groupService.searchGroups(searchTerm, GroupNameIndex.SortOrder.RELEVANCE, 
+                        page + 1, SEARCH_PAGE_SIZE);
+                if (next.isEmpty()) {
+                    displayMessage("No more groups found.");
+                } else {
+                    page++;
+                    groups = next;
+                }
             }
             
-            displayMessage("-----------------------------------");
-            displayMessage("Enter the number to select a group, or 0 to return:");
-            
             try {
-                int choice = Integer.parseInt(getInput(""));
+                int choice = Integer.parseInt(input);
                 if (choice > 0 && choice <= groups.size()) {
                     Group selectedGroup = groups.get(choice - 1);
                     
-                    if (selectedGroup.isMember(userService.getCurrentUsername())) {
+                    if (groupService.isMember(selectedGroup, userService.getCurrentUsername())) {
                         handleGroupDetails(selectedGroup);
                     } else {
                         handleNonMemberGroupOptions(selectedGroup);
@@ -654,7 +782,7 @@ public class ConsoleUI implements UserInterface {
             displayMessage("         GROUP: " + group.getGroupName());
             displayMessage("===================================");
             displayMessage("Admin: " + group.getAdminUsername());
-            displayMessage("Members: " + group.getMembers().size());
+            displayMessage("Members: " + group.getMemberCount());
             displayMessage("-----------------------------------");
             displayMessage("1. View Group Chat");
             displayMessage("2. View Members");
@@ -733,7 +861,7 @@ public class ConsoleUI implements UserInterface {
         displayMessage("         GROUP: " + group.getGroupName());
         displayMessage("===================================");
         displayMessage("Admin: " + group.getAdminUsername());
-        displayMessage("Members: " + group.getMembers().size());
+        displayMessage("Members: " + group.getMemberCount());
         displayMessage("-----------------------------------");
         
         try {
@@ -781,13 +909,11 @@ public class ConsoleUI implements UserInterface {
         } else {
             for (Message message : messages) {
                 String sender = message.getSenderId().equals(userService.getCurrentUsername()) ? "You" : message.getSenderId();
-                displayMessage("[" + message.getFormattedTimestamp() + "] " + sender + ": " + message.getContent());
+                displayChatMessage(message, sender);
             }
         }
 
-        User currentUser = userService.getCurrentUser();
-        currentUser.updateLastReadGroupTime(group.getGroupId());
-        userService.saveUser(currentUser);
+        markConversationRead(group.getGroupId());
 
         displayMessage("-----------------------------------");
         displayMessage("Type your message or enter 'EXIT' to return:");
@@ -796,25 +922,41 @@ public class ConsoleUI implements UserInterface {
             String messageContent = getInput("");
 
             if (messageContent.equalsIgnoreCase("EXIT")) {
-                // Update the last read time again when exiting to capture any new messages
-                currentUser = userService.getCurrentUser();
-                currentUser.updateLastReadGroupTime(group.getGroupId());
-                userService.saveUser(currentUser);
+                // Mark read again when exiting to capture any new messages
+                markConversationRead(group.getGroupId());
                 break;
             }
 
             if (!messageContent.isEmpty()) {
-                Message sentMessage = messageService.sendGroupMessage(
-                        userService.getCurrentUsername(),
-                        group.getGroupId(),
-                        messageContent
-                );
+                try {
+                    Message sentMessage = messageService.sendGroupMessage(
+                            userService.getCurrentUsername(),
+                            group.getGroupId(),
+                            messageContent
+                    );
 
-                displayMessage("[" + sentMessage.getFormattedTimestamp() + "] You: " + sentMessage.getContent());
+                    displayChatMessage(sentMessage, "You");
+                } catch (RateLimitExceededException e) {
+                    displayRateLimited(e);
+                } catch (UncheckedIOException e) {
+                    displayMessage("Message not sent: it could not be saved. " + e.getMessage());
+                }
             }
         }
     }
     
+    private void displayRateLimited(RateLimitExceededException e) {
+        displayMessage("Message not sent: " + e.getMessage() 
+                + " Try again in " + Math.max(1, (e.getRetryAfterMillis() + 999) / 1000) + " second(s).");
+    }
+
+    // Moves the read marker up to the newest message in the conversation
+    private void markConversationRead(String conversationId) {
+        long head = messageService.getHeadSequence(conversationId);
+        userService.updateUserWithRetry(userService.getCurrentUsername(),
+                user -> user.markRead(conversationId, head));
+    }
+
     private void handleViewGroupMembers(Group group) {
         clearScreen();
         displayMessage("===================================");
@@ -822,7 +964,7 @@ public class ConsoleUI implements UserInterface {
         displayMessage("===================================");
         
         int count = 1;
-        for (String memberUsername : group.getMembers()) {
+        for (String memberUsername : groupService.getMemberUsernames(group)) {
             String adminIndicator = group.isAdmin(memberUsername) ? " (Admin)" : "";
             displayMessage(count + ". " + memberUsername + adminIndicator);
             count++;
@@ -867,6 +1009,60 @@ public class ConsoleUI implements UserInterface {
         getInput("Press Enter to continue...");
     }
     
+    private void handleJoinRequestInbox() {
+        clearScreen();
+        displayMessage("===================================");
+        displayMessage("        JOIN REQUEST INBOX         ");
+        displayMessage("===================================");
+        
+        String adminUsername = userService.getCurrentUsername();
+        List<JoinRequest> requests = groupService.getAdminInbox(adminUsername);
+        
+        if (requests.isEmpty()) {
+            displayMessage("No pending join requests in your groups.");
+            getInput("Press Enter to continue...");
+            return;
+        }
+        
+        Map<String, String> groupNames = new HashMap<>();
+        for (Group group : groupService.getUserGroups(adminUsername)) {
+            groupNames.put(group.getGroupId(), group.getGroupName());
+        }
+        
+        for (int i = 0; i < requests.size(); i++) {
+            JoinRequest request = requests.get(i);
+            displayMessage((i + 1) + ". " + request.getRequestorUsername() + " -> " 
+                    + groupNames.getOrDefault(request.getGroupId(), request.getGroupId()));
+        }
+        
+        displayMessage("-----------------------------------");
+        displayMessage("Enter 'A' to accept all, 'R' to reject all, a number to respond to one, or 0 to return:");
+        
+        String choice = getInput("");
+        
+        if (choice.equalsIgnoreCase("A")) {
+            int accepted = groupService.acceptJoinRequests(adminUsername, requests);
+            displayMessage(accepted + " request(s) accepted.");
+        } else if (choice.equalsIgnoreCase("R")) {
+            int rejected = groupService.rejectJoinRequests(adminUsername, requests);
+            displayMessage(rejected + " request(s) rejected.");
+        } else {
+            try {
+                int index = Integer.parseInt(choice);
+                if (index > 0 && index <= requests.size()) {
+                    JoinRequest selectedRequest = requests.get(index - 1);
+                    handleJoinRequestResponse(groupService.getGroupById(selectedRequest.getGroupId()), selectedRequest);
+                }
+            } catch (NumberFormatException e) {
+                displayMessage("Invalid input.");
+            } catch (GroupNotFoundException e) {
+                displayMessage("Error: Group not found. It may have been deleted.");
+            }
+        }
+        
+        getInput("Press Enter to continue...");
+    }
+    
     private void handleJoinRequestResponse(Group group, JoinRequest request) throws GroupNotFoundException {
         clearScreen();
         displayMessage("===================================");
@@ -918,7 +1114,7 @@ public class ConsoleUI implements UserInterface {
         displayMessage("     REMOVE MEMBER FROM GROUP      ");
         displayMessage("===================================");
         
-        List<String> members = new ArrayList<>(group.getMembers());
+        List<String> members = groupService.getMemberUsernames(group);
         members.remove(userService.getCurrentUsername()); // Don't show admin
         
         if (members.isEmpty()) {
@@ -1009,20 +1205,15 @@ public class ConsoleUI implements UserInterface {
         String confirm = getInput("").toLowerCase();
         
         if (confirm.equals("y") || confirm.equals("yes")) {
-            Group updatedGroup = groupService.getGroupById(group.getGroupId());
-            updatedGroup.removeMember(userService.getCurrentUsername());
-
-            User user = userService.getCurrentUser();
-            user.removeGroup(group.getGroupId());
-            userService.saveUser(user);
-
-            Map<String, Group> groups = dataPersistence.loadGroups();
-            groups.put(group.getGroupId(), updatedGroup);
-            dataPersistence.saveGroups(groups);
+            boolean left = groupService.leaveGroup(group.getGroupId(), userService.getCurrentUsername());
             
-            displayMessage("You have left the group '" + group.getGroupName() + "'.");
+            if (left) {
+                displayMessage("You have left the group '" + group.getGroupName() + "'.");
+            } else {
+                displayMessage("Failed to leave group.");
+            }
             getInput("Press Enter to continue...");
-            return true;
+            return left;
         } else {
             displayMessage("Group exit cancelled.");
             getInput("Press Enter to continue...");
@@ -1042,26 +1233,19 @@ public class ConsoleUI implements UserInterface {
         String confirm = getInput("");
         
         if (confirm.equals("DELETE")) {
-            messageService.deleteUserMessages(userService.getCurrentUsername());
+            AccountDeletionCascade.ProgressListener progress = (stage, completed, total) ->
+                    displayMessage("  " + stage + ": " + completed + "/" + total);
+            AccountDeletionCascade.Plan plan = accountDeletionCascade.plan();
+            boolean deleted = false;
 
-            List<Group> userGroups = groupService.getUserGroups(userService.getCurrentUsername());
-            for (Group group : userGroups) {
-                try {
-                    if (group.isAdmin(userService.getCurrentUsername())) {
-                        groupService.deleteGroup(group.getGroupId(), userService.getCurrentUsername());
-                        messageService.deleteGroupMessages(group.getGroupId());
-                    } else {
-                        group.removeMember(userService.getCurrentUsername());
-
-                        Map<String, Group> groups = dataPersistence.loadGroups();
-                        groups.put(group.getGroupId(), group);
-                        dataPersistence.saveGroups(groups);
-                    }
-                } catch (GroupNotFoundException e) {
+            if (plan != null) {
+                displayMessage(plan.toString());
+                deleted = accountDeletionCascade.execute(plan, progress);
+                if (!deleted) {
+                    // A group changed while we were planning, start over
+                    deleted = accountDeletionCascade.deleteCurrentAccount(progress);
                 }
             }
-
-            boolean deleted = userService.deleteAccount();
             
             if (deleted) {
                 displayMessage("Your account has been deleted.");
@@ -0,0 +1,183 @@
+package com.chatapp.ui;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.replication.ReadReplica;
+import com.chatapp.replication.ReplicationFollower;
+import com.chatapp.util.GroupNameIndex;
+
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Console for a follower node: chat history and search over the replicated
+ * data, plus the replication status. Nothing can be changed from here; all
+ * writes go to the primary.
+ */
+public class ReplicaConsole {
+    private static final int SEARCH_LIMIT = 20;
+
+    private final ReadReplica replica;
+    private final ReplicationFollower follower;
+    private final Scanner scanner;
+    private final ChatRenderer renderer;
+    private boolean running;
+
+    public ReplicaConsole(ReadReplica replica, ReplicationFollower follower) {
+        this.replica = replica;
+        this.follower = follower;
+        this.scanner = new Scanner(System.in);
+        this.renderer = ChatRenderer.forTerminal(System.out);
+    }
+
+    public void start() {
+        running = true;
+        while (running) {
+            showMenu();
+        }
+        renderer.flush();
+    }
+
+    private void showMenu() {
+        renderer.newScreen();
+        renderer.line("===================================");
+        renderer.line("          READ-ONLY REPLICA        ");
+        renderer.line("===================================");
+        renderer.line("1. Direct Messages Between Users");
+        renderer.line("2. Group Messages");
+        renderer.line("3. Search Users");
+        renderer.line("4. Replication Status");
+        renderer.line("5. Exit");
+        renderer.line("-----------------------------------");
+
+        String choice = getInput("Choose an option (1-5):");
+        if (choice == null) {
+            running = false;
+            return;
+        }
+
+        switch (choice) {
+            case "1":
+                handleDirectMessages();
+                break;
+            case "2":
+                handleGroupMessages();
+                break;
+            case "3":
+                handleSearchUsers();
+                break;
+            case "4":
+                handleStatus();
+                break;
+            case "5":
+                running = false;
+                break;
+            default:
+                renderer.line("Invalid option. Please try again.");
+                pause();
+        }
+    }
+
+    private void handleDirectMessages() {
+        String user1 = getInput("First username:");
+        String user2 = getInput("Second username:");
+        if (user1 == null || user2 == null) {
+            return;
+        }
+
+        List<Message> messages = replica.getDirectMessagesBetweenUsers(user1, user2);
+        if (messages.isEmpty()) {
+            renderer.line("No messages between " + user1 + " and " + user2 + ".");
+        } else {
+            for (Message message : messages) {
+                renderer.messageLine(message, message.getSenderId());
+            }
+        }
+        pause();
+    }
+
+    private void handleGroupMessages() {
+        String searchTerm = getInput("Enter group name to search for:");
+        if (searchTerm == null || searchTerm.isEmpty()) {
+            return;
+        }
+
+        List<Group> groups = replica.searchGroups(searchTerm, GroupNameIndex.SortOrder.RELEVANCE, 0, SEARCH_LIMIT);
+        if (groups.isEmpty()) {
+            renderer.line("No groups found matching '" + searchTerm + "'.");
+            pause();
+            return;
+        }
+
+        renderer.line("Groups found:");
+        for (int i = 0; i < groups.size(); i++) {
+            renderer.line((i + 1) + ". " + groups.get(i).getGroupName());
+        }
+        if (groups.size() == SEARCH_LIMIT) {
+            renderer.line("Showing the first " + SEARCH_LIMIT + " matches; narrow the search to see others.");
+        }
+        int choice;
+        try {
+            choice = Integer.parseInt(getInput("Enter the number to show its messages, or 0 to return:"));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (choice <= 0 || choice > groups.size()) {
+            return;
+        }
+
+        Group group = groups.get(choice - 1);
+        List<Message> messages = replica.getGroupMessages(group.getGroupId());
+        if (messages.isEmpty()) {
+            renderer.line("No messages in " + group.getGroupName() + ".");
+        } else {
+            for (Message message : messages) {
+                renderer.messageLine(message, message.getSenderId());
+            }
+        }
+        pause();
+    }
+
+    private void handleSearchUsers() {
+        String searchTerm = getInput("Enter username to search for:");
+        if (searchTerm == null || searchTerm.isEmpty()) {
+            return;
+        }
+
+        List<String> users = replica.searchUsers(searchTerm, SEARCH_LIMIT);
+        if (users.isEmpty()) {
+            renderer.line("No users found matching '" + searchTerm + "'.");
+        } else {
+            renderer.line("Users found:");
+            for (int i = 0; i < users.size(); i++) {
+                renderer.line((i + 1) + ". " + users.get(i));
+            }
+        }
+        pause();
+    }
+
+    private void handleStatus() {
+        renderer.line("Connected:        " + (follower.isConnected() ? "yes" : "no"));
+        renderer.line("Applied sequence: " + follower.getAppliedSequence());
+        renderer.line("Records behind:   " + follower.getRecordsBehind());
+        renderer.line("Lag (ms):         " + follower.getLagMillis());
+        renderer.line("Users: " + replica.getUserCount() + ", groups: " + replica.getGroupCount()
+                + ", conversations: " + replica.getConversationCount());
+        pause();
+    }
+
+    private void pause() {
+        getInput("Press Enter to continue...");
+    }
+
+    // Null once input runs out
+    private String getInput(String prompt) {
+        renderer.prompt(prompt);
+        if (!scanner.hasNextLine()) {
+            return null;
+        }
+        String input = scanner.nextLine();
+        renderer.inputLine(input);
+        return input.trim();
+    }
+}
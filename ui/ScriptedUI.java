@@ -0,0 +1,137 @@
+package com.chatapp.ui;
+
+import com.chatapp.model.Message;
+import com.chatapp.service.GroupService;
+import com.chatapp.service.MessageService;
+import com.chatapp.service.UserService;
+import com.chatapp.util.DataStore;
+
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.Scanner;
+
+/**
+ * Runs the console screens from a script instead of the keyboard, at full
+ * speed: one input per line, answered to whatever the screen asks next.
+ * Blank lines and lines starting with '#' are skipped, "Press Enter" pauses
+ * are passed without input and the screen is never cleared. The run ends
+ * when the script chooses Exit or runs out of lines.
+ *
+ * Output is one JSON object per line: {@code {"type":"output","text":...}}
+ * for everything the screens print, and
+ * {@code {"type":"input","prompt":...,"value":...,"elapsedMicros":...}} for
+ * each scripted answer, where the time is how long the screens took since
+ * the previous answer. A final {@code {"type":"end",...}} line sums up the
+ * run.
+ */
+public class ScriptedUI extends ConsoleUI {
+    private static final String PAUSE_PROMPT = "Press Enter";
+
+    private final Scanner script;
+    private final PrintStream out;
+    private int inputs;
+    private long started;
+    private long lastInput;
+
+    public ScriptedUI(DataStore dataPersistence, UserService userService, 
+            MessageService messageService, GroupService groupService, Reader script, PrintStream out) {
+        this(dataPersistence, userService, messageService, groupService, new Scanner(script), out);
+    }
+
+    private ScriptedUI(DataStore dataPersistence, UserService userService, 
+            MessageService messageService, GroupService groupService, Scanner script, PrintStream out) {
+        super(dataPersistence, userService, messageService, groupService, script);
+        this.script = script;
+        this.out = out;
+    }
+
+    @Override
+    public void start() {
+        started = System.nanoTime();
+        lastInput = started;
+        try {
+            super.start();
+        } catch (EndOfScript e) {
+            // Ran out of input somewhere in the screens
+            script.close();
+        } finally {
+            out.println("{\"type\":\"end\",\"inputs\":" + inputs 
+                    + ",\"elapsedMicros\":" + (System.nanoTime() - started) / 1000 + "}");
+            out.flush();
+        }
+    }
+
+    @Override
+    public void displayMessage(String message) {
+        out.println("{\"type\":\"output\",\"text\":" + quote(message) + "}");
+    }
+
+    @Override
+    protected void displayChatMessage(Message message, String sender) {
+        displayMessage("[" + message.getFormattedTimestamp() + "] " + sender + ": " + message.getContent());
+    }
+
+    @Override
+    public String getInput(String prompt) {
+        if (prompt.startsWith(PAUSE_PROMPT)) {
+            return "";
+        }
+
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                throw new EndOfScript();
+            }
+            line = line.trim();
+        } while (line.isEmpty() || line.startsWith("#"));
+
+        long now = System.nanoTime();
+        out.println("{\"type\":\"input\",\"prompt\":" + quote(prompt) + ",\"value\":" + quote(line) 
+                + ",\"elapsedMicros\":" + (now - lastInput) / 1000 + "}");
+        lastInput = now;
+        inputs++;
+        return line;
+    }
+
+    @Override
+    public void clearScreen() {
+        // Nothing to clear
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    // Unwinds whatever screen was waiting for input
+    private static class EndOfScript extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,82 @@
+package com.chatapp.util;
+
+import com.chatapp.model.JoinRequest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Pending join requests of every group, indexed by the admin who has to
+ * answer them and kept in request time order, so an admin's whole inbox is
+ * one lookup instead of a visit to each group. They are also indexed by
+ * requestor, e.g. to withdraw a deleted user's requests.
+ */
+public class AdminInbox {
+    private static final Comparator<JoinRequest> BY_TIME = 
+            Comparator.comparing(JoinRequest::getRequestTime)
+                    .thenComparing(JoinRequest::getRequestId);
+
+    private final Map<String, NavigableSet<JoinRequest>> requestsByAdmin = new HashMap<>();
+    private final Map<String, NavigableSet<JoinRequest>> requestsByRequestor = new HashMap<>();
+
+    public synchronized void add(String adminUsername, JoinRequest request) {
+        requestsByAdmin.computeIfAbsent(adminUsername, admin -> new TreeSet<>(BY_TIME)).add(request);
+        requestsByRequestor.computeIfAbsent(request.getRequestorUsername(), requestor -> new TreeSet<>(BY_TIME))
+                .add(request);
+    }
+
+    public synchronized void remove(String adminUsername, JoinRequest request) {
+        removeFrom(requestsByAdmin, adminUsername, request);
+        removeFrom(requestsByRequestor, request.getRequestorUsername(), request);
+    }
+
+    public synchronized void removeGroup(String adminUsername, String groupId) {
+        NavigableSet<JoinRequest> requests = requestsByAdmin.get(adminUsername);
+        if (requests != null) {
+            for (JoinRequest request : new ArrayList<>(requests)) {
+                if (request.getGroupId().equals(groupId)) {
+                    remove(adminUsername, request);
+                }
+            }
+        }
+    }
+
+    /**
+     * All requests the user is waiting on, oldest first.
+     */
+    public synchronized List<JoinRequest> getByRequestor(String requestorUsername) {
+        NavigableSet<JoinRequest> requests = requestsByRequestor.get(requestorUsername);
+        return requests != null ? new ArrayList<>(requests) : new ArrayList<>();
+    }
+
+    /**
+     * All requests waiting on the admin, oldest first.
+     */
+    public synchronized List<JoinRequest> get(String adminUsername) {
+        NavigableSet<JoinRequest> requests = requestsByAdmin.get(adminUsername);
+        return requests != null ? new ArrayList<>(requests) : new ArrayList<>();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (NavigableSet<JoinRequest> requests : requestsByAdmin.values()) {
+            size += requests.size();
+        }
+        return size;
+    }
+
+    private static void removeFrom(Map<String, NavigableSet<JoinRequest>> index, String key, JoinRequest request) {
+        NavigableSet<JoinRequest> requests = index.get(key);
+        if (requests != null) {
+            requests.remove(request);
+            if (requests.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.chatapp.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Where each conversation's messages sit in a messages file: the offset of
+ * every chunk holding some of them, in file order, so one conversation can
+ * be read without decoding the others. Covers the file up to
+ * {@link #getIndexedLength}; chunks written past that are added as they are
+ * found. Guarded by the {@link DataPersistence} owning the file.
+ */
+final class ChunkIndex {
+    private final Map<String, Offsets> offsets = new HashMap<>();
+    private long indexedLength;
+
+    /**
+     * Records that the chunk starting at the offset holds messages of the
+     * conversation. Offsets come in file order.
+     */
+    void add(String conversationId, long offset) {
+        offsets.computeIfAbsent(conversationId, id -> new Offsets()).add(offset);
+    }
+
+    /**
+     * Offsets of the chunks holding the conversation, in file order.
+     */
+    long[] get(String conversationId) {
+        Offsets found = offsets.get(conversationId);
+        return found == null ? new long[0] : Arrays.copyOf(found.values, found.size);
+    }
+
+    long getIndexedLength() {
+        return indexedLength;
+    }
+
+    void setIndexedLength(long indexedLength) {
+        this.indexedLength = indexedLength;
+    }
+
+    private static final class Offsets {
+        private long[] values = new long[2];
+        private int size;
+
+        private void add(long offset) {
+            if (size > 0 && values[size - 1] == offset) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = offset;
+        }
+    }
+}
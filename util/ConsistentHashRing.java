@@ -0,0 +1,81 @@
+package com.chatapp.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps keys to shards by consistent hashing: each shard owns many points on
+ * a 64-bit ring, and a key belongs to the shard owning the first point at or
+ * after the key's hash.
+ *
+ * Going from N to N+1 shards only adds points, so a key either stays put or
+ * moves to the new shard, about 1/(N+1) of them in all. The hash is computed
+ * from the characters, so placement is the same in every JVM and run.
+ */
+public class ConsistentHashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int shardCount;
+    private final long[] points;  // Sorted
+    private final int[] owners;   // Shard owning the point at the same index
+
+    public ConsistentHashRing(int shardCount) {
+        this(shardCount, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int shardCount, int virtualNodes) {
+        if (shardCount <= 0 || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Need at least one shard and one virtual node per shard");
+        }
+
+        this.shardCount = shardCount;
+        long[] unsorted = new long[shardCount * virtualNodes];
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                unsorted[shard * virtualNodes + node] = hash("shard-" + shard + "#" + node);
+            }
+        }
+
+        // Sort points and owners together
+        Integer[] order = new Integer[unsorted.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        this.points = new long[order.length];
+        this.owners = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = unsorted[order[i]];
+            owners[i] = order[i] / virtualNodes;
+        }
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int shardFor(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0; // Past the last point, wrap around
+            }
+        }
+        return owners[index];
+    }
+
+    // FNV-1a over the characters, then a finalizer to spread nearby keys
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,343 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Message;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Message history per conversation, kept in sequence order.
+ *
+ * Messages are stored so that sequence order is also time order within a
+ * conversation, so one sorted array answers both time-range queries and
+ * "everything after my read marker" by binary search, without touching the
+ * rest of the conversation.
+ *
+ * With a window, only the latest messages of each conversation stay in
+ * memory. Queries reaching further back than that get the older part from
+ * the history source, e.g. the message file.
+ */
+public class ConversationIndex {
+    private final Map<String, Timeline> timelines = new ConcurrentHashMap<>();
+    private final int window; // 0 keeps everything
+    private final Function<String, List<Message>> history;
+
+    /**
+     * Keeps every message in memory.
+     */
+    public ConversationIndex() {
+        this(0, conversationId -> new ArrayList<>());
+    }
+
+    /**
+     * @param window  messages per conversation kept in memory; a
+     *                conversation may briefly hold a quarter more
+     * @param history every stored message of a conversation, in any order;
+     *                only called outside the index's locks
+     */
+    public ConversationIndex(int window, Function<String, List<Message>> history) {
+        this.window = window;
+        this.history = history;
+    }
+
+    public void add(Message message) {
+        timelines.computeIfAbsent(message.getConversationId(), id -> new Timeline(window)).add(message);
+    }
+
+    public void clear() {
+        timelines.clear();
+    }
+
+    /**
+     * Forgets a conversation whose messages were all deleted.
+     */
+    public void removeConversation(String conversationId) {
+        timelines.remove(conversationId);
+    }
+
+    /**
+     * Forgets the messages of one conversation that pass the filter.
+     */
+    public void removeIf(String conversationId, Predicate<Message> filter) {
+        Timeline timeline = timelines.get(conversationId);
+        if (timeline != null) {
+            timeline.removeIf(filter);
+        }
+    }
+
+    /**
+     * Forgets the messages that pass the filter, in every conversation. Only
+     * walks what is in memory; older messages are up to the history source.
+     */
+    public void removeIf(Predicate<Message> filter) {
+        timelines.values().forEach(timeline -> timeline.removeIf(filter));
+    }
+
+    /**
+     * Whole conversation, oldest first.
+     */
+    public List<Message> getAll(String conversationId) {
+        Timeline timeline = timelines.get(conversationId);
+        if (timeline == null) {
+            return new ArrayList<>();
+        }
+        List<Message> result = timeline.all();
+        return result != null ? result : fromHistory(conversationId, timeline, message -> true);
+    }
+
+    /**
+     * Messages with {@code from <= timestamp < to}, oldest first. A null
+     * bound is open.
+     */
+    public List<Message> getBetween(String conversationId, LocalDateTime from, LocalDateTime to) {
+        Timeline timeline = timelines.get(conversationId);
+        if (timeline == null) {
+            return new ArrayList<>();
+        }
+        List<Message> result = timeline.between(from, to);
+        return result != null ? result : fromHistory(conversationId, timeline, message -> 
+                (from == null || !message.getTimestamp().isBefore(from)) 
+                        && (to == null || message.getTimestamp().isBefore(to)));
+    }
+
+    /**
+     * Messages with a sequence number above the given one, oldest first.
+     */
+    public List<Message> getAfter(String conversationId, long sequence) {
+        Timeline timeline = timelines.get(conversationId);
+        if (timeline == null) {
+            return new ArrayList<>();
+        }
+        List<Message> result = timeline.after(sequence);
+        return result != null ? result : fromHistory(conversationId, timeline, 
+                message -> message.getSequence() > sequence);
+    }
+
+    /**
+     * The latest messages held in memory, at most {@code count}, oldest
+     * first. Never goes to the history source.
+     */
+    public List<Message> getLatest(String conversationId, int count) {
+        Timeline timeline = timelines.get(conversationId);
+        return timeline != null ? timeline.latest(count) : new ArrayList<>();
+    }
+
+    public LocalDateTime getLatestTimestamp(String conversationId) {
+        Timeline timeline = timelines.get(conversationId);
+        return timeline != null ? timeline.latestTimestamp() : null;
+    }
+
+    public int getConversationCount() {
+        return timelines.size();
+    }
+
+    /**
+     * Messages held in memory per conversation. Each count is exact at the
+     * moment it is read; the map as a whole is not a snapshot.
+     */
+    public Map<String, Integer> getConversationSizes() {
+        Map<String, Integer> sizes = new HashMap<>();
+        timelines.forEach((conversationId, timeline) -> sizes.put(conversationId, timeline.size()));
+        return sizes;
+    }
+
+    /**
+     * About {@code count} messages picked uniformly from those in memory,
+     * taking each conversation's lock only briefly, so writers are not held
+     * up for the whole walk.
+     */
+    public List<Message> sample(int count, Random random) {
+        List<Timeline> all = new ArrayList<>(timelines.values());
+        long total = 0;
+        for (Timeline timeline : all) {
+            total += timeline.size();
+        }
+        if (total == 0 || count <= 0) {
+            return new ArrayList<>();
+        }
+
+        long[] positions = new long[(int) Math.min(count, total)];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = (long) (random.nextDouble() * total);
+        }
+        Arrays.sort(positions);
+
+        List<Message> sample = new ArrayList<>(positions.length);
+        long offset = 0;
+        int next = 0;
+        for (Timeline timeline : all) {
+            int size = timeline.size();
+            while (next < positions.length && positions[next] < offset + size) {
+                Message message = timeline.get((int) (positions[next] - offset));
+                if (message != null) {
+                    sample.add(message);
+                }
+                next++;
+            }
+            offset += size;
+        }
+        return sample;
+    }
+
+    // The in-memory part of the conversation plus the older part from the
+    // history source, keeping those that pass the filter
+    private List<Message> fromHistory(String conversationId, Timeline timeline, Predicate<Message> filter) {
+        long evictedUpTo;
+        List<Message> recent;
+        synchronized (timeline) {
+            evictedUpTo = timeline.evictedUpTo;
+            recent = timeline.range(0, Integer.MAX_VALUE);
+        }
+
+        List<Message> result = new ArrayList<>();
+        for (Message message : history.apply(conversationId)) {
+            if (message.getSequence() <= evictedUpTo && filter.test(message)) {
+                result.add(message);
+            }
+        }
+        result.sort(Comparator.comparingLong(Message::getSequence));
+        for (Message message : recent) {
+            if (filter.test(message)) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    private static final class Timeline {
+        private final int window;
+        private Message[] messages = new Message[8];
+        private int size;
+        // Latest message no longer in memory; everything after it still is
+        private long evictedUpTo;
+        private LocalDateTime evictedUntil;
+
+        Timeline(int window) {
+            this.window = window;
+        }
+
+        synchronized void add(Message message) {
+            if (evictedUpTo > 0 && message.getSequence() <= evictedUpTo) {
+                return; // Late arrival older than the window; only history has it
+            }
+            if (size == messages.length) {
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+
+            // Normally an append; older data may arrive slightly out of order
+            int index = size;
+            while (index > 0 && messages[index - 1].getSequence() > message.getSequence()) {
+                messages[index] = messages[index - 1];
+                index--;
+            }
+            messages[index] = message;
+            size++;
+
+            // Evicting in steps of a quarter window keeps the copying cheap
+            if (window > 0 && size >= window + window / 4) {
+                int evicted = size - window;
+                evictedUpTo = messages[evicted - 1].getSequence();
+                evictedUntil = messages[evicted - 1].getTimestamp();
+                System.arraycopy(messages, evicted, messages, 0, window);
+                Arrays.fill(messages, window, size, null);
+                size = window;
+            }
+        }
+
+        synchronized void removeIf(Predicate<Message> filter) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!filter.test(messages[i])) {
+                    messages[kept++] = messages[i];
+                }
+            }
+            Arrays.fill(messages, kept, size, null);
+            size = kept;
+        }
+
+        // Null from here on if part of the answer is no longer in memory
+
+        synchronized List<Message> all() {
+            return evictedUpTo == 0 ? range(0, size) : null;
+        }
+
+        synchronized List<Message> between(LocalDateTime from, LocalDateTime to) {
+            if (evictedUpTo > 0 && (from == null || !from.isAfter(evictedUntil))) {
+                return null;
+            }
+            int start = from == null ? 0 : firstAtOrAfter(from);
+            int end = to == null ? size : firstAtOrAfter(to);
+            return range(start, end);
+        }
+
+        synchronized List<Message> after(long sequence) {
+            return sequence >= evictedUpTo ? range(firstAfter(sequence), size) : null;
+        }
+
+        synchronized List<Message> latest(int count) {
+            return range(Math.max(0, size - count), size);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // Null if the timeline shrank since its size was read
+        synchronized Message get(int index) {
+            return index < size ? messages[index] : null;
+        }
+
+        synchronized LocalDateTime latestTimestamp() {
+            return size > 0 ? messages[size - 1].getTimestamp() : null;
+        }
+
+        synchronized List<Message> range(int start, int end) {
+            end = Math.min(end, size);
+            if (start >= end) {
+                return new ArrayList<>();
+            }
+            List<Message> result = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                result.add(messages[i]);
+            }
+            return result;
+        }
+
+        private int firstAfter(long sequence) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (messages[mid].getSequence() <= sequence) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int firstAtOrAfter(LocalDateTime time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (messages[mid].getTimestamp().isBefore(time)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -3,77 +3,924 @@ package com.chatapp.util;
 import com.chatapp.model.Group;
 import com.chatapp.model.Message;
 import com.chatapp.model.User;
+import com.chatapp.metrics.MeteredInputStream;
+import com.chatapp.metrics.MeteredOutputStream;
+import com.chatapp.metrics.MetricsRegistry;
+import com.chatapp.metrics.OperationContext;
+import com.chatapp.metrics.PersistenceEvent;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
-public class DataPersistence {
+public class DataPersistence implements DataStore {
     private static final String USERS_FILE = "users.dat";
     private static final String MESSAGES_FILE = "messages.dat";
     private static final String GROUPS_FILE = "groups.dat";
-    
+    static final String COUNTERS_FILE = "counters.properties";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int SAVE_CHUNK_SIZE = 512; // Messages per chunk when the file is rewritten
+    // Starts every serialization stream; a chunk read on its own is put behind one
+    private static final byte[] STREAM_HEADER = {
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >> 8), (byte) ObjectStreamConstants.STREAM_VERSION};
 
+    /**
+     * The only classes the data files are made of. Everything read from them
+     * here and on read replicas goes through it, so a planted or tampered
+     * file can't get arbitrary classes deserialized.
+     */
+    public static final ObjectInputFilter DATA_CLASSES = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;com.chatapp.model.*;com.chatapp.util.IntBitmap;com.chatapp.util.IntBitmap$*;"
+            + "com.chatapp.util.ReadMarkers;java.util.ArrayList;java.util.HashMap;java.util.LinkedHashMap;"
+            + "java.util.HashSet;java.util.LinkedHashSet;java.util.Map$Entry;java.time.Ser;"
+            + "java.time.LocalDateTime;java.lang.Object;!*");
+
+    private final File usersFile;
+    private final File messagesFile;
+    private final File groupsFile;
+    private final File countersFile;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private volatile WriteListener writeListener; // Null unless replicating
+    private final ReentrantLock messageLock = new ReentrantLock();
+    // Where the last intact chunk of the messages file ends; -1 until the
+    // first append looks
+    private long messagesIntactLength = -1;
+    // Chunks of the messages file by conversation; null until the file is scanned
+    private ChunkIndex chunkIndex;
+    // Bumped before the messages file is rewritten, so chunk offsets read
+    // before then are known to be stale
+    private long messagesGeneration;
+
+    /**
+     * Receives the exact bytes of every completed write to a data file, e.g.
+     * to ship them to a follower, which replays them with {@link #applyWrite}.
+     * Writes hold this DataPersistence's monitor until the listener has
+     * returned, so they are reported in the order they reached the files.
+     */
+    public interface WriteListener {
+        /**
+         * @param dataset users, groups or messages
+         * @param action  save (the whole file) or append
+         * @param offset  where in the file the bytes start; 0 for a save
+         */
+        void written(String dataset, String action, long offset, byte[] bytes);
+    }
+
+    public DataPersistence() {
+        this(".");
+    }
+
+    /**
+     * Keeps the data files in the given directory, e.g. for benchmarks that
+     * must not touch the real data.
+     */
+    public DataPersistence(String dataDirectory) {
+        File directory = new File(dataDirectory);
+        directory.mkdirs();
+        this.usersFile = new File(directory, USERS_FILE);
+        this.messagesFile = new File(directory, MESSAGES_FILE);
+        this.groupsFile = new File(directory, GROUPS_FILE);
+        this.countersFile = new File(directory, COUNTERS_FILE);
+    }
+
+    @Override
     @SuppressWarnings("unchecked")
     public Map<String, User> loadUsers() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USERS_FILE))) {
-            return (Map<String, User>) ois.readObject();
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.loadUsers");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("users", "load");
+            Map<String, User> users = new HashMap<>();
+            try (ObjectInputStream ois = new ObjectInputStream(openForRead(usersFile, "DataPersistence.loadUsers"))) {
+                ois.setObjectInputFilter(DATA_CLASSES);
+                users = (Map<String, User>) ois.readObject();
+            } catch (FileNotFoundException e) {
+                // No users yet
+            } catch (IOException | ClassNotFoundException e) {
+                // Carrying on with no users would save over the real ones
+                throw new IllegalStateException("Error loading users from " + usersFile + ": " + e.getMessage(), e);
+            } finally {
+                event.finish(users.size(), usersFile);
+            }
+            return users;
+        } finally {
+            timer.close();
+        }
+    }
+
+    @Override
+    public synchronized void saveUsers(Map<String, User> users) {
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.saveUsers");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("users", "save");
+            try (ObjectOutputStream oos = new ObjectOutputStream(openForWrite(usersFile, "DataPersistence.saveUsers"))) {
+                oos.writeObject(users);
+            } catch (IOException e) {
+                System.err.println("Error saving users: " + e.getMessage());
+            } finally {
+                event.finish(users.size(), usersFile);
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * One user, or null. Reads the whole users file here; a
+     * {@link ShardedDataPersistence} reads only the shard that owns the user.
+     */
+    @Override
+    public User loadUser(String username) {
+        return loadUsers().get(username);
+    }
+
+    /**
+     * Reads the whole users file here; a {@link ShardedDataPersistence}
+     * reads only the shards that own the users.
+     */
+    @Override
+    public Map<String, User> loadUsers(Collection<String> usernames) {
+        Map<String, User> users = loadUsers();
+        users.keySet().retainAll(new HashSet<>(usernames));
+        return users;
+    }
+
+    @Override
+    public void saveUser(User user) {
+        updateUsers(List.of(user), List.of());
+    }
+
+    /**
+     * Rewrites the whole users file here; a {@link ShardedDataPersistence}
+     * rewrites only the shards that own the users.
+     */
+    @Override
+    public synchronized void updateUsers(Collection<User> users, Collection<String> removedUsernames) {
+        Map<String, User> stored = loadUsers();
+        users.forEach(user -> stored.put(user.getUsername(), user));
+        stored.keySet().removeAll(removedUsernames);
+        saveUsers(stored);
+    }
+
+    /**
+     * Applies the mutator to the stored user only if its version still matches
+     * the one the caller read, then bumps the version and saves.
+     *
+     * @return false if the user is missing or was changed by someone else
+     */
+    @Override
+    public synchronized boolean compareAndSetUser(String username, long expectedVersion, Consumer<User> mutator) {
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.compareAndSetUser");
+        try {
+            Map<String, User> users = loadUsers();
+            User user = users.get(username);
+            if (user == null || user.getVersion() != expectedVersion) {
+                return false;
+            }
+
+            mutator.accept(user);
+            user.incrementVersion();
+            saveUsers(users);
+            OperationContext.touch("user:" + username);
+            return true;
+        } finally {
+            timer.close();
+        }
+    }
+
+    @Override
+    public int loadNextUserId() {
+        return readNextUserId(countersFile);
+    }
+
+    @Override
+    public void saveNextUserId(int nextUserId) {
+        writeNextUserId(countersFile, nextUserId);
+    }
+
+    // Shared with ShardedDataPersistence, which keeps the counters unsharded
+    static int readNextUserId(File countersFile) {
+        Properties counters = new Properties();
+        try (InputStream in = new FileInputStream(countersFile)) {
+            counters.load(in);
         } catch (FileNotFoundException e) {
-            return new HashMap<>();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading users: " + e.getMessage());
-            return new HashMap<>();
+            return 0;
+        } catch (IOException e) {
+            throw new IllegalStateException("Error loading counters from " + countersFile + ": " + e.getMessage(), e);
+        }
+        try {
+            return Integer.parseInt(counters.getProperty("nextUserId", "0"));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Damaged counters file " + countersFile + ": " + e.getMessage(), e);
         }
     }
 
-    public void saveUsers(Map<String, User> users) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(users);
+    /**
+     * @throws UncheckedIOException if the counter could not be recorded; the
+     *         file still holds the previous value
+     */
+    static void writeNextUserId(File countersFile, int nextUserId) {
+        Properties counters = new Properties();
+        counters.setProperty("nextUserId", Integer.toString(nextUserId));
+        try {
+            writeProperties(countersFile, counters, "Written by DataPersistence");
         } catch (IOException e) {
-            System.err.println("Error saving users: " + e.getMessage());
+            throw new UncheckedIOException("Error saving counters", e);
         }
     }
 
-    @SuppressWarnings("unchecked")
+    // Written and synced beside the old file, then renamed over it, so a
+    // crash leaves one or the other whole
+    static void writeProperties(File file, Properties properties, String comment) throws IOException {
+        File staged = new File(file.getPath() + ".new");
+        try (FileOutputStream out = new FileOutputStream(staged)) {
+            properties.store(out, comment);
+            out.getFD().sync();
+        }
+        Files.move(staged.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public Lock getMessageLock() {
+        return messageLock;
+    }
+
+    /**
+     * The messages file is a sequence of chunks, each a list of messages.
+     * {@link #saveMessages} rewrites it as chunks of whole conversations,
+     * while {@link #appendMessages} adds a chunk at the end without reading
+     * it.
+     * A chunk cut short or garbled, e.g. by a crash during an append, ends
+     * the file: the chunks before it are returned and the next append
+     * writes over it.
+     */
+    @Override
     public List<Message> loadMessages() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(MESSAGES_FILE))) {
-            return (List<Message>) ois.readObject();
-        } catch (FileNotFoundException e) {
-            return new ArrayList<>();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading messages: " + e.getMessage());
-            return new ArrayList<>();
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.loadMessages");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("messages", "load");
+            List<Message> messages = new ArrayList<>();
+            long generation;
+            synchronized (this) {
+                generation = messagesGeneration;
+            }
+            try (InputStream in = openForRead(messagesFile, "DataPersistence.loadMessages")) {
+                ChunkIndex index = new ChunkIndex();
+                long intactLength = readChunks(in, messages, index, 0);
+                index.setIndexedLength(intactLength);
+                installChunkIndex(index, generation);
+                long fileLength = messagesFile.length();
+                if (intactLength < fileLength) {
+                    System.err.println("Ignoring " + (fileLength - intactLength) 
+                            + " damaged bytes at the end of " + messagesFile);
+                }
+            } catch (FileNotFoundException e) {
+                // No messages yet
+            } catch (IOException e) {
+                throw new IllegalStateException("Error loading messages from " + messagesFile + ": " + e.getMessage(), e);
+            } finally {
+                event.finish(messages.size(), messagesFile);
+            }
+            return messages;
+        } finally {
+            timer.close();
         }
     }
 
-    public void saveMessages(List<Message> messages) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(MESSAGES_FILE))) {
-            oos.writeObject(messages);
+    @Override
+    public synchronized void saveMessages(List<Message> messages) {
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.saveMessages");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("messages", "save");
+            messagesGeneration++;
+            ChunkIndex index = new ChunkIndex();
+            boolean saved = false;
+            try (OutputStream out = openForWrite(messagesFile, "DataPersistence.saveMessages")) {
+                out.write(STREAM_HEADER);
+                long offset = STREAM_HEADER.length;
+                for (List<Message> chunk : chunksByConversation(messages)) {
+                    byte[] bytes = encodeChunk(chunk);
+                    for (Message message : chunk) {
+                        index.add(message.getConversationId(), offset);
+                    }
+                    out.write(bytes);
+                    offset += bytes.length;
+                }
+                index.setIndexedLength(offset);
+                saved = true;
+            } catch (IOException e) {
+                saved = false; // Possibly from closing, after the write
+                System.err.println("Error saving messages: " + e.getMessage());
+            } finally {
+                setIntactLength(saved ? messagesFile.length() : -1);
+                chunkIndex = saved ? index : null;
+                event.finish(messages.size(), messagesFile);
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Adds messages to the end of the file in one write; the cost depends on
+     * the new messages only, not on what is already stored. Damaged bytes
+     * left at the end by an earlier failed write are cut off first, so the
+     * new chunk follows the last intact one. Finding that point reads the
+     * whole file once, on the first append.
+     *
+     * @throws UncheckedIOException if the write failed
+     */
+    @Override
+    public synchronized void appendMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.appendMessages");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("messages", "append");
+            long lengthBefore = messagesFile.length();
+            try {
+                lengthBefore = truncateToIntactLength();
+                try (ObjectOutputStream oos = openForAppend(messagesFile, "DataPersistence.appendMessages")) {
+                    oos.writeObject(new ArrayList<>(messages));
+                }
+                messagesIntactLength = messagesFile.length();
+                indexAppended(messages, lengthBefore);
+                messages.forEach(message -> OperationContext.touch("message:" + message.getMessageId()));
+            } catch (IOException e) {
+                // Callers have already told the senders a number; they must hear
+                throw new UncheckedIOException("Error appending messages: " + e.getMessage(), e);
+            } finally {
+                event.finish(messages.size(), messagesFile, lengthBefore);
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    // Cuts off anything past the last intact chunk and returns the new length
+    private long truncateToIntactLength() throws IOException {
+        if (messagesIntactLength < 0) {
+            try (InputStream in = openForRead(messagesFile, "DataPersistence.appendMessages")) {
+                messagesIntactLength = readChunks(in, new ArrayList<>());
+            } catch (FileNotFoundException e) {
+                messagesIntactLength = 0;
+            }
+        }
+
+        long fileLength = messagesFile.length();
+        if (fileLength > messagesIntactLength) {
+            System.err.println("Cutting off " + (fileLength - messagesIntactLength) 
+                    + " damaged bytes at the end of " + messagesFile);
+            try (RandomAccessFile file = new RandomAccessFile(messagesFile, "rw")) {
+                file.setLength(messagesIntactLength);
+            }
+        } else if (fileLength < messagesIntactLength) {
+            // Replaced behind our back; look again next time
+            messagesIntactLength = -1;
+            messagesGeneration++;
+            chunkIndex = null;
+            return truncateToIntactLength();
+        }
+        return messagesIntactLength;
+    }
+
+    // -1 if unknown, e.g. after a failed save
+    private synchronized void setIntactLength(long intactLength) {
+        messagesIntactLength = intactLength;
+    }
+
+    // Keeps the index a full load built, unless the file was rewritten meanwhile
+    private synchronized void installChunkIndex(ChunkIndex index, long generation) {
+        if (chunkIndex == null && generation == messagesGeneration) {
+            chunkIndex = index;
+        }
+    }
+
+    // The new chunk starts where the file ended, after the header if it was empty
+    private void indexAppended(List<Message> messages, long lengthBefore) {
+        if (chunkIndex == null || chunkIndex.getIndexedLength() != lengthBefore) {
+            return; // Found by the next scan instead
+        }
+        long offset = lengthBefore == 0 ? STREAM_HEADER.length : lengthBefore;
+        messages.forEach(message -> chunkIndex.add(message.getConversationId(), offset));
+        chunkIndex.setIndexedLength(messagesIntactLength);
+    }
+
+    /**
+     * Messages of one conversation, in stored order, reading only the chunks
+     * that hold some of them. Which chunks those are is learned by scanning
+     * the file once, usually in the first {@link #loadMessages}, and kept
+     * up to date as chunks are added; a rewrite of the file starts over.
+     */
+    @Override
+    public List<Message> loadConversation(String conversationId) {
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.loadConversation");
+        try {
+            while (true) {
+                long[] offsets;
+                long generation;
+                synchronized (this) {
+                    offsets = currentChunkIndex().get(conversationId);
+                    generation = messagesGeneration;
+                }
+                try {
+                    List<Message> messages = readChunksAt(offsets, conversationId);
+                    if (isMessagesGeneration(generation)) {
+                        return messages;
+                    }
+                } catch (IOException e) {
+                    if (isMessagesGeneration(generation)) {
+                        throw new IllegalStateException("Error loading messages from " + messagesFile + ": " + e.getMessage(), e);
+                    }
+                }
+                // Rewritten while we read, so the offsets were stale
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    private synchronized boolean isMessagesGeneration(long generation) {
+        return generation == messagesGeneration;
+    }
+
+    // Indexes the chunks past what the index covers: the whole file the first
+    // time, later only chunks added behind its back, e.g. replicated ones
+    private ChunkIndex currentChunkIndex() {
+        if (chunkIndex == null) {
+            chunkIndex = new ChunkIndex();
+        }
+        long start = chunkIndex.getIndexedLength();
+        if (messagesFile.length() <= start) {
+            return chunkIndex;
+        }
+
+        try (InputStream file = openForRead(messagesFile, "DataPersistence.loadConversation")) {
+            InputStream in = file;
+            long base = 0;
+            if (start > 0) {
+                file.skipNBytes(start);
+                in = new SequenceInputStream(new ByteArrayInputStream(STREAM_HEADER), file);
+                base = start - STREAM_HEADER.length;
+            }
+            long end = readChunks(in, null, chunkIndex, base);
+            chunkIndex.setIndexedLength(Math.max(start, base + end));
+        } catch (FileNotFoundException e) {
+            // No messages yet
         } catch (IOException e) {
-            System.err.println("Error saving messages: " + e.getMessage());
+            chunkIndex = null; // Possibly half filled
+            throw new IllegalStateException("Error loading messages from " + messagesFile + ": " + e.getMessage(), e);
         }
+        return chunkIndex;
     }
 
+    // Each chunk is read on its own, behind a header of its own
+    @SuppressWarnings("unchecked")
+    private List<Message> readChunksAt(long[] offsets, String conversationId) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        if (offsets.length == 0) {
+            return messages;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(messagesFile, "r")) {
+            InputStream chunks = new MeteredInputStream(
+                    Channels.newInputStream(file.getChannel()), metrics, "DataPersistence.loadConversation");
+            for (long offset : offsets) {
+                file.seek(offset);
+                ObjectInputStream ois = new ObjectInputStream(new SequenceInputStream(
+                        new ByteArrayInputStream(STREAM_HEADER), new BufferedInputStream(chunks)));
+                ois.setObjectInputFilter(DATA_CLASSES);
+                for (Message message : (List<Message>) ois.readObject()) {
+                    if (message.getConversationId().equals(conversationId)) {
+                        messages.add(message);
+                    }
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+        return messages;
+    }
+
+    // Each conversation's messages together, in stored order, at most
+    // SAVE_CHUNK_SIZE to a chunk; always at least one chunk
+    private static List<List<Message>> chunksByConversation(List<Message> messages) {
+        Map<String, List<Message>> byConversation = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byConversation.computeIfAbsent(message.getConversationId(), id -> new ArrayList<>()).add(message);
+        }
+
+        List<List<Message>> chunks = new ArrayList<>();
+        List<Message> chunk = new ArrayList<>();
+        for (List<Message> conversation : byConversation.values()) {
+            for (Message message : conversation) {
+                if (chunk.size() == SAVE_CHUNK_SIZE) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>();
+                }
+                chunk.add(message);
+            }
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    // Encoded as an appended chunk is, so any chunk can follow any other
+    private static byte[] encodeChunk(List<Message> chunk) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = continuing(bytes)) {
+            oos.writeObject(chunk);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Adds the messages of every intact chunk to the list and returns where
+     * the last of them ends. Reading stops at a chunk that is cut short or
+     * garbled; one that is well formed but cannot be read, e.g. of an
+     * unknown class, is an error rather than damage to write over. Read
+     * replicas decode shipped messages with it too.
+     */
+    public static long readChunks(InputStream file, List<Message> messages) throws IOException {
+        return readChunks(file, messages, null, 0);
+    }
+
+    // Also records where each chunk starts, base plus its position in the
+    // stream, if given an index; collects the messages only if given a list
+    @SuppressWarnings("unchecked")
+    private static long readChunks(InputStream file, List<Message> messages, ChunkIndex index, long base) 
+            throws IOException {
+        PositionInputStream in = new PositionInputStream(file);
+        long intactLength = 0;
+        try (ObjectInputStream ois = new ObjectInputStream(in)) {
+            ois.setObjectInputFilter(DATA_CLASSES);
+            while (true) {
+                long offset = base + in.getPosition();
+                List<Message> chunk = (List<Message>) ois.readObject();
+                if (messages != null) {
+                    messages.addAll(chunk);
+                }
+                if (index != null) {
+                    chunk.forEach(message -> index.add(message.getConversationId(), offset));
+                }
+                intactLength = in.getPosition();
+            }
+        } catch (EOFException | StreamCorruptedException | OptionalDataException | UTFDataFormatException e) {
+            return intactLength; // Past the last chunk, or into a damaged one
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+    @Override
     @SuppressWarnings("unchecked")
     public Map<String, Group> loadGroups() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(GROUPS_FILE))) {
-            return (Map<String, Group>) ois.readObject();
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.loadGroups");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("groups", "load");
+            Map<String, Group> groups = new HashMap<>();
+            try (ObjectInputStream ois = new ObjectInputStream(openForRead(groupsFile, "DataPersistence.loadGroups"))) {
+                ois.setObjectInputFilter(DATA_CLASSES);
+                groups = (Map<String, Group>) ois.readObject();
+            } catch (FileNotFoundException e) {
+                // No groups yet
+            } catch (IOException | ClassNotFoundException e) {
+                // Carrying on with no groups would save over the real ones
+                throw new IllegalStateException("Error loading groups from " + groupsFile + ": " + e.getMessage(), e);
+            } finally {
+                event.finish(groups.size(), groupsFile);
+            }
+            return groups;
+        } finally {
+            timer.close();
+        }
+    }
+
+    @Override
+    public synchronized void saveGroups(Map<String, Group> groups) {
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.saveGroups");
+        try {
+            PersistenceEvent event = PersistenceEvent.start("groups", "save");
+            try (ObjectOutputStream oos = new ObjectOutputStream(openForWrite(groupsFile, "DataPersistence.saveGroups"))) {
+                oos.writeObject(groups);
+            } catch (IOException e) {
+                System.err.println("Error saving groups: " + e.getMessage());
+            } finally {
+                event.finish(groups.size(), groupsFile);
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * The given groups, those that exist. Reads the whole groups file here;
+     * a {@link ShardedDataPersistence} reads only the shards that own them.
+     */
+    @Override
+    public Map<String, Group> loadGroups(Collection<String> groupIds) {
+        Map<String, Group> groups = loadGroups();
+        groups.keySet().retainAll(new HashSet<>(groupIds));
+        return groups;
+    }
+
+    @Override
+    public void saveGroup(Group group) {
+        updateGroups(List.of(group), List.of());
+    }
+
+    /**
+     * Rewrites the whole groups file here; a {@link ShardedDataPersistence}
+     * rewrites only the shards that own the groups.
+     */
+    @Override
+    public synchronized void updateGroups(Collection<Group> groups, Collection<String> removedGroupIds) {
+        Map<String, Group> stored = loadGroups();
+        groups.forEach(group -> stored.put(group.getGroupId(), group));
+        stored.keySet().removeAll(removedGroupIds);
+        saveGroups(stored);
+    }
+
+    /**
+     * Applies the mutator to the stored group only if its version still matches
+     * the one the caller read, then bumps the version and saves.
+     *
+     * @return false if the group is missing or was changed by someone else
+     */
+    @Override
+    public synchronized boolean compareAndSetGroup(String groupId, long expectedVersion, Consumer<Group> mutator) {
+        MetricsRegistry.Timer timer = metrics.time("DataPersistence.compareAndSetGroup");
+        try {
+            Map<String, Group> groups = loadGroups();
+            Group group = groups.get(groupId);
+            if (group == null || group.getVersion() != expectedVersion) {
+                return false;
+            }
+
+            mutator.accept(group);
+            group.incrementVersion();
+            saveGroups(groups);
+            OperationContext.touch("group:" + groupId);
+            return true;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * One file per dataset leaves nothing finer to lock than this object's
+     * monitor, which the compare-and-set methods hold.
+     */
+    @Override
+    public <T> T runLocked(Collection<String> usernames, Collection<String> groupIds, Supplier<T> task) {
+        synchronized (this) {
+            return task.get();
+        }
+    }
+
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * Current contents of a data file, empty if it has not been written yet.
+     */
+    public byte[] readFile(String dataset) throws IOException {
+        File file = fileOf(dataset);
+        try (InputStream in = new FileInputStream(file)) {
+            return in.readAllBytes();
         } catch (FileNotFoundException e) {
-            return new HashMap<>();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading groups: " + e.getMessage());
-            return new HashMap<>();
+            return new byte[0];
         }
     }
 
-    public void saveGroups(Map<String, Group> groups) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(GROUPS_FILE))) {
-            oos.writeObject(groups);
-        } catch (IOException e) {
-            System.err.println("Error saving groups: " + e.getMessage());
+    /**
+     * Replays a write reported to a {@link WriteListener} on another node: a
+     * save replaces the file, an append writes at its offset, cutting off
+     * anything already past it. Saving no bytes means the file was never
+     * written, so it is removed.
+     *
+     * @throws IOException if the file is shorter than the offset, i.e.
+     *                     earlier writes are missing
+     */
+    public synchronized void applyWrite(String dataset, String action, long offset, byte[] bytes) throws IOException {
+        File file = fileOf(dataset);
+        // Chunk offsets into what is replaced or cut off would be stale
+        if (file == messagesFile && (action.equals("save") 
+                || chunkIndex != null && offset < chunkIndex.getIndexedLength())) {
+            messagesGeneration++;
+            chunkIndex = null;
+        }
+        if (action.equals("save") && bytes.length == 0) {
+            file.delete();
+            return;
+        }
+        if (action.equals("save")) {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(bytes);
+            }
+            return;
+        }
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            if (out.length() < offset) {
+                throw new IOException("Missing " + (offset - out.length()) + " bytes of " + dataset 
+                        + " before offset " + offset);
+            }
+            out.setLength(offset);
+            out.seek(offset);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Size on disk of each data file, by dataset; 0 if not written yet.
+     */
+    @Override
+    public Map<String, Long> getFileSizes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        sizes.put("users", usersFile.length());
+        sizes.put("groups", groupsFile.length());
+        sizes.put("messages", messagesFile.length());
+        return sizes;
+    }
+
+    // Metered below the buffer, so bytes and I/O time are those of the file
+    private InputStream openForRead(File file, String operation) throws IOException {
+        return new BufferedInputStream(
+                new MeteredInputStream(new FileInputStream(file), metrics, operation), BUFFER_SIZE);
+    }
+
+    private OutputStream openForWrite(File file, String operation) throws IOException {
+        return new BufferedOutputStream(capture(file, "save", 0,
+                new MeteredOutputStream(new FileOutputStream(file), metrics, operation)), BUFFER_SIZE);
+    }
+
+    // A stream continuing an existing file must not write a second header
+    private ObjectOutputStream openForAppend(File file, String operation) throws IOException {
+        long offset = file.length();
+        OutputStream out = new BufferedOutputStream(capture(file, "append", offset,
+                new MeteredOutputStream(new FileOutputStream(file, true), metrics, operation)), BUFFER_SIZE);
+        return offset == 0 ? new ObjectOutputStream(out) : continuing(out);
+    }
+
+    // Starts with a reset where a new stream would write its header
+    private static ObjectOutputStream continuing(OutputStream out) throws IOException {
+        return new ObjectOutputStream(out) {
+            @Override
+            protected void writeStreamHeader() throws IOException {
+                reset();
+            }
+        };
+    }
+
+    // Copies the bytes for the write listener, if there is one
+    private OutputStream capture(File file, String action, long offset, OutputStream out) {
+        WriteListener listener = writeListener;
+        return listener == null ? out : new CapturingOutputStream(out, listener, datasetOf(file), action, offset);
+    }
+
+    private String datasetOf(File file) {
+        return file == usersFile ? "users" : file == groupsFile ? "groups" : "messages";
+    }
+
+    private File fileOf(String dataset) {
+        switch (dataset) {
+            case "users":
+                return usersFile;
+            case "groups":
+                return groupsFile;
+            case "messages":
+                return messagesFile;
+            default:
+                throw new IllegalArgumentException("Unknown dataset: " + dataset);
+        }
+    }
+
+    /**
+     * Counts the bytes read through it. ObjectInputStream reads no further
+     * than the object it returns, so after each chunk this is where the
+     * chunk ends in the file.
+     */
+    private static final class PositionInputStream extends FilterInputStream {
+        private long position;
+
+        private PositionInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(count);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Keeps a copy of everything written and hands it to the listener once
+     * the file is closed, unless a write failed. Only used by the
+     * synchronized write methods, which close it before they return.
+     */
+    private static final class CapturingOutputStream extends FilterOutputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private final WriteListener listener;
+        private final String dataset;
+        private final String action;
+        private final long offset;
+        private boolean failed;
+        private boolean closed;
+
+        private CapturingOutputStream(OutputStream out, WriteListener listener, String dataset, 
+                String action, long offset) {
+            super(out);
+            this.listener = listener;
+            this.dataset = dataset;
+            this.action = action;
+            this.offset = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                out.write(buffer, offset, length);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            copy.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                super.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            if (!failed) {
+                listener.written(dataset, action, offset, copy.toByteArray());
+            }
         }
     }
 }
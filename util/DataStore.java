@@ -0,0 +1,131 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Where the services keep users, groups and messages: the files of one
+ * {@link DataPersistence}, or a {@link ShardedDataPersistence} spreading
+ * them over several.
+ *
+ * Calls about one user or group are meant for the hot paths: a sharded
+ * store serves them from the owning shard alone. The compare-and-set methods
+ * are atomic with respect to each other and to tasks run by
+ * {@link #runLocked}, which is how {@link UnitOfWork} commits.
+ */
+public interface DataStore {
+
+    Map<String, User> loadUsers();
+
+    void saveUsers(Map<String, User> users);
+
+    /**
+     * One user, or null.
+     */
+    User loadUser(String username);
+
+    /**
+     * The given users, those that exist.
+     */
+    Map<String, User> loadUsers(Collection<String> usernames);
+
+    /**
+     * Adds or replaces one user, leaving the others as they are.
+     */
+    void saveUser(User user);
+
+    /**
+     * Adds or replaces the given users and removes the named ones, leaving
+     * the others as they are.
+     */
+    void updateUsers(Collection<User> users, Collection<String> removedUsernames);
+
+    /**
+     * Applies the mutator to the stored user only if its version still matches
+     * the one the caller read, then bumps the version and saves.
+     *
+     * @return false if the user is missing or was changed by someone else
+     */
+    boolean compareAndSetUser(String username, long expectedVersion, Consumer<User> mutator);
+
+    /**
+     * The lowest user ID never handed out, 0 if none was recorded; IDs of
+     * deleted users are below it, so they are not given out again.
+     */
+    int loadNextUserId();
+
+    void saveNextUserId(int nextUserId);
+
+    List<Message> loadMessages();
+
+    void saveMessages(List<Message> messages);
+
+    /**
+     * Stored messages of one conversation, in stored order, without
+     * decoding those of the others.
+     */
+    List<Message> loadConversation(String conversationId);
+
+    /**
+     * Held while messages are numbered and appended, and while they are
+     * loaded and saved back whole, so an append can't land between such a
+     * load and save and be lost. Taken before any lock of
+     * {@link #runLocked}, never inside one.
+     */
+    Lock getMessageLock();
+
+    /**
+     * Adds messages after those already stored, without rewriting them.
+     *
+     * @throws java.io.UncheckedIOException if the write failed
+     */
+    void appendMessages(List<Message> messages);
+
+    Map<String, Group> loadGroups();
+
+    /**
+     * The given groups, those that exist.
+     */
+    Map<String, Group> loadGroups(Collection<String> groupIds);
+
+    void saveGroups(Map<String, Group> groups);
+
+    /**
+     * Adds or replaces one group, leaving the others as they are.
+     */
+    void saveGroup(Group group);
+
+    /**
+     * Adds or replaces the given groups and removes the named ones, leaving
+     * the others as they are.
+     */
+    void updateGroups(Collection<Group> groups, Collection<String> removedGroupIds);
+
+    /**
+     * Applies the mutator to the stored group only if its version still matches
+     * the one the caller read, then bumps the version and saves.
+     *
+     * @return false if the group is missing or was changed by someone else
+     */
+    boolean compareAndSetGroup(String groupId, long expectedVersion, Consumer<Group> mutator);
+
+    /**
+     * Runs the task while no compare-and-set, and no other task run here,
+     * can change the given users and groups, e.g. to read several and write
+     * them back as one change.
+     */
+    <T> T runLocked(Collection<String> usernames, Collection<String> groupIds, Supplier<T> task);
+
+    /**
+     * Size on disk of each dataset: users, groups and messages.
+     */
+    Map<String, Long> getFileSizes();
+}
@@ -0,0 +1,84 @@
+package com.chatapp.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers recently used keys, with a value each, for a fixed time window.
+ *
+ * Keys sit in a hash map for lookups and in an expiry queue in the order
+ * they were added. Every call first drops expired entries from the head of
+ * the queue, and the oldest entries also go once the size bound is reached,
+ * so memory stays flat however fast keys arrive.
+ */
+public class DedupCache<V> {
+    private final long windowMillis;
+    private final int maxEntries;
+    private final Map<String, V> values = new HashMap<>();
+    private final ArrayDeque<Expiry> expiryQueue = new ArrayDeque<>();
+
+    private static final class Expiry {
+        private final String key;
+        private final long expiresAt;
+
+        private Expiry(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public DedupCache(long windowMillis, int maxEntries) {
+        this.windowMillis = windowMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized V get(String key) {
+        evictExpired(System.currentTimeMillis());
+        return values.get(key);
+    }
+
+    /**
+     * Records the value under the key unless the key is already known.
+     *
+     * @param seenAtMillis when the key was first used; a key already older
+     *                     than the window is not recorded
+     * @return the value recorded earlier, or null if this one was added
+     */
+    public synchronized V putIfAbsent(String key, V value, long seenAtMillis) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+
+        V existing = values.get(key);
+        if (existing != null || seenAtMillis + windowMillis <= now) {
+            return existing;
+        }
+
+        values.put(key, value);
+        expiryQueue.addLast(new Expiry(key, seenAtMillis + windowMillis));
+        if (values.size() > maxEntries) {
+            values.remove(expiryQueue.pollFirst().key);
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the key if it still holds the given value, e.g. when storing
+     * it failed after all.
+     */
+    public synchronized void remove(String key, V value) {
+        if (values.remove(key, value)) {
+            expiryQueue.removeIf(expiry -> expiry.key.equals(key));
+        }
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    private void evictExpired(long now) {
+        while (!expiryQueue.isEmpty() && expiryQueue.peekFirst().expiresAt <= now) {
+            values.remove(expiryQueue.pollFirst().key);
+        }
+    }
+}
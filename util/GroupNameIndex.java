@@ -0,0 +1,94 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Group;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of group names for search, with the per-group figures
+ * needed to order results (member count, last activity) kept alongside so a
+ * page of results can be picked without reading groups.dat.
+ */
+public class GroupNameIndex {
+
+    public enum SortOrder {
+        RELEVANCE,      // Prefix matches first, then by name
+        MEMBER_COUNT,   // Largest groups first
+        RECENT_ACTIVITY // Most recently active first
+    }
+
+    private final TrigramIndex names = new TrigramIndex();
+    private final Map<String, Integer> memberCounts = new ConcurrentHashMap<>();
+    private final Map<String, LocalDateTime> lastActivity = new ConcurrentHashMap<>();
+
+    public void add(Group group) {
+        names.add(group.getGroupId(), group.getGroupName());
+        memberCounts.put(group.getGroupId(), group.getMemberCount());
+        lastActivity.merge(group.getGroupId(), group.getCreationTime(), GroupNameIndex::latest);
+    }
+
+    public void rename(String groupId, String newName) {
+        if (names.contains(groupId)) {
+            names.add(groupId, newName);
+        }
+    }
+
+    public void remove(String groupId) {
+        names.remove(groupId);
+        memberCounts.remove(groupId);
+        lastActivity.remove(groupId);
+    }
+
+    public void adjustMemberCount(String groupId, int delta) {
+        memberCounts.computeIfPresent(groupId, (id, count) -> Math.max(0, count + delta));
+    }
+
+    public void recordActivity(String groupId, LocalDateTime time) {
+        lastActivity.computeIfPresent(groupId, (id, previous) -> latest(previous, time));
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Group IDs for one page of matches, {@code page} counting from 0.
+     */
+    public List<String> search(String term, SortOrder order, int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) {
+            return Collections.emptyList();
+        }
+        int from = page * pageSize;
+
+        List<String> matches;
+        if (order == SortOrder.RELEVANCE) {
+            // Already ranked by the name index, only fetch what the page needs
+            matches = names.search(term, from + pageSize);
+        } else {
+            matches = names.search(term, Integer.MAX_VALUE);
+            matches.sort(comparator(order));
+        }
+
+        if (from >= matches.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(matches.subList(from, Math.min(from + pageSize, matches.size())));
+    }
+
+    private Comparator<String> comparator(SortOrder order) {
+        if (order == SortOrder.MEMBER_COUNT) {
+            return Comparator.comparing((String id) -> memberCounts.getOrDefault(id, 0)).reversed();
+        }
+        return Comparator.comparing((String id) -> lastActivity.getOrDefault(id, LocalDateTime.MIN)).reversed();
+    }
+
+    private static LocalDateTime latest(LocalDateTime a, LocalDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+}
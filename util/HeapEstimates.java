@@ -0,0 +1,48 @@
+package com.chatapp.util;
+
+import java.util.Collection;
+
+/**
+ * Rough heap sizes for footprint reports, assuming a 64-bit JVM with
+ * compressed references and compact (Latin-1) strings. Shared instances are
+ * counted once per holder, so totals err on the high side.
+ */
+public final class HeapEstimates {
+    public static final long OBJECT_HEADER = 12;
+    public static final long REFERENCE = 4;
+    public static final long LOCAL_DATE_TIME = 72; // With its LocalDate and LocalTime
+    public static final long HASH_ENTRY = 36;      // Node plus its share of the table
+    public static final long LINKED_HASH_ENTRY = 44;
+    public static final long HASH_SET = 64;        // The set and its backing map
+
+    private HeapEstimates() {
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Object with the given number of reference fields and bytes of
+     * primitive fields.
+     */
+    public static long object(int references, int primitiveBytes) {
+        return align(OBJECT_HEADER + references * REFERENCE + primitiveBytes);
+    }
+
+    public static long of(String text) {
+        return text == null ? 0 : object(1, 8) + align(16 + text.length());
+    }
+
+    public static long ofStrings(Collection<String> strings) {
+        long bytes = 0;
+        for (String text : strings) {
+            bytes += of(text);
+        }
+        return bytes;
+    }
+
+    public static long hashSetOf(Collection<String> strings, boolean linked) {
+        return HASH_SET + strings.size() * (linked ? LINKED_HASH_ENTRY : HASH_ENTRY) + ofStrings(strings);
+    }
+}
@@ -0,0 +1,63 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-size ring of the latest messages delivered to one user. Only a
+ * reference to the already stored message is kept, so fanning a group
+ * message out to every member costs one slot per member.
+ */
+public class InboxRing {
+    private final Message[] slots;
+    private int next;
+    private int size;
+    private final Map<String, Long> droppedSequences = new HashMap<>(); // Newest pushed out, per conversation
+
+    public InboxRing(int capacity) {
+        this.slots = new Message[capacity];
+    }
+
+    public synchronized void add(Message message) {
+        if (size == slots.length) {
+            Message dropped = slots[next];
+            droppedSequences.merge(dropped.getConversationId(), dropped.getSequence(), Math::max);
+        } else {
+            size++;
+        }
+        slots[next] = message;
+        next = (next + 1) % slots.length;
+    }
+
+    /**
+     * Messages still in the ring, oldest first.
+     */
+    public synchronized List<Message> getMessages() {
+        List<Message> messages = new ArrayList<>(size);
+        int start = (next - size + slots.length) % slots.length;
+        for (int i = 0; i < size; i++) {
+            messages.add(slots[(start + i) % slots.length]);
+        }
+        return messages;
+    }
+
+    /**
+     * True if a message of the conversation after {@code sequence} was pushed
+     * out, meaning the ring alone can't tell everything that arrived since.
+     */
+    public synchronized boolean hasDroppedAfter(String conversationId, long sequence) {
+        return droppedSequences.getOrDefault(conversationId, 0L) > sequence;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
@@ -0,0 +1,84 @@
+package com.chatapp.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two-way mapping between string keys (usernames, group IDs) and dense int
+ * IDs, so sets of them can be held in an {@link IntBitmap}.
+ *
+ * IDs are never handed out twice, even after their key is removed, so a
+ * stale reference can't point at a newcomer. Across restarts that takes the
+ * caller storing {@link #getNextId()} and restoring it with
+ * {@link #reserveUpTo}.
+ */
+public class IntIdRegistry {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int nextId;
+
+    /**
+     * Returns the ID for the key, assigning the next unused one if it has none.
+     */
+    public synchronized int register(String key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        int assigned = nextId;
+        put(key, assigned);
+        return assigned;
+    }
+
+    /**
+     * Restores a known mapping, e.g. one read back from storage.
+     */
+    public synchronized void put(String key, int id) {
+        while (names.size() <= id) {
+            names.add(null);
+        }
+        ids.put(key, id);
+        names.set(id, key);
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    /**
+     * Marks every ID below {@code nextId} as used.
+     */
+    public synchronized void reserveUpTo(int nextId) {
+        this.nextId = Math.max(this.nextId, nextId);
+    }
+
+    /**
+     * The ID the next new key will get.
+     */
+    public synchronized int getNextId() {
+        return nextId;
+    }
+
+    public synchronized void remove(String key) {
+        Integer id = ids.remove(key);
+        if (id != null) {
+            names.set(id, null);
+        }
+    }
+
+    /**
+     * @return the key's ID, or -1 if it has none
+     */
+    public synchronized int lookup(String key) {
+        Integer id = ids.get(key);
+        return id != null ? id : -1;
+    }
+
+    public synchronized String nameOf(int id) {
+        return id >= 0 && id < names.size() ? names.get(id) : null;
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+}
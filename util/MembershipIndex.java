@@ -0,0 +1,100 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Group;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reverse index from user ID to the groups the user belongs to.
+ *
+ * Groups get a dense in-memory number so each user's groups fit in an
+ * {@link IntBitmap}; questions like "which groups do these two users share"
+ * become a bitmap intersection instead of a walk over every group.
+ */
+public class MembershipIndex {
+    private final IntIdRegistry groupNumbers = new IntIdRegistry();
+    private final List<IntBitmap> groupsByUser = new ArrayList<>();
+
+    public synchronized void addGroup(Group group) {
+        int groupNumber = groupNumbers.register(group.getGroupId());
+        group.getMemberIds().forEach(userId -> groupsOf(userId, true).add(groupNumber));
+    }
+
+    public synchronized void removeGroup(Group group) {
+        int groupNumber = groupNumbers.lookup(group.getGroupId());
+        if (groupNumber < 0) {
+            return;
+        }
+
+        group.getMemberIds().forEach(userId -> {
+            IntBitmap groups = groupsOf(userId, false);
+            if (groups != null) {
+                groups.remove(groupNumber);
+            }
+        });
+        groupNumbers.remove(group.getGroupId());
+    }
+
+    public synchronized void add(int userId, String groupId) {
+        groupsOf(userId, true).add(groupNumbers.register(groupId));
+    }
+
+    public synchronized void remove(int userId, String groupId) {
+        IntBitmap groups = groupsOf(userId, false);
+        int groupNumber = groupNumbers.lookup(groupId);
+        if (groups != null && groupNumber >= 0) {
+            groups.remove(groupNumber);
+        }
+    }
+
+    public synchronized List<String> getGroupIds(int userId) {
+        return toGroupIds(groupsOf(userId, false));
+    }
+
+    public synchronized List<String> getSharedGroupIds(int userId, int otherUserId) {
+        IntBitmap groups = groupsOf(userId, false);
+        IntBitmap otherGroups = groupsOf(otherUserId, false);
+        if (groups == null || otherGroups == null) {
+            return new ArrayList<>();
+        }
+        return toGroupIds(groups.and(otherGroups));
+    }
+
+    public synchronized int getGroupCount(int userId) {
+        IntBitmap groups = groupsOf(userId, false);
+        return groups != null ? groups.cardinality() : 0;
+    }
+
+    private IntBitmap groupsOf(int userId, boolean create) {
+        if (userId < 0) {
+            return null;
+        }
+        while (create && groupsByUser.size() <= userId) {
+            groupsByUser.add(null);
+        }
+        if (userId >= groupsByUser.size()) {
+            return null;
+        }
+
+        IntBitmap groups = groupsByUser.get(userId);
+        if (groups == null && create) {
+            groups = new IntBitmap();
+            groupsByUser.set(userId, groups);
+        }
+        return groups;
+    }
+
+    private List<String> toGroupIds(IntBitmap groupSet) {
+        List<String> groupIds = new ArrayList<>();
+        if (groupSet != null) {
+            groupSet.forEach(groupNumber -> {
+                String groupId = groupNumbers.nameOf(groupNumber);
+                if (groupId != null) {
+                    groupIds.add(groupId);
+                }
+            });
+        }
+        return groupIds;
+    }
+}
@@ -0,0 +1,95 @@
+package com.chatapp.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ *
+ * Each slot carries a sequence number telling whose turn it is: producers
+ * claim a slot by advancing the shared tail with a CAS and publish the item
+ * by bumping the slot's sequence, and the consumer frees it the same way a
+ * lap later. A full ring makes {@link #offer} fail instead of blocking, so
+ * callers decide how to push back.
+ */
+public class MpscRing<T> {
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head; // Written by the consumer only
+
+    public MpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the item if there is room; safe to call from any thread.
+     */
+    public boolean offer(T item) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items[index] = item;
+                    sequences.set(index, position + 1); // Publish
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false; // The consumer hasn't freed this slot yet
+            }
+            // Another producer claimed the slot first; try the next one
+        }
+    }
+
+    /**
+     * Removes the oldest item, or returns null if there is none. Consumer
+     * thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        T item = (T) items[index];
+        items[index] = null;
+        sequences.set(index, position + items.length); // Free for the next lap
+        head = position + 1;
+        return item;
+    }
+
+    /**
+     * Moves up to {@code maxItems} items into the collection. Consumer thread
+     * only.
+     */
+    public int drainTo(Collection<? super T> target, int maxItems) {
+        int count = 0;
+        T item;
+        while (count < maxItems && (item = poll()) != null) {
+            target.add(item);
+            count++;
+        }
+        return count;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,89 @@
+package com.chatapp.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets keyed by name (a sender, a group), created on first use and
+ * dropped again once idle, so only recently active keys take memory.
+ */
+public class RateLimiter {
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder throttledCount = new LongAdder();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+    private volatile long intervalNanos; // 0 means unlimited
+    private volatile int burst;
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        setRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Applies to buckets created from now on; current ones are dropped. A
+     * rate of 0 or less turns limiting off.
+     */
+    public void setRate(double permitsPerSecond, int burst) {
+        this.intervalNanos = permitsPerSecond > 0 ? Math.max(1, (long) (1e9 / permitsPerSecond)) : 0;
+        this.burst = burst;
+        buckets.clear();
+    }
+
+    /**
+     * @return 0 if the key may go ahead, otherwise the nanoseconds until it
+     *         may
+     */
+    public long tryAcquire(String key) {
+        long interval = intervalNanos;
+        if (interval == 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        sweepIfDue(now);
+
+        long wait = buckets.computeIfAbsent(key, k -> new TokenBucket(interval, burst, now)).tryAcquire(now);
+        if (wait > 0) {
+            throttledCount.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Gives back a permit the key took with {@link #tryAcquire}. Nothing to
+     * do if its bucket has been dropped since, as a new one starts full.
+     */
+    public void release(String key) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.release();
+        }
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    public int getBucketCount() {
+        return buckets.size();
+    }
+
+    // At most one caller per interval walks the buckets
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            if (entry.getValue().isIdle(now, IDLE_NANOS)) {
+                buckets.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.chatapp.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Compact map from conversation ID to the last message sequence number read.
+ *
+ * Keys and primitive values sit in two parallel arrays with linear probing,
+ * so an entry costs one array slot each instead of a hash map node plus a
+ * boxed value. Conversations never read have marker 0.
+ */
+public class ReadMarkers implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private transient String[] keys;
+    private transient long[] values;
+    private transient int size;
+
+    public ReadMarkers() {
+        allocate(8);
+    }
+
+    public long get(String conversationId) {
+        int slot = slotOf(conversationId);
+        return keys[slot] != null ? values[slot] : 0;
+    }
+
+    /**
+     * Moves the marker forward; an older sequence than the stored one is
+     * ignored, so markers never go back.
+     */
+    public void advance(String conversationId, long sequence) {
+        int slot = slotOf(conversationId);
+        if (keys[slot] != null) {
+            values[slot] = Math.max(values[slot], sequence);
+            return;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+            slot = slotOf(conversationId);
+        }
+        keys[slot] = conversationId;
+        values[slot] = sequence;
+        size++;
+    }
+
+    public void remove(String conversationId) {
+        int slot = slotOf(conversationId);
+        if (keys[slot] == null) {
+            return;
+        }
+        keys[slot] = null;
+        size--;
+
+        // Re-place the rest of the probe run so lookups don't stop at the hole
+        int mask = keys.length - 1;
+        for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String key = keys[i];
+            keys[i] = null;
+            int target = slotOf(key);
+            keys[target] = key;
+            values[target] = values[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Rough in-memory footprint, for reporting
+    public long estimatedBytes() {
+        long bytes = HeapEstimates.object(2, 4) + 16 + keys.length * HeapEstimates.REFERENCE + 16 + keys.length * 8L;
+        for (String key : keys) {
+            bytes += HeapEstimates.of(key);
+        }
+        return bytes;
+    }
+
+    private int slotOf(String key) {
+        int mask = keys.length - 1;
+        int hash = key.hashCode() * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new long[capacity];
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                advance(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    // Only the live entries are written, not the empty slots
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                out.writeUTF(keys[i]);
+                out.writeLong(values[i]);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        int capacity = 8;
+        while (capacity < count * 2) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+        for (int i = 0; i < count; i++) {
+            advance(in.readUTF(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.chatapp.util;
+
+import java.util.Arrays;
+
+/**
+ * Set of message sequence numbers of one conversation, held as sorted runs
+ * of consecutive numbers, so a sender's unbroken streak or a conversation's
+ * whole stored range costs one entry. Counting the numbers above a given
+ * one is a binary search over the runs.
+ */
+public class SequenceSet {
+    private long[] starts = new long[1];
+    private long[] ends = new long[1]; // Inclusive
+    private long[] before = new long[1]; // Numbers held in the runs before each run
+    private int runs;
+    private long size;
+    private long removedUpTo;
+
+    /**
+     * Adds a number; cheapest when it is above all those already held.
+     */
+    public synchronized void add(long sequence) {
+        int i = firstEndingAtOrAbove(sequence);
+        if (i < runs && starts[i] <= sequence) {
+            return;
+        }
+
+        boolean joinsPrevious = i > 0 && ends[i - 1] == sequence - 1;
+        boolean joinsNext = i < runs && starts[i] == sequence + 1;
+        if (joinsPrevious && joinsNext) {
+            ends[i - 1] = ends[i];
+            removeRuns(i, i + 1);
+        } else if (joinsPrevious) {
+            ends[i - 1] = sequence;
+        } else if (joinsNext) {
+            starts[i] = sequence;
+        } else {
+            insertRun(i, sequence, sequence);
+        }
+        recount(Math.max(0, i - 1));
+    }
+
+    public synchronized void remove(long sequence) {
+        int i = firstEndingAtOrAbove(sequence);
+        if (i == runs || starts[i] > sequence) {
+            return;
+        }
+
+        if (starts[i] == ends[i]) {
+            removeRuns(i, i + 1);
+        } else if (starts[i] == sequence) {
+            starts[i]++;
+        } else if (ends[i] == sequence) {
+            ends[i]--;
+        } else {
+            insertRun(i + 1, sequence + 1, ends[i]);
+            ends[i] = sequence - 1;
+        }
+        recount(i);
+    }
+
+    /**
+     * Drops every number up to and including the given one, e.g. once they
+     * can no longer matter.
+     */
+    public synchronized void removeUpTo(long sequence) {
+        removedUpTo = Math.max(removedUpTo, sequence);
+        int i = firstEndingAtOrAbove(sequence + 1);
+        removeRuns(0, i);
+        if (runs > 0 && starts[0] <= sequence) {
+            starts[0] = sequence + 1;
+        }
+        recount(0);
+    }
+
+    /**
+     * The highest number {@link #removeUpTo} was called with, 0 if never.
+     */
+    public synchronized long getRemovedUpTo() {
+        return removedUpTo;
+    }
+
+    /**
+     * How many of the numbers held are above the given one.
+     */
+    public synchronized long countAbove(long sequence) {
+        int i = firstEndingAtOrAbove(sequence + 1);
+        if (i == runs) {
+            return 0;
+        }
+        long partial = starts[i] <= sequence ? sequence - starts[i] + 1 : 0;
+        return size - before[i] - partial;
+    }
+
+    /**
+     * The numbers from 1 to {@code last} that are not held.
+     */
+    public synchronized SequenceSet missingUpTo(long last) {
+        SequenceSet missing = new SequenceSet();
+        long next = 1;
+        for (int i = 0; i < runs && next <= last; i++) {
+            missing.addRange(next, Math.min(starts[i] - 1, last));
+            next = ends[i] + 1;
+        }
+        missing.addRange(next, last);
+        return missing;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int getRunCount() {
+        return runs;
+    }
+
+    // Only called on a set nobody else can see yet, in ascending order
+    private void addRange(long start, long end) {
+        if (start <= end) {
+            insertRun(runs, start, end);
+            recount(runs - 1);
+        }
+    }
+
+    private int firstEndingAtOrAbove(long sequence) {
+        int low = 0;
+        int high = runs;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < sequence) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insertRun(int index, long start, long end) {
+        if (runs == starts.length) {
+            starts = Arrays.copyOf(starts, runs * 2);
+            ends = Arrays.copyOf(ends, runs * 2);
+            before = Arrays.copyOf(before, runs * 2);
+        }
+        System.arraycopy(starts, index, starts, index + 1, runs - index);
+        System.arraycopy(ends, index, ends, index + 1, runs - index);
+        starts[index] = start;
+        ends[index] = end;
+        runs++;
+    }
+
+    private void removeRuns(int from, int to) {
+        System.arraycopy(starts, to, starts, from, runs - to);
+        System.arraycopy(ends, to, ends, from, runs - to);
+        runs -= to - from;
+    }
+
+    // Runs before the given one are already counted
+    private void recount(int from) {
+        for (int i = from; i < runs; i++) {
+            before[i] = i == 0 ? 0 : before[i - 1] + ends[i - 1] - starts[i - 1] + 1;
+        }
+        size = runs == 0 ? 0 : before[runs - 1] + ends[runs - 1] - starts[runs - 1] + 1;
+    }
+}
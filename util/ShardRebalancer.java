@@ -0,0 +1,193 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Re-splits the data of a {@link ShardedDataPersistence} directory over a new
+ * number of shards, or splits the plain files of a {@link DataPersistence}
+ * directory for the first time. Thanks to consistent hashing, going from N
+ * to N+1 shards moves only about 1/(N+1) of the records.
+ *
+ * The new shards are written to a new generation directory beside the old
+ * one and synced to disk; only then does one atomic rename of the layout
+ * file switch over to them. Interrupted before that, the old shards are
+ * still the ones in use, and the next run clears away the half-written
+ * generation; interrupted after it, only the old files are left to delete.
+ * Run it while the app is stopped.
+ *
+ * Usage: {@code java com.chatapp.util.ShardRebalancer <data directory> <shards>}
+ */
+public class ShardRebalancer {
+    private static final String[] DATA_FILES = {"users.dat", "groups.dat", "messages.dat"};
+
+    private final File directory;
+
+    public ShardRebalancer(String dataDirectory) {
+        this.directory = new File(dataDirectory);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ShardRebalancer <data directory> <shards>");
+            return;
+        }
+
+        ShardRebalancer rebalancer = new ShardRebalancer(args[0]);
+        Map<String, int[]> moves = rebalancer.rebalance(Integer.parseInt(args[1]));
+        System.out.printf("%-10s %10s %10s%n", "Dataset", "Records", "Moved");
+        moves.forEach((dataset, counts) -> System.out.printf("%-10s %10d %10d%n", dataset, counts[0], counts[1]));
+    }
+
+    /**
+     * @return per dataset, the number of records and how many of them
+     *         changed shard
+     */
+    public Map<String, int[]> rebalance(int shardCount) throws IOException {
+        ShardedDataPersistence.Layout oldLayout = ShardedDataPersistence.Layout.read(directory);
+        List<DataPersistence> oldShards = new ArrayList<>();
+        if (oldLayout == null) {
+            oldShards.add(new DataPersistence(directory.getPath())); // Not sharded yet
+        } else {
+            for (int i = 0; i < oldLayout.shardCount; i++) {
+                oldShards.add(new DataPersistence(oldLayout.shardDirectory(directory, i).getPath()));
+            }
+        }
+        ShardedDataPersistence.Layout newLayout = new ShardedDataPersistence.Layout(shardCount,
+                oldLayout == null ? 1 : oldLayout.generation + 1);
+        removeOtherGenerations(oldLayout);
+
+        ConsistentHashRing ring = new ConsistentHashRing(shardCount);
+        List<Map<String, User>> users = newMaps(shardCount);
+        List<Map<String, Group>> groups = newMaps(shardCount);
+        List<List<Message>> messages = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            messages.add(new ArrayList<>());
+        }
+        Map<String, int[]> moves = new LinkedHashMap<>();
+        moves.put("users", new int[2]);
+        moves.put("groups", new int[2]);
+        moves.put("messages", new int[2]);
+
+        for (int from = 0; from < oldShards.size(); from++) {
+            DataPersistence shard = oldShards.get(from);
+            // A plain directory counts as moving everything
+            int source = oldLayout == null ? -1 : from;
+            for (User user : shard.loadUsers().values()) {
+                requireMigrated(user.getUserId(), "User " + user.getUsername());
+                int to = ring.shardFor(user.getUsername());
+                users.get(to).put(user.getUsername(), user);
+                count(moves.get("users"), source, to);
+            }
+            for (Group group : shard.loadGroups().values()) {
+                requireMigrated(group.getAdminId(), "Group " + group.getGroupId());
+                int to = ring.shardFor(group.getGroupId());
+                groups.get(to).put(group.getGroupId(), group);
+                count(moves.get("groups"), source, to);
+            }
+            // Each conversation comes from one shard, so its order is kept
+            for (Message message : shard.loadMessages()) {
+                int to = ring.shardFor(message.getConversationId());
+                messages.get(to).add(message);
+                count(moves.get("messages"), source, to);
+            }
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            File shardDirectory = newLayout.shardDirectory(directory, i);
+            DataPersistence staged = new DataPersistence(shardDirectory.getPath());
+            staged.saveUsers(users.get(i));
+            staged.saveGroups(groups.get(i));
+            staged.saveMessages(messages.get(i));
+            sync(shardDirectory);
+        }
+
+        newLayout.write(directory); // The switch-over
+        removeOtherGenerations(newLayout);
+        return moves;
+    }
+
+    /**
+     * Deletes every shard directory the layout doesn't use: the generation
+     * it replaced, or one a crash left half written, and the files of a
+     * directory that was not sharded yet, once they have been replaced.
+     */
+    private void removeOtherGenerations(ShardedDataPersistence.Layout layout) {
+        if (layout == null) {
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        File current = layout.generationDirectory(directory);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("generation-") && !file.equals(current)) {
+                deleteRecursively(file);
+            }
+        }
+        for (String name : DATA_FILES) {
+            new File(directory, name).delete();
+        }
+    }
+
+    // Older data is upgraded when the app starts; splitting it before that
+    // would lose what only the upgrade can work out, e.g. group members
+    private static void requireMigrated(int userId, String what) {
+        if (userId < 0) {
+            throw new IllegalStateException(what + " was saved by an older version; start the app once to upgrade it");
+        }
+    }
+
+    private static void count(int[] counts, int from, int to) {
+        counts[0]++;
+        if (from != to) {
+            counts[1]++;
+        }
+    }
+
+    private static <T> List<Map<String, T>> newMaps(int count) {
+        List<Map<String, T>> maps = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            maps.add(new HashMap<>());
+        }
+        return maps;
+    }
+
+    // Saves leave their files to the OS cache; the layout must not point at
+    // shards that a power cut could still lose
+    private static void sync(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,496 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Data split over N shards by a {@link ConsistentHashRing}: users by
+ * username, groups by group ID and messages by conversation, so a
+ * conversation's history always sits in one shard. Each shard is a plain
+ * {@link DataPersistence} in its own directory, {@code generation-<g>/shard-<i>},
+ * driven by its own writer thread; shards are never touched from any other
+ * thread.
+ *
+ * Calls about one user or group go to its shard alone. Calls over a whole
+ * dataset go to every shard at once and wait for all of them, so the cost is
+ * that of the slowest shard rather than the sum. The number of shards and
+ * the generation holding them are recorded in the directory's layout file;
+ * to change the number, run {@link ShardRebalancer} first. Replication
+ * ships single data files, so unlike {@link DataPersistence} this has no
+ * write hooks for it.
+ *
+ * Compare-and-set and {@link #runLocked} lock only the shards that own the
+ * users and groups involved, so changes on different shards don't wait for
+ * each other. Messages are rewritten across all shards at once, so one
+ * message lock covers them all.
+ */
+public class ShardedDataPersistence implements DataStore {
+    static final String LAYOUT_FILE = "shards.properties";
+
+    private final File directory;
+    private final File countersFile;
+    private final ConsistentHashRing ring;
+    private final Layout layout;
+    private final DataPersistence[] shards;
+    private final ReentrantLock[] locks;
+    private final ReentrantLock messageLock = new ReentrantLock();
+    private final ExecutorService[] writers;
+    private final Thread[] writerThreads;
+
+    /**
+     * @throws IllegalStateException if the directory already holds data
+     *                               that is not split into this many shards
+     */
+    public ShardedDataPersistence(String dataDirectory, int shardCount) {
+        this.directory = new File(dataDirectory);
+        this.countersFile = new File(directory, DataPersistence.COUNTERS_FILE);
+        Layout existing = Layout.read(directory);
+        if (existing == null && new DataPersistence(dataDirectory).getFileSizes().values().stream()
+                .anyMatch(size -> size > 0)) {
+            throw new IllegalStateException("Data in " + dataDirectory + " is not sharded yet; run ShardRebalancer first");
+        }
+        if (existing == null) {
+            existing = new Layout(shardCount, 1);
+            existing.write(directory);
+        } else if (existing.shardCount != shardCount) {
+            throw new IllegalStateException("Data in " + dataDirectory + " is split into " + existing.shardCount
+                    + " shards, not " + shardCount + "; run ShardRebalancer first");
+        }
+        this.layout = existing;
+
+        this.ring = new ConsistentHashRing(shardCount);
+        this.shards = new DataPersistence[shardCount];
+        this.locks = new ReentrantLock[shardCount];
+        this.writers = new ExecutorService[shardCount];
+        this.writerThreads = new Thread[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            int shard = i;
+            shards[i] = new DataPersistence(layout.shardDirectory(directory, i).getPath());
+            locks[i] = new ReentrantLock();
+            writers[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "shard-" + shard + "-writer");
+                thread.setDaemon(true);
+                writerThreads[shard] = thread;
+                return thread;
+            });
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public int shardForUser(String username) {
+        return ring.shardFor(username);
+    }
+
+    public int shardForGroup(String groupId) {
+        return ring.shardFor(groupId);
+    }
+
+    public int shardForConversation(String conversationId) {
+        return ring.shardFor(conversationId);
+    }
+
+    @Override
+    public Map<String, User> loadUsers() {
+        Map<String, User> users = new HashMap<>();
+        onAllShards(i -> shards[i].loadUsers()).forEach(users::putAll);
+        return users;
+    }
+
+    @Override
+    public User loadUser(String username) {
+        return onShard(shardForUser(username), shard -> shard.loadUser(username));
+    }
+
+    @Override
+    public Map<String, User> loadUsers(Collection<String> usernames) {
+        Map<Integer, List<String>> parts = byShard(usernames, this::shardForUser);
+        Map<String, User> users = new HashMap<>();
+        onShards(parts.keySet(), i -> shards[i].loadUsers(parts.get(i))).forEach(users::putAll);
+        return users;
+    }
+
+    @Override
+    public void saveUser(User user) {
+        onShard(shardForUser(user.getUsername()), shard -> {
+            shard.saveUser(user);
+            return null;
+        });
+    }
+
+    /**
+     * Rewrites only the shards that own the users, in parallel.
+     */
+    @Override
+    public void updateUsers(Collection<User> users, Collection<String> removedUsernames) {
+        Map<Integer, List<User>> saved = byShard(users, user -> shardForUser(user.getUsername()));
+        Map<Integer, List<String>> removed = byShard(removedUsernames, this::shardForUser);
+        Set<Integer> owners = new TreeSet<>(saved.keySet());
+        owners.addAll(removed.keySet());
+        onShards(owners, i -> {
+            shards[i].updateUsers(saved.getOrDefault(i, List.of()), removed.getOrDefault(i, List.of()));
+            return null;
+        });
+    }
+
+    /**
+     * Every shard is written, since users may have been removed from any.
+     */
+    @Override
+    public void saveUsers(Map<String, User> users) {
+        List<Map<String, User>> parts = partition(users, this::shardForUser);
+        onAllShards(i -> {
+            shards[i].saveUsers(parts.get(i));
+            return null;
+        });
+    }
+
+    @Override
+    public boolean compareAndSetUser(String username, long expectedVersion, Consumer<User> mutator) {
+        return runLocked(List.of(username), List.of(), () -> onShard(shardForUser(username), 
+                shard -> shard.compareAndSetUser(username, expectedVersion, mutator)));
+    }
+
+    /**
+     * Kept in the data directory itself: user IDs are handed out across
+     * shards.
+     */
+    @Override
+    public int loadNextUserId() {
+        return DataPersistence.readNextUserId(countersFile);
+    }
+
+    @Override
+    public void saveNextUserId(int nextUserId) {
+        DataPersistence.writeNextUserId(countersFile, nextUserId);
+    }
+
+    @Override
+    public Lock getMessageLock() {
+        return messageLock;
+    }
+
+    /**
+     * Messages of all shards; each conversation's are in stored order.
+     */
+    @Override
+    public List<Message> loadMessages() {
+        List<Message> messages = new ArrayList<>();
+        onAllShards(i -> shards[i].loadMessages()).forEach(messages::addAll);
+        return messages;
+    }
+
+    @Override
+    public List<Message> loadConversation(String conversationId) {
+        return onShard(shardForConversation(conversationId), shard -> shard.loadConversation(conversationId));
+    }
+
+    @Override
+    public void saveMessages(List<Message> messages) {
+        List<List<Message>> parts = partitionMessages(messages);
+        onAllShards(i -> {
+            shards[i].saveMessages(parts.get(i));
+            return null;
+        });
+    }
+
+    /**
+     * Appends to the shards the messages belong to, in parallel.
+     */
+    @Override
+    public void appendMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        List<List<Message>> parts = partitionMessages(messages);
+        List<Future<?>> pending = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            List<Message> part = parts.get(i);
+            if (!part.isEmpty()) {
+                DataPersistence shard = shards[i];
+                pending.add(writers[i].submit(() -> shard.appendMessages(part)));
+            }
+        }
+        pending.forEach(ShardedDataPersistence::await);
+    }
+
+    @Override
+    public Map<String, Group> loadGroups() {
+        Map<String, Group> groups = new HashMap<>();
+        onAllShards(i -> shards[i].loadGroups()).forEach(groups::putAll);
+        return groups;
+    }
+
+    /**
+     * Reads only the shards owning the groups, in parallel; e.g. for a user's
+     * group list, which spans shards.
+     */
+    @Override
+    public Map<String, Group> loadGroups(Collection<String> groupIds) {
+        Map<Integer, List<String>> parts = byShard(groupIds, this::shardForGroup);
+        Map<String, Group> groups = new HashMap<>();
+        onShards(parts.keySet(), i -> shards[i].loadGroups(parts.get(i))).forEach(groups::putAll);
+        return groups;
+    }
+
+    @Override
+    public void saveGroups(Map<String, Group> groups) {
+        List<Map<String, Group>> parts = partition(groups, this::shardForGroup);
+        onAllShards(i -> {
+            shards[i].saveGroups(parts.get(i));
+            return null;
+        });
+    }
+
+    @Override
+    public void saveGroup(Group group) {
+        onShard(shardForGroup(group.getGroupId()), shard -> {
+            shard.saveGroup(group);
+            return null;
+        });
+    }
+
+    /**
+     * Rewrites only the shards that own the groups, in parallel.
+     */
+    @Override
+    public void updateGroups(Collection<Group> groups, Collection<String> removedGroupIds) {
+        Map<Integer, List<Group>> saved = byShard(groups, group -> shardForGroup(group.getGroupId()));
+        Map<Integer, List<String>> removed = byShard(removedGroupIds, this::shardForGroup);
+        Set<Integer> owners = new TreeSet<>(saved.keySet());
+        owners.addAll(removed.keySet());
+        onShards(owners, i -> {
+            shards[i].updateGroups(saved.getOrDefault(i, List.of()), removed.getOrDefault(i, List.of()));
+            return null;
+        });
+    }
+
+    @Override
+    public boolean compareAndSetGroup(String groupId, long expectedVersion, Consumer<Group> mutator) {
+        return runLocked(List.of(), List.of(groupId), () -> onShard(shardForGroup(groupId), 
+                shard -> shard.compareAndSetGroup(groupId, expectedVersion, mutator)));
+    }
+
+    /**
+     * Holds the locks of the shards owning the users and groups, taken in
+     * shard order so two tasks never wait on each other's.
+     */
+    @Override
+    public <T> T runLocked(Collection<String> usernames, Collection<String> groupIds, Supplier<T> task) {
+        Set<Integer> owners = new TreeSet<>();
+        usernames.forEach(username -> owners.add(shardForUser(username)));
+        groupIds.forEach(groupId -> owners.add(shardForGroup(groupId)));
+
+        List<ReentrantLock> held = new ArrayList<>(owners.size());
+        try {
+            for (int shard : owners) {
+                locks[shard].lock();
+                held.add(locks[shard]);
+            }
+            return task.get();
+        } finally {
+            held.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    /**
+     * Totals over all shards, by dataset.
+     */
+    @Override
+    public Map<String, Long> getFileSizes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (Map<String, Long> shardSizes : onAllShards(i -> shards[i].getFileSizes())) {
+            shardSizes.forEach((dataset, size) -> sizes.merge(dataset, size, Long::sum));
+        }
+        return sizes;
+    }
+
+    /**
+     * Size on disk of each shard, by shard directory name.
+     */
+    public Map<String, Long> getShardSizes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        List<Map<String, Long>> all = onAllShards(i -> shards[i].getFileSizes());
+        for (int i = 0; i < all.size(); i++) {
+            sizes.put(layout.shardDirectory(directory, i).getName(),
+                    all.get(i).values().stream().mapToLong(Long::longValue).sum());
+        }
+        return sizes;
+    }
+
+    /**
+     * Stops the writer threads once the work already handed to them is done.
+     */
+    public void shutdown() {
+        for (ExecutorService writer : writers) {
+            writer.shutdown();
+        }
+    }
+
+    /**
+     * Which shard directories hold the data. Every layout gets a new
+     * generation directory, and the layout file is only ever replaced in a
+     * single rename, so it names either the old shards or the new ones,
+     * never a mix.
+     */
+    static final class Layout {
+        final int shardCount;
+        final int generation;
+
+        Layout(int shardCount, int generation) {
+            this.shardCount = shardCount;
+            this.generation = generation;
+        }
+
+        File generationDirectory(File directory) {
+            return new File(directory, "generation-" + generation);
+        }
+
+        File shardDirectory(File directory, int shard) {
+            return new File(generationDirectory(directory), "shard-" + shard);
+        }
+
+        /**
+         * The directory's layout, or null if its data is not sharded yet.
+         *
+         * @throws IllegalStateException if the layout names no generation
+         */
+        static Layout read(File directory) {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(new File(directory, LAYOUT_FILE))) {
+                properties.load(in);
+            } catch (FileNotFoundException e) {
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading shard layout", e);
+            }
+            String generation = properties.getProperty("generation");
+            if (generation == null) {
+                throw new IllegalStateException("Shard layout in " + directory + " names no generation");
+            }
+            return new Layout(Integer.parseInt(properties.getProperty("shards")), Integer.parseInt(generation));
+        }
+
+        void write(File directory) {
+            Properties properties = new Properties();
+            properties.setProperty("shards", Integer.toString(shardCount));
+            properties.setProperty("generation", Integer.toString(generation));
+            directory.mkdirs();
+            try {
+                DataPersistence.writeProperties(new File(directory, LAYOUT_FILE), properties,
+                        "Written by ShardedDataPersistence; change with ShardRebalancer");
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error writing shard layout", e);
+            }
+        }
+    }
+
+    private <T> List<Map<String, T>> partition(Map<String, T> entries, Function<String, Integer> router) {
+        List<Map<String, T>> parts = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new HashMap<>());
+        }
+        entries.forEach((key, value) -> parts.get(router.apply(key)).put(key, value));
+        return parts;
+    }
+
+    private List<List<Message>> partitionMessages(List<Message> messages) {
+        List<List<Message>> parts = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (Message message : messages) {
+            parts.get(shardForConversation(message.getConversationId())).add(message);
+        }
+        return parts;
+    }
+
+    private <T> T onShard(int index, Function<DataPersistence, T> task) {
+        // A writer waiting on its own queue would wait forever
+        if (Thread.currentThread() == writerThreads[index]) {
+            return task.apply(shards[index]);
+        }
+        return await(writers[index].submit((Callable<T>) () -> task.apply(shards[index])));
+    }
+
+    private <T> List<T> onAllShards(IntFunction<T> task) {
+        List<Integer> all = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            all.add(i);
+        }
+        return onShards(all, task);
+    }
+
+    // In parallel; results in the order of the shards given
+    private <T> List<T> onShards(Collection<Integer> indexes, IntFunction<T> task) {
+        List<Future<T>> pending = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            pending.add(writers[index].submit((Callable<T>) () -> task.apply(index)));
+        }
+
+        List<T> results = new ArrayList<>(indexes.size());
+        for (Future<T> future : pending) {
+            results.add(await(future));
+        }
+        return results;
+    }
+
+    // In shard order
+    private static <T> Map<Integer, List<T>> byShard(Collection<T> items, Function<T, Integer> router) {
+        Map<Integer, List<T>> parts = new TreeMap<>();
+        for (T item : items) {
+            parts.computeIfAbsent(router.apply(item), key -> new ArrayList<>()).add(item);
+        }
+        return parts;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a shard", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.chatapp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket in its GCRA form: instead of a token count it keeps
+ * the theoretical arrival time of the next permit in a single atomic long,
+ * so taking a permit is one compare-and-set.
+ */
+public class TokenBucket {
+    private final long intervalNanos; // Time to earn one permit
+    private final long burstNanos;    // How far ahead of now the bucket may run
+    private final AtomicLong theoreticalArrival;
+
+    public TokenBucket(long intervalNanos, int burst, long nowNanos) {
+        this.intervalNanos = intervalNanos;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.theoreticalArrival = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Takes a permit if one is available.
+     *
+     * @return 0 if a permit was taken, otherwise the nanoseconds until one
+     *         will be
+     */
+    public long tryAcquire(long nowNanos) {
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long next = Math.max(arrival, nowNanos) + intervalNanos;
+            long ahead = next - nowNanos;
+            if (ahead > burstNanos) {
+                return ahead - burstNanos;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back a permit taken by {@link #tryAcquire}, e.g. because what it
+     * was taken for did not happen after all.
+     */
+    public void release() {
+        theoreticalArrival.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * True if the bucket has been full for at least {@code idleNanos}, so
+     * dropping it and starting a new one later changes nothing.
+     */
+    public boolean isIdle(long nowNanos, long idleNanos) {
+        return nowNanos - theoreticalArrival.get() >= idleNanos;
+    }
+}
@@ -0,0 +1,173 @@
+package com.chatapp.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Case-insensitive substring index from text (user or group names) to keys.
+ *
+ * Texts are lowercased once on insert. Every trigram of a text has a posting
+ * list of keys; a query intersects the postings of its own trigrams, smallest
+ * first, and only the surviving candidates are checked with {@code contains}.
+ * A sorted map of texts answers prefix queries, which rank ahead of other
+ * substring matches.
+ */
+public class TrigramIndex {
+    private static final int GRAM = 3;
+
+    private final Map<String, String> textByKey = new HashMap<>();
+    private final NavigableMap<String, Set<String>> keysByText = new TreeMap<>();
+    private final Map<String, Set<String>> postings = new HashMap<>();
+
+    public synchronized void add(String key, String text) {
+        remove(key);
+
+        String lowered = text.toLowerCase();
+        textByKey.put(key, lowered);
+        keysByText.computeIfAbsent(lowered, t -> new LinkedHashSet<>()).add(key);
+        for (String gram : grams(lowered)) {
+            postings.computeIfAbsent(gram, g -> new HashSet<>()).add(key);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        String lowered = textByKey.remove(key);
+        if (lowered == null) {
+            return;
+        }
+
+        Set<String> keys = keysByText.get(lowered);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByText.remove(lowered);
+        }
+
+        for (String gram : grams(lowered)) {
+            Set<String> posting = postings.get(gram);
+            posting.remove(key);
+            if (posting.isEmpty()) {
+                postings.remove(gram);
+            }
+        }
+    }
+
+    public synchronized boolean contains(String key) {
+        return textByKey.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return textByKey.size();
+    }
+
+    public synchronized int postingCount() {
+        return postings.size();
+    }
+
+    public List<String> search(String query, int limit) {
+        return search(query, limit, key -> true);
+    }
+
+    /**
+     * Returns up to {@code limit} keys whose text contains the query: prefix
+     * matches first, then other substring matches, each in text order.
+     */
+    public synchronized List<String> search(String query, int limit, Predicate<String> filter) {
+        List<String> results = new ArrayList<>();
+        if (limit <= 0) {
+            return results;
+        }
+
+        String lowered = query.toLowerCase();
+
+        // Prefix matches come straight out of the sorted map
+        for (Set<String> keys : prefixRange(lowered).values()) {
+            for (String key : keys) {
+                if (filter.test(key)) {
+                    results.add(key);
+                    if (results.size() == limit) {
+                        return results;
+                    }
+                }
+            }
+        }
+
+        int remaining = limit - results.size();
+        Comparator<String> byText = Comparator.comparing(textByKey::get);
+        PriorityQueue<String> best = new PriorityQueue<>(Math.min(remaining, 256), byText.reversed());
+
+        for (String key : candidates(lowered)) {
+            String text = textByKey.get(key);
+            if (text.startsWith(lowered) || !text.contains(lowered) || !filter.test(key)) {
+                continue;
+            }
+
+            best.offer(key);
+            if (best.size() > remaining) {
+                best.poll();
+            }
+        }
+
+        List<String> substringMatches = new ArrayList<>(best);
+        substringMatches.sort(byText);
+        results.addAll(substringMatches);
+        return results;
+    }
+
+    /**
+     * Keys whose text starts with the given prefix, in text order.
+     */
+    public synchronized List<String> prefixSearch(String prefix) {
+        List<String> results = new ArrayList<>();
+        for (Set<String> keys : prefixRange(prefix.toLowerCase()).values()) {
+            results.addAll(keys);
+        }
+        return results;
+    }
+
+    private NavigableMap<String, Set<String>> prefixRange(String lowered) {
+        return keysByText.subMap(lowered, true, lowered + Character.MAX_VALUE, false);
+    }
+
+    // Keys that may contain the query; a superset that still needs verifying
+    private Set<String> candidates(String lowered) {
+        if (lowered.length() < GRAM) {
+            // Too short to have a trigram of its own
+            return textByKey.keySet();
+        }
+
+        List<Set<String>> lists = new ArrayList<>();
+        for (String gram : grams(lowered)) {
+            Set<String> posting = postings.get(gram);
+            if (posting == null) {
+                return Collections.emptySet();
+            }
+            lists.add(posting);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+
+        Set<String> result = new HashSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result.retainAll(lists.get(i));
+        }
+        return result;
+    }
+
+    private static Set<String> grams(String lowered) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= lowered.length(); i++) {
+            grams.add(lowered.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+}
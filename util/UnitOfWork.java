@@ -0,0 +1,185 @@
+package com.chatapp.util;
+
+import com.chatapp.model.Group;
+import com.chatapp.model.Message;
+import com.chatapp.model.User;
+import com.chatapp.metrics.OperationContext;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Collects changes to users, groups and messages and writes each touched
+ * dataset exactly once on {@link #commit()}.
+ *
+ * Changes are recorded as mutators and replayed against freshly loaded
+ * copies of just the users and groups they touch, inside
+ * {@link DataStore#runLocked}, so concurrent commutative updates are not
+ * lost. Group changes can carry an expected version; if any of them no
+ * longer matches, nothing is written and commit returns false.
+ */
+public class UnitOfWork {
+    private final DataStore dataPersistence;
+
+    private final Map<String, List<Consumer<User>>> userUpdates = new LinkedHashMap<>();
+    private final Set<String> removedUsers = new LinkedHashSet<>();
+    private final Map<String, List<Consumer<Group>>> groupUpdates = new LinkedHashMap<>();
+    private final Set<String> removedGroups = new LinkedHashSet<>();
+    private final Map<String, Long> expectedGroupVersions = new HashMap<>();
+    private final List<Predicate<Message>> messageRemovals = new ArrayList<>();
+    private final List<Runnable> commitCallbacks = new ArrayList<>();
+    private boolean committed;
+
+    public UnitOfWork(DataStore dataPersistence) {
+        this.dataPersistence = dataPersistence;
+    }
+
+    public void updateUser(String username, Consumer<User> mutator) {
+        userUpdates.computeIfAbsent(username, k -> new ArrayList<>()).add(mutator);
+    }
+
+    public void removeUser(String username) {
+        removedUsers.add(username);
+    }
+
+    public void updateGroup(String groupId, Consumer<Group> mutator) {
+        groupUpdates.computeIfAbsent(groupId, k -> new ArrayList<>()).add(mutator);
+    }
+
+    public void updateGroup(String groupId, long expectedVersion, Consumer<Group> mutator) {
+        expectVersion(groupId, expectedVersion);
+        updateGroup(groupId, mutator);
+    }
+
+    public void removeGroup(String groupId, long expectedVersion) {
+        expectVersion(groupId, expectedVersion);
+        removedGroups.add(groupId);
+    }
+
+    public void removeMessages(Predicate<Message> filter) {
+        messageRemovals.add(filter);
+    }
+
+    /**
+     * Runs after a successful commit, e.g. to refresh cached copies.
+     */
+    public void onCommit(Runnable callback) {
+        commitCallbacks.add(callback);
+    }
+
+    public boolean isEmpty() {
+        return userUpdates.isEmpty() && removedUsers.isEmpty()
+                && groupUpdates.isEmpty() && removedGroups.isEmpty()
+                && messageRemovals.isEmpty();
+    }
+
+    /**
+     * Writes all collected changes, one save per touched dataset.
+     *
+     * @return false if a group was changed by someone else since it was read;
+     *         in that case nothing has been written
+     */
+    public boolean commit() {
+        if (committed) {
+            throw new IllegalStateException("Unit of work already committed");
+        }
+
+        Set<String> usernames = new LinkedHashSet<>(userUpdates.keySet());
+        usernames.addAll(removedUsers);
+        Set<String> groupIds = new LinkedHashSet<>(groupUpdates.keySet());
+        groupIds.addAll(removedGroups);
+
+        boolean written;
+        if (messageRemovals.isEmpty()) {
+            written = dataPersistence.runLocked(usernames, groupIds, () -> write(usernames, groupIds));
+        } else {
+            // Messages are rewritten whole; appends wait for the message
+            // lock, so none can slip in between the load and the save
+            Lock messageLock = dataPersistence.getMessageLock();
+            messageLock.lock();
+            try {
+                written = dataPersistence.runLocked(usernames, groupIds, () -> write(usernames, groupIds));
+            } finally {
+                messageLock.unlock();
+            }
+        }
+        if (!written) {
+            return false;
+        }
+
+        committed = true;
+        commitCallbacks.forEach(Runnable::run);
+        return true;
+    }
+
+    private boolean write(Set<String> usernames, Set<String> groupIds) {
+        Map<String, Group> groups = null;
+        if (!groupIds.isEmpty()) {
+            groups = dataPersistence.loadGroups(groupIds);
+            for (Map.Entry<String, Long> expected : expectedGroupVersions.entrySet()) {
+                Group group = groups.get(expected.getKey());
+                if (group == null || group.getVersion() != expected.getValue()) {
+                    return false;
+                }
+            }
+        }
+
+        if (!usernames.isEmpty()) {
+            Map<String, User> users = dataPersistence.loadUsers(usernames);
+            for (Map.Entry<String, List<Consumer<User>>> entry : userUpdates.entrySet()) {
+                User user = users.get(entry.getKey());
+                if (user != null) {
+                    entry.getValue().forEach(mutator -> mutator.accept(user));
+                    user.incrementVersion();
+                }
+            }
+            users.keySet().removeAll(removedUsers);
+            dataPersistence.updateUsers(users.values(), removedUsers);
+            usernames.forEach(username -> OperationContext.touch("user:" + username));
+        }
+
+        if (groups != null) {
+            for (Map.Entry<String, List<Consumer<Group>>> entry : groupUpdates.entrySet()) {
+                Group group = groups.get(entry.getKey());
+                if (group != null) {
+                    entry.getValue().forEach(mutator -> mutator.accept(group));
+                    group.incrementVersion();
+                }
+            }
+            groups.keySet().removeAll(removedGroups);
+            dataPersistence.updateGroups(groups.values(), removedGroups);
+            groupIds.forEach(groupId -> OperationContext.touch("group:" + groupId));
+        }
+
+        if (!messageRemovals.isEmpty()) {
+            List<Message> messages = dataPersistence.loadMessages();
+            // Single pass no matter how many filters were collected
+            messages.removeIf(message -> {
+                for (Predicate<Message> filter : messageRemovals) {
+                    if (filter.test(message)) {
+                        OperationContext.touch("message:" + message.getMessageId());
+                        return true;
+                    }
+                }
+                return false;
+            });
+            dataPersistence.saveMessages(messages);
+        }
+        return true;
+    }
+
+    private void expectVersion(String groupId, long expectedVersion) {
+        Long previous = expectedGroupVersions.putIfAbsent(groupId, expectedVersion);
+        if (previous != null && previous != expectedVersion) {
+            throw new IllegalArgumentException("Conflicting expected versions for group " + groupId);
+        }
+    }
+}